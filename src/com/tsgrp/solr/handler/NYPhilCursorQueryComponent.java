@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) Technology Services Group, Inc.
+ *
+ * Licensed under the Mozilla Public License version 1.1 with a permitted attribution clause. You may obtain a copy of
+ * the License at
+ *
+ * http://www.tsgrp.com/legal/license
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.tsgrp.solr.handler;
+
+import java.io.IOException;
+
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopFieldCollector;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.handler.component.QueryComponent;
+import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.search.DocListAndSet;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.DocSlice;
+import org.apache.solr.search.NYPhilCursor;
+import org.apache.solr.search.NYPhilCursorCollector;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.search.SortSpec;
+
+/**
+ * The query component of the NYPhil search, pages after a cursor mark without filtering on it. The matches of the
+ * query and filters are counted first, from the filterCache like on the first page, so <code>numFound</code>, the
+ * facets and the document type counts are the same on every page. Only the page itself is collected from the
+ * documents after the mark, see {@link NYPhilCursorCollector}, nothing of it is cached.
+ * <p>
+ * The mark is given with <code>nyp.cursorMark</code> and must be a mark of the <code>sort</code> param. Without it the
+ * query component is used as is.
+ *
+ * @author Technology Services Group
+ * @version 1.0
+ *
+ *          <h2>Modification History</h2>
+ *          <ul>
+ *          <li>Oct 18, 2026 Created.</li>
+ *          </ul>
+ *          <p>
+ *          Copyright &copy; 2026 Technology Services Group, Inc.
+ *          </p>
+ */
+public class NYPhilCursorQueryComponent extends QueryComponent
+{
+
+    public static final String COMPONENT_NAME = "nypQuery";
+
+    public static final String PARAM_CURSOR_MARK = "nyp.cursorMark";
+
+    /**
+     * request context key of the number of matches sorting after the mark, to tell whether there is a next page
+     */
+    public static final String AFTER_MARK = "nyp.afterMark";
+
+    /**
+     * @see org.apache.solr.handler.component.QueryComponent#process(org.apache.solr.handler.component.ResponseBuilder)
+     */
+    @Override
+    public void process( ResponseBuilder rb ) throws IOException
+    {
+        String mark = rb.req.getParams().get( PARAM_CURSOR_MARK );
+        if (mark == null)
+        {
+            super.process( rb );
+            return;
+        }
+
+        SolrIndexSearcher searcher = rb.req.getSearcher();
+        SortSpec sortSpec = rb.getSortSpec();
+        Sort sort = sortSpec.getSort();
+        NYPhilCursor cursor = NYPhilCursor.decode( mark );
+        NYPhilCursorCollector.checkMark( cursor, rb.req.getParams().get( CommonParams.SORT ), sort );
+
+        //every match, the filters come from the filterCache
+        DocSet matches = rb.getFilters() == null ? searcher.getDocSet( rb.getQuery() )
+                : searcher.getDocSet( rb.getQuery(), searcher.getDocSet( rb.getFilters() ) );
+
+        //the page, only the matches after the mark are collected
+        int rows = sortSpec.getCount();
+        boolean needScores = (rb.getFieldFlags() & SolrIndexSearcher.GET_SCORES) != 0;
+        TopFieldCollector top = TopFieldCollector.create( searcher.weightSort( sort ), Math.max( rows, 1 ), false, needScores, needScores, true );
+        searcher.search( rb.getQuery(), matches.getTopFilter(), new NYPhilCursorCollector( sort, cursor, top ) );
+
+        TopDocs topDocs = top.topDocs( 0, rows );
+        ScoreDoc[] scoreDocs = topDocs.scoreDocs;
+        int[] ids = new int[scoreDocs.length];
+        float[] scores = needScores ? new float[scoreDocs.length] : null;
+        for (int i = 0; i < scoreDocs.length; i++)
+        {
+            ids[i] = scoreDocs[i].doc;
+            if (scores != null)
+            {
+                scores[i] = scoreDocs[i].score;
+            }
+        }
+
+        DocListAndSet results = new DocListAndSet();
+        results.docList = new DocSlice( 0, ids.length, ids, scores, matches.size(), needScores ? topDocs.getMaxScore() : 0.0f );
+        results.docSet = matches;
+        rb.setResults( results );
+        rb.rsp.add( "response", results.docList );
+        rb.req.getContext().put( AFTER_MARK, Integer.valueOf( top.getTotalHits() ) );
+    }
+
+    /**
+     * @see org.apache.solr.handler.component.QueryComponent#getDescription()
+     */
+    @Override
+    public String getDescription()
+    {
+        return "NY Phil query with cursor paging";
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) Technology Services Group, Inc.
+ *
+ * Licensed under the Mozilla Public License version 1.1 with a permitted attribution clause. You may obtain a copy of
+ * the License at
+ *
+ * http://www.tsgrp.com/legal/license
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.tsgrp.solr.handler;
+
+/**
+ * The document types searchable through the {@link NYPhilSearchHandler}. Each type knows the value of the
+ * <code>doctype</code> request parameter that selects it, the value stored in <code>nyp:DocumentType</code>, the
+ * fields that may be highlighted and the facet fields that are generated when the type is selected.
+ *
+ * @author Technology Services Group
+ * @version 1.0
+ *
+ *          <h2>Modification History</h2>
+ *          <ul>
+ *          <li>Oct 18, 2026 Created.</li>
+ *          </ul>
+ *          <p>
+ *          Copyright &copy; 2026 Technology Services Group, Inc.
+ *          </p>
+ */
+public enum NYPhilDocType
+{
+    PROGRAM( "program", "Program",
+            new String[] { "npp:WorksTitle", "npp:WorksComposerNames", "npp:ConductorName", "npp:SoloistsNames" },
+            "npp:ConductorName_facet",
+            "npp:SoloistsNames_facet",
+            "npp:WorksComposerNames_facet",
+            "npp:LocationName_facet",
+            "npp:VenueName_facet",
+            "npp:EventTypeName_facet",
+            "npp:Season_facet" ),
+
+    PRINTED_MUSIC( "printedMusic", "Printed Music",
+            new String[] { "npm:ShortTitle", "npm:ComposerName", "npm:ScoreNotes" },
+            "npm:ScoreMarkingArtist_facet",
+            "npm:ComposerName_facet" ),
+
+    PART( "part", "Part",
+            new String[] { "npm:ShortTitle", "npm:ComposerName", "npm:PartTypeDesc" },
+            "npm:ComposerName_facet",
+            "npm:UsedByArtistName_facet",
+            "npm:PartMarkingArtist_facet",
+            "npm:PartTypeDesc_facet" ),
+
+    BUSINESS_RECORD( "businessRecord", "Business Record",
+            new String[] { "npb:Abstract", "npb:Names", "npb:Subject", "npb:Folder" },
+            "npb:Names_facet",
+            "npb:Subject_facet",
+            "npb:RecordGroup_facet",
+            "npb:Series_facet",
+            "npb:SubSeries_facet" ),
+
+    VISUAL( "visual", "Visual",
+            new String[] { "npv:PersonalNames", "npv:Event", "npv:PlaceOfImage", "npv:Photographer" },
+            "npv:Photographer_facet",
+            "npv:CopyrightHolder_facet",
+            "npv:ImageType_facet",
+            "npv:PlaceOfImage_facet",
+            "npv:Event_facet",
+            "npv:PersonalNames_facet",
+            "npv:LocationName_facet",
+            "npv:VenueName_facet" ),
+
+    //no facets are generated for audio or video
+    AUDIO( "audio", "Audio",
+            new String[] { "npa:ComposerWork", "npa:ConductorName", "npa:SoloistsAndInstruments" } ),
+
+    VIDEO( "video", "Video",
+            new String[] { "npx:ComposerNameWork", "npx:ConductorName", "npx:SoloistsAndInstruments" } );
+
+
+    private final String paramValue;
+
+    private final String documentType;
+
+    private final String[] highlightFields;
+
+    private final String[] facetFields;
+
+    private NYPhilDocType( String paramValue, String documentType, String[] highlightFields, String... facetFields )
+    {
+        this.paramValue = paramValue;
+        this.documentType = documentType;
+        this.highlightFields = highlightFields;
+        this.facetFields = facetFields;
+    }
+
+    /**
+     * @return the value of the <code>doctype</code> request parameter for this type, ie "printedMusic"
+     */
+    public String getParamValue()
+    {
+        return paramValue;
+    }
+
+    /**
+     * @return the value indexed in <code>nyp:DocumentType</code> for this type, ie "Printed Music"
+     */
+    public String getDocumentType()
+    {
+        return documentType;
+    }
+
+    /**
+     * @return the fields highlighted when highlighting is requested for this type, never null. These fields store
+     *         term vectors with offsets so the highlighter does not re-analyze their stored text.
+     */
+    public String[] getHighlightFields()
+    {
+        return highlightFields.clone();
+    }
+
+    /**
+     * @return the facet fields generated when this type is the selected tab, never null
+     */
+    public String[] getFacetFields()
+    {
+        return facetFields.clone();
+    }
+
+    /**
+     * Case insensitive lookup of the type for the <code>doctype</code> request parameter.
+     *
+     * @param paramValue the parameter value
+     * @return the type or null if the value does not match any type
+     */
+    public static NYPhilDocType fromParamValue( String paramValue )
+    {
+        if (paramValue == null)
+        {
+            return null;
+        }
+
+        for (NYPhilDocType type : values())
+        {
+            if (type.paramValue.equalsIgnoreCase( paramValue ))
+            {
+                return type;
+            }
+        }
+
+        return null;
+    }
+}
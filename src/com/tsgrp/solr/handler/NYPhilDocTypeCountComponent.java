@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) Technology Services Group, Inc.
+ *
+ * Licensed under the Mozilla Public License version 1.1 with a permitted attribution clause. You may obtain a copy of
+ * the License at
+ *
+ * http://www.tsgrp.com/legal/license
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.tsgrp.solr.handler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.Query;
+import org.apache.solr.common.params.FacetParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.handler.component.SearchComponent;
+import org.apache.solr.search.DocIterator;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.QParser;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * Counts the results of every {@link NYPhilDocType} for the document type tabs, regardless of which type is
+ * selected. This replaces a <code>{!ex=test}nyp:DocumentType_facet</code> facet: the base set (the query and all
+ * filters except the ones with the excluded tag) is walked once and each document's type is counted into an
+ * <code>int[]</code> indexed by type ordinal.
+ * <p>
+ * The counts are added to <code>facet_counts/facet_fields/nyp:DocumentType_facet</code> exactly like the facet did,
+ * honoring the <code>facet.sort</code> and <code>facet.mincount</code> params (global or per field) so the front end
+ * does not change. Enabled with <code>nyp.typeCounts=true</code>, the filter tag to exclude is set with
+ * <code>nyp.typeCounts.ex</code>.
+ *
+ * @author Technology Services Group
+ * @version 1.0
+ *
+ *          <h2>Modification History</h2>
+ *          <ul>
+ *          <li>Oct 18, 2026 Created.</li>
+ *          </ul>
+ *          <p>
+ *          Copyright &copy; 2026 Technology Services Group, Inc.
+ *          </p>
+ */
+public class NYPhilDocTypeCountComponent extends SearchComponent
+{
+
+    public static final String COMPONENT_NAME = "nypDocTypeCounts";
+
+    public static final String PARAM_TYPE_COUNTS = "nyp.typeCounts";
+
+    public static final String PARAM_TYPE_COUNTS_EXCLUDE = "nyp.typeCounts.ex";
+
+    /**
+     * @see org.apache.solr.handler.component.SearchComponent#prepare(org.apache.solr.handler.component.ResponseBuilder)
+     */
+    @Override
+    public void prepare( ResponseBuilder rb ) throws IOException
+    {
+        //nothing to prepare, the counts only need the parsed query and filters
+    }
+
+    /**
+     * @see org.apache.solr.handler.component.SearchComponent#process(org.apache.solr.handler.component.ResponseBuilder)
+     */
+    @Override
+    public void process( ResponseBuilder rb ) throws IOException
+    {
+        SolrParams params = rb.req.getParams();
+        if (!params.getBool( PARAM_TYPE_COUNTS, false ))
+        {
+            return;
+        }
+
+        SolrIndexSearcher searcher = rb.req.getSearcher();
+        DocSet base = getBaseDocSet( rb, params.get( PARAM_TYPE_COUNTS_EXCLUDE ) );
+
+        //map the ords of the type values to the type ordinal, once per request
+        FieldCache.StringIndex si = FieldCache.DEFAULT.getStringIndex( searcher.getReader(), NYPhilSearchPlan.DOCUMENT_TYPE_FACET );
+        NYPhilDocType[] types = NYPhilDocType.values();
+        int[] ordToType = new int[si.lookup.length];
+        Arrays.fill( ordToType, -1 );
+        for (NYPhilDocType type : types)
+        {
+            int ord = lookupOrd( si.lookup, type.getDocumentType() );
+            if (ord > 0)
+            {
+                ordToType[ord] = type.ordinal();
+            }
+        }
+
+        int[] counts = new int[types.length];
+        int[] order = si.order;
+        for (DocIterator it = base.iterator(); it.hasNext();)
+        {
+            int type = ordToType[order[it.nextDoc()]];
+            if (type >= 0)
+            {
+                counts[type]++;
+            }
+        }
+
+        getFacetFields( rb ).add( NYPhilSearchPlan.DOCUMENT_TYPE_FACET, toNamedList( params, types, counts ) );
+    }
+
+    /**
+     * @return the ord of the value, or -1 if no document has it. lookup[0] is the null entry for missing values.
+     */
+    private static int lookupOrd( String[] lookup, String value )
+    {
+        int low = 1;
+        int high = lookup.length - 1;
+        while (low <= high)
+        {
+            int mid = (low + high) >>> 1;
+            int cmp = lookup[mid].compareTo( value );
+            if (cmp < 0)
+            {
+                low = mid + 1;
+            }
+            else if (cmp > 0)
+            {
+                high = mid - 1;
+            }
+            else
+            {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The query and all the filters except the ones tagged with the excluded tag.
+     */
+    private DocSet getBaseDocSet( ResponseBuilder rb, String excludeTag ) throws IOException
+    {
+        IdentityHashMap<Query, Boolean> excluded = new IdentityHashMap<Query, Boolean>();
+        Map<?, ?> tagMap = (Map<?, ?>)rb.req.getContext().get( "tags" );
+        if (excludeTag != null && tagMap != null && tagMap.get( excludeTag ) instanceof Collection)
+        {
+            for (Object o : (Collection<?>)tagMap.get( excludeTag ))
+            {
+                if (o instanceof QParser)
+                {
+                    try
+                    {
+                        excluded.put( ((QParser)o).getQuery(), Boolean.TRUE );
+                    }
+                    catch (org.apache.lucene.queryParser.ParseException e)
+                    {
+                        //already parsed successfully by the query component
+                        throw new IllegalStateException( e );
+                    }
+                }
+            }
+        }
+
+        if (excluded.isEmpty() && rb.getResults() != null && rb.getResults().docSet != null)
+        {
+            //nothing excluded, the query component already has the set
+            return rb.getResults().docSet;
+        }
+
+        List<Query> queries = new ArrayList<Query>();
+        queries.add( rb.getQuery() );
+        if (rb.getFilters() != null)
+        {
+            for (Query fq : rb.getFilters())
+            {
+                if (!excluded.containsKey( fq ))
+                {
+                    queries.add( fq );
+                }
+            }
+        }
+        return rb.req.getSearcher().getDocSet( queries );
+    }
+
+    private NamedList<Integer> toNamedList( SolrParams params, NYPhilDocType[] types, int[] counts )
+    {
+        String field = NYPhilSearchPlan.DOCUMENT_TYPE_FACET;
+        int mincount = params.getFieldInt( field, FacetParams.FACET_MINCOUNT, 0 );
+        boolean sortByCount = FacetParams.FACET_SORT_COUNT.equals( params.getFieldParam( field, FacetParams.FACET_SORT ) );
+
+        //index order is the order of the type values
+        NYPhilDocType[] sorted = types.clone();
+        Arrays.sort( sorted, new Comparator<NYPhilDocType>()
+        {
+            public int compare( NYPhilDocType a, NYPhilDocType b )
+            {
+                return a.getDocumentType().compareTo( b.getDocumentType() );
+            }
+        } );
+
+        if (sortByCount)
+        {
+            final int[] c = counts;
+            //stable, so equal counts stay in index order like the facet component
+            Arrays.sort( sorted, new Comparator<NYPhilDocType>()
+            {
+                public int compare( NYPhilDocType a, NYPhilDocType b )
+                {
+                    return c[b.ordinal()] - c[a.ordinal()];
+                }
+            } );
+        }
+
+        NamedList<Integer> result = new NamedList<Integer>();
+        for (NYPhilDocType type : sorted)
+        {
+            if (counts[type.ordinal()] >= mincount)
+            {
+                result.add( type.getDocumentType(), counts[type.ordinal()] );
+            }
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private NamedList<Object> getFacetFields( ResponseBuilder rb )
+    {
+        NamedList<Object> facetCounts = (NamedList<Object>)rb.rsp.getValues().get( "facet_counts" );
+        if (facetCounts == null)
+        {
+            facetCounts = new SimpleOrderedMap<Object>();
+            facetCounts.add( "facet_queries", new SimpleOrderedMap<Object>() );
+            rb.rsp.add( "facet_counts", facetCounts );
+        }
+
+        NamedList<Object> facetFields = (NamedList<Object>)facetCounts.get( "facet_fields" );
+        if (facetFields == null)
+        {
+            facetFields = new SimpleOrderedMap<Object>();
+            facetCounts.add( "facet_fields", facetFields );
+        }
+        return facetFields;
+    }
+
+    /**
+     * @see org.apache.solr.core.SolrInfoMBean#getDescription()
+     */
+    @Override
+    public String getDescription()
+    {
+        return "NY Phil document type counts";
+    }
+
+    /**
+     * @see org.apache.solr.core.SolrInfoMBean#getSource()
+     */
+    @Override
+    public String getSource()
+    {
+        return "$URL$";
+    }
+
+    /**
+     * @see org.apache.solr.core.SolrInfoMBean#getSourceId()
+     */
+    @Override
+    public String getSourceId()
+    {
+        return "$Id$";
+    }
+
+    /**
+     * @see org.apache.solr.core.SolrInfoMBean#getVersion()
+     */
+    @Override
+    public String getVersion()
+    {
+        return "1.0";
+    }
+}
@@ -16,12 +16,20 @@
  */
 package com.tsgrp.solr.handler;
 
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.Term;
 import org.apache.lucene.queryParser.ParseException;
-import org.apache.lucene.queryParser.QueryParser;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.MultiMapSolrParams;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.SolrCore;
 import org.apache.solr.handler.component.SearchHandler;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.request.SolrQueryResponse;
@@ -45,6 +53,60 @@ public class NYPhilGetTagsHandler extends SearchHandler
 	private static final String PARAM_ASSET_ID = "assetId";
 	private static final String PARAM_ALL_TAGS = "allTags";
 	private static final String PARAM_CALLBACK = "callback";
+	
+	// comma separated or repeated asset ids, replaces assetId to get the tags of several assets at once
+	private static final String PARAM_ASSET_IDS = "assetIds";
+	private static final int MAX_ASSET_IDS = 100;
+	
+	// writes the tags straight from the index, used automatically for assets with more tags than the threshold
+	private static final String PARAM_STREAM = "stream";
+	private static final int STREAM_THRESHOLD = 500;
+	
+	// page of the asset, optionally only the tags overlapping a region of it given as "x1,y1,x2,y2"
+	private static final String PARAM_PAGE = "page";
+	private static final String PARAM_REGION = "region";
+	// true if the region is a fraction (0 to 1) of the image size
+	private static final String PARAM_NORMALIZED = "normalized";
+	
+	// maximum number of tags returned for a single asset
+	private static final int TAG_ROWS = 1000;
+	
+	// init arg, maximum bytes of cached tags, 0 disables the cache
+	private static final String INIT_TAG_CACHE_BYTES = "tagCacheBytes";
+	private static final long DEFAULT_TAG_CACHE_BYTES = 32L * 1024 * 1024;
+	
+	// tags of recently viewed assets, null if disabled
+	private NYPhilTagCache tagCache;
+	
+	
+	/*
+	 * @see org.apache.solr.handler.RequestHandlerBase#init(org.apache.solr.common.util.NamedList)
+	 */
+	@Override
+	public void init(NamedList args) 
+	{
+		super.init( args );
+		
+		Object size = args == null ? null : args.get( INIT_TAG_CACHE_BYTES );
+		long maxBytes = size == null ? DEFAULT_TAG_CACHE_BYTES : Long.parseLong( size.toString() );
+		if( maxBytes > 0 ) {
+			tagCache = new NYPhilTagCache( maxBytes );
+		}
+	}
+	
+	/*
+	 * @see org.apache.solr.handler.component.SearchHandler#inform(org.apache.solr.core.SolrCore)
+	 */
+	@Override
+	public void inform(SolrCore core) 
+	{
+		super.inform( core );
+		
+		// the assets changed by a commit are dropped when the new searcher opens
+		if( tagCache != null ) {
+			core.registerNewSearcherListener( tagCache );
+		}
+	}
 
 	/*
 	 * @see org.apache.solr.handler.component.SearchHandler#handleRequestBody(org.apache.solr.request.SolrQueryRequest, org.apache.solr.request.SolrQueryResponse)
@@ -54,38 +116,103 @@ public class NYPhilGetTagsHandler extends SearchHandler
 			throws Exception, ParseException, InstantiationException,
 			IllegalAccessException 
 	{
-		NamedList<Object> params = req.getParams().toNamedList();
+		SolrParams requestParams = req.getParams();
+		Map<String, String[]> overlay = new HashMap<String, String[]>();
+		
+		boolean allTags = NYPhilRequestDecoder.getBoolean( requestParams, PARAM_ALL_TAGS, false );
 		
-		String assetId = (String) params.get( PARAM_ASSET_ID );
-		if( assetId == null || assetId.trim().length() < 0 ) {
-			throw new SolrException( SolrException.ErrorCode.BAD_REQUEST, "Asset Id required to retrieve tags." );
+		String cb = NYPhilRequestDecoder.getCallback( requestParams, PARAM_CALLBACK );
+		if( cb != null ) {
+			overlay.put( "json.wrf", new String[] { cb } );
 		}
 		
-		boolean allTags = ( params.get( PARAM_ALL_TAGS ) != null && 
-				Boolean.parseBoolean( (String) params.get( PARAM_ALL_TAGS ) ) );
+		overlay.put( CommonParams.HEADER_ECHO_PARAMS, new String[] { "explicit" } );
+		overlay.put( CommonParams.WT, new String[] { "json" } );
+		overlay.put( "json.nl", new String[] { "map" } );
 		
-		StringBuffer q = new StringBuffer( "+" ).append(NYPhilSolrConstants.NPT_ASSET_ID_ESC )
-				.append( ":" ).append( QueryParser.escape( assetId ) );
+		boolean stream = NYPhilRequestDecoder.getBoolean( requestParams, PARAM_STREAM, false );
 		
-		if( !allTags ) {
-			q.append( " +" ).append( NYPhilSolrConstants.NPT_STATUS_ESC ).append( ":" ).append( NYPhilSolrConstants.STATUS_APPROVED );
+		int page = NYPhilRequestDecoder.getPositiveInt( requestParams, PARAM_PAGE, -1 );
+		float[] region = NYPhilRequestDecoder.getFloats( requestParams, PARAM_REGION, 4 );
+		if( region != null && page == -1 ) {
+			throw new SolrException( SolrException.ErrorCode.BAD_REQUEST, "Page required to retrieve the tags of a region." );
 		}
 		
-		String cb = (String) params.get( PARAM_CALLBACK );
-		if( cb != null && cb.length() > 0 ) {
-			params.add( "json.wrf", cb );
+		// batch of assets, the tags are returned grouped by asset id under "tags"
+		List<String> assetIds = NYPhilRequestDecoder.getList( requestParams, PARAM_ASSET_IDS, MAX_ASSET_IDS );
+		if( !assetIds.isEmpty() ) {
+			if( page != -1 ) {
+				throw new SolrException( SolrException.ErrorCode.BAD_REQUEST, "Page and region are only supported for a single asset." );
+			}
+			
+			if( stream || countTags( req, assetIds ) > STREAM_THRESHOLD ) {
+				overlay.put( CommonParams.WT, new String[] { NYPhilTagStreamWriter.NAME } );
+				req.setParams( new NYPhilLayeredParams( new MultiMapSolrParams( overlay ), requestParams ) );
+				res.add( "tags", new NYPhilTagStreamWriter.TagStream( assetIds, true, allTags, -1 ) );
+				return;
+			}
+			
+			// the tags are serialized when loaded, the stream writer writes them as they are
+			overlay.put( CommonParams.WT, new String[] { NYPhilTagStreamWriter.NAME } );
+			req.setParams( new NYPhilLayeredParams( new MultiMapSolrParams( overlay ), requestParams ) );
+			
+			// without a cache the assets are still loaded together, just not kept
+			if( tagCache != null ) {
+				res.add( "tags", tagCache.getTags( req.getSearcher(), assetIds, allTags ) );
+			} else {
+				res.add( "tags", NYPhilTagCache.loadTags( req.getSearcher(), assetIds, allTags ) );
+			}
+			return;
 		}
 		
-		params.add( CommonParams.HEADER_ECHO_PARAMS, "explicit" );
-		params.add( CommonParams.WT, "json" );
-		params.add( "json.nl", "map" );
+		String assetId = NYPhilRequestDecoder.getRequiredString( requestParams, PARAM_ASSET_ID, "Asset Id required to retrieve tags." );
 		
-		params.add( CommonParams.Q, q.toString() );
-		params.add( CommonParams.ROWS, 1000 );
+		NYPhilQueryBuilder q = new NYPhilQueryBuilder().term( NYPhilSolrConstants.NPT_ASSET_ID, assetId );
 		
-        req.setParams( SolrParams.toSolrParams( params ) );
+		if( !allTags ) {
+			q.status( NYPhilSolrConstants.STATUS_APPROVED );
+		}
+		
+		// viewer zoom and pan only fetch the visible tags
+		if( page != -1 ) {
+			q.region( req, assetId, page, region, NYPhilRequestDecoder.getBoolean( requestParams, PARAM_NORMALIZED, false ) );
+		}
+		
+		overlay.put( CommonParams.Q, new String[] { q.toParam( req ) } );
+		overlay.put( CommonParams.ROWS, new String[] { Integer.toString( TAG_ROWS ) } );
+		
+        // the cache and the stream write all the tags of the asset with every stored field in index order, anything else is searched
+        boolean wholeAsset = requestParams.get( CommonParams.FL ) == null && requestParams.get( CommonParams.SORT ) == null
+                && requestParams.get( CommonParams.START ) == null && page == -1;
+        
+        if( wholeAsset && ( stream || countTags( req, Collections.singletonList( assetId ) ) > STREAM_THRESHOLD ) ) {
+            overlay.put( CommonParams.WT, new String[] { NYPhilTagStreamWriter.NAME } );
+            req.setParams( new NYPhilLayeredParams( new MultiMapSolrParams( overlay ), requestParams ) );
+            res.add( "response", new NYPhilTagStreamWriter.TagStream( Collections.singletonList( assetId ), false, allTags, TAG_ROWS ) );
+            return;
+        }
         
+        if( tagCache != null && wholeAsset ) {
+            overlay.put( CommonParams.WT, new String[] { NYPhilTagStreamWriter.NAME } );
+            req.setParams( new NYPhilLayeredParams( new MultiMapSolrParams( overlay ), requestParams ) );
+            res.add( "response", tagCache.getTags( req.getSearcher(), assetId, allTags ) );
+            return;
+        }
+        
+        req.setParams( new NYPhilLayeredParams( new MultiMapSolrParams( overlay ), requestParams ) );
         super.handleRequestBody( req, res );
 	}
+	
+	/**
+	 * @return the number of tags of the assets in the index, including deleted ones not merged away yet
+	 */
+	private int countTags( SolrQueryRequest req, List<String> assetIds ) throws IOException 
+	{
+		int count = 0;
+		for( String assetId : assetIds ) {
+			count += req.getSearcher().docFreq( new Term( NYPhilSolrConstants.NPT_ASSET_ID, assetId ) );
+		}
+		return count;
+	}
 
 }
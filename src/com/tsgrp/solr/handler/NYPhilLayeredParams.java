@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) Technology Services Group, Inc.
+ *
+ * Licensed under the Mozilla Public License version 1.1 with a permitted attribution clause. You may obtain a copy of
+ * the License at
+ *
+ * http://www.tsgrp.com/legal/license
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.tsgrp.solr.handler;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.apache.solr.common.params.SolrParams;
+
+/**
+ * Read only view over several {@link SolrParams} layers that never copies the layers. Single valued lookups return
+ * the value from the first layer that defines the parameter, multi valued lookups return the values of every layer
+ * in layer order. This matches the behavior of adding values to a copy of the request params, where the values
+ * already on the request come first.
+ *
+ * @author Technology Services Group
+ * @version 1.0
+ *
+ *          <h2>Modification History</h2>
+ *          <ul>
+ *          <li>Oct 18, 2026 Created.</li>
+ *          </ul>
+ *          <p>
+ *          Copyright &copy; 2026 Technology Services Group, Inc.
+ *          </p>
+ */
+public class NYPhilLayeredParams extends SolrParams
+{
+
+    private final SolrParams[] layers;
+
+    /**
+     * @param layers the layers, highest precedence first. null layers are ignored.
+     */
+    public NYPhilLayeredParams( SolrParams... layers )
+    {
+        int count = 0;
+        for (SolrParams layer : layers)
+        {
+            if (layer != null)
+            {
+                count++;
+            }
+        }
+
+        this.layers = new SolrParams[count];
+        int i = 0;
+        for (SolrParams layer : layers)
+        {
+            if (layer != null)
+            {
+                this.layers[i++] = layer;
+            }
+        }
+    }
+
+    /**
+     * @see org.apache.solr.common.params.SolrParams#get(java.lang.String)
+     */
+    @Override
+    public String get( String param )
+    {
+        for (SolrParams layer : layers)
+        {
+            String val = layer.get( param );
+            if (val != null)
+            {
+                return val;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @see org.apache.solr.common.params.SolrParams#getParams(java.lang.String)
+     */
+    @Override
+    public String[] getParams( String param )
+    {
+        String[] result = null;
+        for (SolrParams layer : layers)
+        {
+            String[] vals = layer.getParams( param );
+            if (vals == null || vals.length == 0)
+            {
+                continue;
+            }
+
+            if (result == null)
+            {
+                //the common case is a single layer defining the param, hand back its array as is
+                result = vals;
+            }
+            else
+            {
+                String[] merged = new String[result.length + vals.length];
+                System.arraycopy( result, 0, merged, 0, result.length );
+                System.arraycopy( vals, 0, merged, result.length, vals.length );
+                result = merged;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @see org.apache.solr.common.params.SolrParams#getParameterNamesIterator()
+     */
+    @Override
+    public Iterator<String> getParameterNamesIterator()
+    {
+        Set<String> names = new LinkedHashSet<String>();
+        for (SolrParams layer : layers)
+        {
+            Iterator<String> it = layer.getParameterNamesIterator();
+            while (it.hasNext())
+            {
+                names.add( it.next() );
+            }
+        }
+        return names.iterator();
+    }
+
+    /**
+     * @see org.apache.solr.common.params.SolrParams#toString()
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder( "{" );
+        for (int i = 0; i < layers.length; i++)
+        {
+            if (i > 0)
+            {
+                sb.append( ',' );
+            }
+            sb.append( layers[i] );
+        }
+        return sb.append( '}' ).toString();
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) Technology Services Group, Inc.
+ *
+ * Licensed under the Mozilla Public License version 1.1 with a permitted attribution clause. You may obtain a copy of
+ * the License at
+ *
+ * http://www.tsgrp.com/legal/license
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.tsgrp.solr.handler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.FacetParams;
+import org.apache.solr.common.params.MultiMapSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.core.CloseHook;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.handler.component.FacetComponent;
+import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.request.SimpleFacets;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.util.plugin.SolrCoreAware;
+
+/**
+ * A {@link FacetComponent} that computes the <code>facet.field</code>s of a request concurrently. Each field is
+ * counted by its own {@link SimpleFacets} on the shared result set, facet queries and dates are still computed on the
+ * request thread, and the fields are returned in request order so the response is the same as the serial one.
+ * <p>
+ * Workers run on a bounded executor owned by the component, so it is shared by all handlers of the core using it
+ * and shut down with the core. A request uses at most <code>nyp.facet.threads</code> threads including its own
+ * (capped by the <code>maxThreadsPerRequest</code> init arg). Fields are handed out one at a time to the request
+ * thread and its workers, so when the pool is saturated and no worker can be started the request simply counts all
+ * fields itself.
+ *
+ * <pre>
+ * &lt;searchComponent name="nypFacet" class="com.tsgrp.solr.handler.NYPhilParallelFacetComponent"&gt;
+ *   &lt;int name="threads"&gt;8&lt;/int&gt;
+ *   &lt;int name="maxThreadsPerRequest"&gt;4&lt;/int&gt;
+ * &lt;/searchComponent&gt;
+ * </pre>
+ *
+ * @author Technology Services Group
+ * @version 1.0
+ *
+ *          <h2>Modification History</h2>
+ *          <ul>
+ *          <li>Oct 18, 2026 Created.</li>
+ *          </ul>
+ *          <p>
+ *          Copyright &copy; 2026 Technology Services Group, Inc.
+ *          </p>
+ */
+public class NYPhilParallelFacetComponent extends FacetComponent implements SolrCoreAware
+{
+
+    /** request param, number of threads (including the request thread) used to count the facet fields */
+    public static final String PARAM_FACET_THREADS = "nyp.facet.threads";
+
+    private static final String INIT_THREADS = "threads";
+
+    private static final String INIT_MAX_THREADS_PER_REQUEST = "maxThreadsPerRequest";
+
+    private int maxThreadsPerRequest;
+
+    private ThreadPoolExecutor executor;
+
+    /**
+     * @see org.apache.solr.handler.component.SearchComponent#init(org.apache.solr.common.util.NamedList)
+     */
+    @Override
+    public void init( NamedList args )
+    {
+        super.init( args );
+
+        int processors = Runtime.getRuntime().availableProcessors();
+        int threads = getInt( args, INIT_THREADS, processors );
+        maxThreadsPerRequest = getInt( args, INIT_MAX_THREADS_PER_REQUEST, Math.min( 4, processors ) );
+
+        final AtomicInteger count = new AtomicInteger();
+        //no queue, a task is either started right away or rejected so the request thread does the work
+        executor = new ThreadPoolExecutor( 0, threads, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory()
+        {
+            public Thread newThread( Runnable r )
+            {
+                Thread t = new Thread( r, "nypFacet-" + count.incrementAndGet() );
+                t.setDaemon( true );
+                return t;
+            }
+        } );
+    }
+
+    /**
+     * @see org.apache.solr.util.plugin.SolrCoreAware#inform(org.apache.solr.core.SolrCore)
+     */
+    public void inform( SolrCore core )
+    {
+        core.addCloseHook( new CloseHook()
+        {
+            public void close( SolrCore core )
+            {
+                executor.shutdownNow();
+            }
+        } );
+    }
+
+    /**
+     * @see org.apache.solr.handler.component.FacetComponent#process(org.apache.solr.handler.component.ResponseBuilder)
+     */
+    @Override
+    public void process( ResponseBuilder rb ) throws IOException
+    {
+        if (!rb.doFacets)
+        {
+            return;
+        }
+
+        SolrParams params = rb.req.getParams();
+        String[] fields = params.getParams( FacetParams.FACET_FIELD );
+        int threads = Math.min( params.getInt( PARAM_FACET_THREADS, maxThreadsPerRequest ), maxThreadsPerRequest );
+        if (fields == null || fields.length < 2 || threads < 2 || !params.getBool( FacetParams.FACET, true ))
+        {
+            super.process( rb );
+            return;
+        }
+
+        DocSet docs = rb.getResults().docSet;
+        SimpleFacets facets = new SimpleFacets( rb.req, docs, params, rb );
+
+        //same layout and error handling as SimpleFacets.getFacetCounts()
+        NamedList<Object> counts = new SimpleOrderedMap<Object>();
+        try
+        {
+            counts.add( "facet_queries", facets.getFacetQueryCounts() );
+            counts.add( "facet_fields", getFacetFieldCounts( rb, docs, fields, threads ) );
+            counts.add( "facet_dates", facets.getFacetDateCounts() );
+        }
+        catch (Exception e)
+        {
+            SolrException.logOnce( SolrCore.log, "Exception during facet counts", e );
+            counts.add( "exception", SolrException.toStr( e ) );
+        }
+        rb.rsp.add( "facet_counts", counts );
+    }
+
+    private NamedList<Object> getFacetFieldCounts( ResponseBuilder rb, DocSet docs, String[] fields, int threads ) throws Exception
+    {
+        FieldCounter counter = new FieldCounter( rb, docs, fields );
+
+        List<Future<?>> workers = new ArrayList<Future<?>>();
+        for (int i = 1; i < threads && i < fields.length; i++)
+        {
+            try
+            {
+                workers.add( executor.submit( counter ) );
+            }
+            catch (RejectedExecutionException e)
+            {
+                //pool is saturated, whatever is not picked up by a worker is counted here
+                break;
+            }
+        }
+
+        counter.run();
+        for (Future<?> worker : workers)
+        {
+            try
+            {
+                worker.get();
+            }
+            catch (ExecutionException e)
+            {
+                //the counter keeps its own errors, anything else is a bug
+                throw new IllegalStateException( e.getCause() );
+            }
+        }
+
+        NamedList<Object> result = new SimpleOrderedMap<Object>();
+        for (int i = 0; i < fields.length; i++)
+        {
+            if (counter.errors[i] != null)
+            {
+                throw counter.errors[i];
+            }
+            result.addAll( counter.results[i] );
+        }
+        return result;
+    }
+
+    /**
+     * Counts the next field not taken by another thread until all fields are counted. Every field gets its own
+     * SimpleFacets since it keeps per field state while parsing the local params.
+     */
+    private static class FieldCounter implements Runnable
+    {
+        private final SolrQueryRequest req;
+
+        private final ResponseBuilder rb;
+
+        private final DocSet docs;
+
+        private final SolrParams params;
+
+        private final String[] fields;
+
+        private final AtomicInteger next = new AtomicInteger();
+
+        final NamedList[] results;
+
+        final Exception[] errors;
+
+        FieldCounter( ResponseBuilder rb, DocSet docs, String[] fields )
+        {
+            this.req = rb.req;
+            this.rb = rb;
+            this.docs = docs;
+            this.params = rb.req.getParams();
+            this.fields = fields;
+            this.results = new NamedList[fields.length];
+            this.errors = new Exception[fields.length];
+        }
+
+        public void run()
+        {
+            for (int i = next.getAndIncrement(); i < fields.length; i = next.getAndIncrement())
+            {
+                Map<String, String[]> single = new HashMap<String, String[]>();
+                single.put( FacetParams.FACET_FIELD, new String[] { fields[i] } );
+                SolrParams fieldParams = SolrParams.wrapDefaults( new MultiMapSolrParams( single ), params );
+                try
+                {
+                    results[i] = new SimpleFacets( req, docs, fieldParams, rb ).getFacetFieldCounts();
+                }
+                catch (Exception e)
+                {
+                    errors[i] = e;
+                }
+            }
+        }
+    }
+
+    private static int getInt( NamedList args, String name, int defaultValue )
+    {
+        Object value = args == null ? null : args.get( name );
+        if (value == null)
+        {
+            return defaultValue;
+        }
+        int result = (value instanceof Number) ? ((Number)value).intValue() : Integer.parseInt( value.toString() );
+        if (result < 1)
+        {
+            throw new SolrException( SolrException.ErrorCode.SERVER_ERROR, "Invalid value for " + name + ": " + value );
+        }
+        return result;
+    }
+
+    /**
+     * @see org.apache.solr.handler.component.FacetComponent#getDescription()
+     */
+    @Override
+    public String getDescription()
+    {
+        return "NY Phil parallel facet field counts";
+    }
+
+    /**
+     * @see org.apache.solr.handler.component.FacetComponent#getSource()
+     */
+    @Override
+    public String getSource()
+    {
+        return "$URL$";
+    }
+
+    /**
+     * @see org.apache.solr.handler.component.FacetComponent#getSourceId()
+     */
+    @Override
+    public String getSourceId()
+    {
+        return "$Id$";
+    }
+
+    /**
+     * @see org.apache.solr.handler.component.FacetComponent#getVersion()
+     */
+    @Override
+    public String getVersion()
+    {
+        return "1.0";
+    }
+}
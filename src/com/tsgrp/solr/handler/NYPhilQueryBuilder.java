@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) Technology Services Group, Inc.
+ *
+ * Licensed under the Mozilla Public License version 1.1 with a permitted attribution clause. You may obtain a copy of
+ * the License at
+ *
+ * http://www.tsgrp.com/legal/license
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.tsgrp.solr.handler;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeQuery;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.search.NYPhilQueryQParserPlugin;
+import org.apache.solr.search.NYPhilRegionQParserPlugin;
+
+/**
+ * Builds the queries of the NYPhil handlers as lucene queries instead of query strings, so values never need
+ * escaping and nothing is parsed again by the search components. Every restriction added is required. Values are
+ * used as the indexed terms, they are not analyzed, so the fields should be string fields or the values already
+ * normalized the way the field indexes them.
+ * <p>
+ * The query is handed to the search components with {@link #toParam(SolrQueryRequest)} as a <code>q</code> or
+ * <code>fq</code> value, see {@link NYPhilQueryQParserPlugin}:
+ *
+ * <pre>
+ * overlay.put( CommonParams.Q, new String[] { new NYPhilQueryBuilder().term( NPT_ASSET_ID, assetId ).toParam( req ) } );
+ * </pre>
+ *
+ * @author Technology Services Group
+ * @version 1.0
+ *
+ *          <h2>Modification History</h2>
+ *          <ul>
+ *          <li>Oct 18, 2026 Created.</li>
+ *          </ul>
+ *          <p>
+ *          Copyright &copy; 2026 Technology Services Group, Inc.
+ *          </p>
+ */
+public class NYPhilQueryBuilder
+{
+
+    private final BooleanQuery query = new BooleanQuery();
+
+    /**
+     * Requires the exact term.
+     */
+    public NYPhilQueryBuilder term( String field, String value )
+    {
+        return add( new TermQuery( new Term( field, value ) ) );
+    }
+
+    /**
+     * Requires a term starting with the prefix, an empty prefix matches every document with a value in the field.
+     */
+    public NYPhilQueryBuilder prefix( String field, String prefix )
+    {
+        return add( new PrefixQuery( new Term( field, prefix ) ) );
+    }
+
+    /**
+     * Requires a term between the bounds in term order.
+     *
+     * @param lower the lower bound, null for no lower bound
+     * @param upper the upper bound, null for no upper bound
+     */
+    public NYPhilQueryBuilder range( String field, String lower, String upper, boolean includeLower, boolean includeUpper )
+    {
+        return add( new TermRangeQuery( field, lower, upper, includeLower, includeUpper ) );
+    }
+
+    /**
+     * Restricts to a document type, on the exact value of the document type facet field.
+     */
+    public NYPhilQueryBuilder docType( NYPhilDocType docType )
+    {
+        return term( NYPhilSearchPlan.DOCUMENT_TYPE_FACET, docType.getDocumentType() );
+    }
+
+    /**
+     * Restricts tags to a status, ie {@link NYPhilSolrConstants#STATUS_APPROVED}.
+     */
+    public NYPhilQueryBuilder status( String status )
+    {
+        return term( NYPhilSolrConstants.NPT_STATUS, status );
+    }
+
+    /**
+     * Restricts tags to a page of an asset, and to the ones overlapping a region of the page if given. Answered from
+     * a grid of the tags of each asset page, see {@link NYPhilRegionQParserPlugin}.
+     *
+     * @param region x1, y1, x2, y2 of the region, null for the whole page
+     * @param normalized true if the region is a fraction of the image size rather than in tag coordinates
+     */
+    public NYPhilQueryBuilder region( SolrQueryRequest req, String assetId, int page, float[] region, boolean normalized )
+    {
+        NYPhilRegionQParserPlugin plugin = (NYPhilRegionQParserPlugin)req.getCore().getQueryPlugin( NYPhilRegionQParserPlugin.NAME );
+        return add( plugin.createQuery( assetId, page, region, normalized ) );
+    }
+
+    /**
+     * @return the query, a single restriction is returned as is. The builder must not be used afterwards.
+     */
+    public Query build()
+    {
+        BooleanClause[] clauses = query.getClauses();
+        return clauses.length == 1 ? clauses[0].getQuery() : query;
+    }
+
+    /**
+     * @return the <code>q</code> or <code>fq</code> value for the query in this request
+     */
+    public String toParam( SolrQueryRequest req )
+    {
+        return toParam( req, build(), null );
+    }
+
+    /**
+     * @param tag the tag of the filter, so faceting can exclude it
+     * @return the <code>fq</code> value for the query in this request
+     */
+    public static String toParam( SolrQueryRequest req, Query query, String tag )
+    {
+        return NYPhilQueryQParserPlugin.toParam( req, query, tag );
+    }
+
+    private NYPhilQueryBuilder add( Query clause )
+    {
+        query.add( clause, BooleanClause.Occur.MUST );
+        return this;
+    }
+}
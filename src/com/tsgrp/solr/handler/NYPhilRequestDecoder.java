@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) Technology Services Group, Inc.
+ *
+ * Licensed under the Mozilla Public License version 1.1 with a permitted attribution clause. You may obtain a copy of
+ * the License at
+ *
+ * http://www.tsgrp.com/legal/license
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.tsgrp.solr.handler;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.SolrParams;
+
+/**
+ * Decodes and validates the request parameters of the NY Phil handlers. All methods are static and keep no state, so
+ * they are safe to use from concurrent requests (unlike a shared <code>SimpleDateFormat</code>). Values are checked
+ * in place on the parameter string without creating trimmed or lower cased copies, and any invalid value is reported
+ * as a {@link SolrException.ErrorCode#BAD_REQUEST} naming the parameter.
+ *
+ * @author Technology Services Group
+ * @version 1.0
+ *
+ *          <h2>Modification History</h2>
+ *          <ul>
+ *          <li>Oct 18, 2026 Created.</li>
+ *          </ul>
+ *          <p>
+ *          Copyright &copy; 2026 Technology Services Group, Inc.
+ *          </p>
+ */
+public final class NYPhilRequestDecoder
+{
+
+    private static final int[] DAYS_IN_MONTH = { 31, 29, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31 };
+
+    private NYPhilRequestDecoder()
+    {
+    }
+
+    /**
+     * @return true if the value is null or only whitespace
+     */
+    public static boolean isBlank( String value )
+    {
+        if (value == null)
+        {
+            return true;
+        }
+        for (int i = 0; i < value.length(); i++)
+        {
+            if (!Character.isWhitespace( value.charAt( i ) ))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the param value, or null if it is missing or blank. The value is only trimmed (copied) if it has
+     *         leading or trailing whitespace.
+     */
+    public static String getString( SolrParams params, String name )
+    {
+        String value = params.get( name );
+        if (isBlank( value ))
+        {
+            return null;
+        }
+        if (Character.isWhitespace( value.charAt( 0 ) ) || Character.isWhitespace( value.charAt( value.length() - 1 ) ))
+        {
+            return value.trim();
+        }
+        return value;
+    }
+
+    /**
+     * @return the param value, never null
+     * @throws SolrException if the param is missing or blank
+     */
+    public static String getRequiredString( SolrParams params, String name, String message )
+    {
+        String value = getString( params, name );
+        if (value == null)
+        {
+            throw badRequest( message );
+        }
+        return value;
+    }
+
+    /**
+     * Parses a boolean flag. Missing or blank values use the default, otherwise the value must be "true" or "false"
+     * in any case.
+     */
+    public static boolean getBoolean( SolrParams params, String name, boolean defaultValue )
+    {
+        String value = getString( params, name );
+        if (value == null)
+        {
+            return defaultValue;
+        }
+        if (value.equalsIgnoreCase( "true" ))
+        {
+            return true;
+        }
+        if (value.equalsIgnoreCase( "false" ))
+        {
+            return false;
+        }
+        throw badRequest( "Invalid value for " + name + ", expected true or false: " + value );
+    }
+
+    /**
+     * Parses a positive (&gt;= 1) integer such as a page index or page size. Missing or blank values use the default.
+     */
+    public static int getPositiveInt( SolrParams params, String name, int defaultValue )
+    {
+        String value = getString( params, name );
+        if (value == null)
+        {
+            return defaultValue;
+        }
+
+        int result = 0;
+        int len = value.length();
+        //more than 9 digits could overflow
+        if (len > 9)
+        {
+            throw badRequest( "Invalid value for " + name + ", expected a positive number: " + value );
+        }
+        for (int i = 0; i < len; i++)
+        {
+            char ch = value.charAt( i );
+            if (ch < '0' || ch > '9')
+            {
+                throw badRequest( "Invalid value for " + name + ", expected a positive number: " + value );
+            }
+            result = result * 10 + (ch - '0');
+        }
+        if (result < 1)
+        {
+            throw badRequest( "Invalid value for " + name + ", expected a positive number: " + value );
+        }
+        return result;
+    }
+
+    /**
+     * Validates a <code>yyyyMMdd</code> date.
+     *
+     * @return the date as the number yyyyMMdd, or -1 if the param is missing or blank
+     */
+    public static int getDate( SolrParams params, String name )
+    {
+        String value = getString( params, name );
+        if (value == null)
+        {
+            return -1;
+        }
+        if (value.length() != 8)
+        {
+            throw badRequest( "Invalid value for " + name + ", expected a yyyyMMdd date: " + value );
+        }
+
+        int date = 0;
+        for (int i = 0; i < 8; i++)
+        {
+            char ch = value.charAt( i );
+            if (ch < '0' || ch > '9')
+            {
+                throw badRequest( "Invalid value for " + name + ", expected a yyyyMMdd date: " + value );
+            }
+            date = date * 10 + (ch - '0');
+        }
+
+        int year = date / 10000;
+        int month = (date / 100) % 100;
+        int day = date % 100;
+        boolean leap = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+        if (month < 1 || month > 12 || day < 1 || day > DAYS_IN_MONTH[month - 1] || (month == 2 && day == 29 && !leap))
+        {
+            throw badRequest( "Invalid value for " + name + ", expected a yyyyMMdd date: " + value );
+        }
+        return date;
+    }
+
+    /**
+     * @return the document type selected by the param, never null
+     * @throws SolrException if the param is missing or does not name a document type
+     */
+    public static NYPhilDocType getDocType( SolrParams params, String name )
+    {
+        String value = getString( params, name );
+        NYPhilDocType docType = NYPhilDocType.fromParamValue( value );
+        if (docType == null)
+        {
+            throw badRequest( "Invalid document type: " + (value == null ? "" : value) );
+        }
+        return docType;
+    }
+
+    /**
+     * Splits a list param, values may be comma separated and the param repeated. Values are trimmed, blank and
+     * duplicate values are dropped.
+     *
+     * @return the values in request order, empty if the param is missing
+     * @throws SolrException if there are more than max values
+     */
+    public static List<String> getList( SolrParams params, String name, int max )
+    {
+        Set<String> values = new LinkedHashSet<String>();
+        String[] raw = params.getParams( name );
+        if (raw != null)
+        {
+            for (String param : raw)
+            {
+                for (String value : param.split( "," ))
+                {
+                    if (!isBlank( value ))
+                    {
+                        values.add( value.trim() );
+                    }
+                }
+            }
+        }
+        if (values.size() > max)
+        {
+            throw badRequest( "Too many values for " + name + ", at most " + max + " are allowed" );
+        }
+        return new ArrayList<String>( values );
+    }
+
+    /**
+     * Parses a comma separated list of exactly count numbers, such as the corners of a region.
+     *
+     * @return the numbers or null if the param is missing or blank
+     */
+    public static float[] getFloats( SolrParams params, String name, int count )
+    {
+        String value = getString( params, name );
+        if (value == null)
+        {
+            return null;
+        }
+
+        String[] parts = value.split( "," );
+        if (parts.length != count)
+        {
+            throw badRequest( "Invalid value for " + name + ", expected " + count + " comma separated numbers: " + value );
+        }
+        float[] result = new float[count];
+        for (int i = 0; i < count; i++)
+        {
+            try
+            {
+                result[i] = Float.parseFloat( parts[i].trim() );
+            }
+            catch (NumberFormatException e)
+            {
+                throw badRequest( "Invalid value for " + name + ", expected " + count + " comma separated numbers: " + value );
+            }
+            if (Float.isNaN( result[i] ) || Float.isInfinite( result[i] ))
+            {
+                throw badRequest( "Invalid value for " + name + ", expected " + count + " comma separated numbers: " + value );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Validates a JSONP callback name, only javascript identifiers and dotted paths are accepted.
+     *
+     * @return the callback or null if it is missing or blank
+     */
+    public static String getCallback( SolrParams params, String name )
+    {
+        String value = getString( params, name );
+        if (value == null)
+        {
+            return null;
+        }
+        for (int i = 0; i < value.length(); i++)
+        {
+            char ch = value.charAt( i );
+            boolean valid = (i == 0) ? Character.isJavaIdentifierStart( ch ) : (Character.isJavaIdentifierPart( ch ) || ch == '.');
+            if (!valid)
+            {
+                throw badRequest( "Invalid value for " + name + ": " + value );
+            }
+        }
+        return value;
+    }
+
+    private static SolrException badRequest( String message )
+    {
+        return new SolrException( SolrException.ErrorCode.BAD_REQUEST, message );
+    }
+}
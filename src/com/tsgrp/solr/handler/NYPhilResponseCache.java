@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) Technology Services Group, Inc.
+ *
+ * Licensed under the Mozilla Public License version 1.1 with a permitted attribution clause. You may obtain a copy of
+ * the License at
+ *
+ * http://www.tsgrp.com/legal/license
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.tsgrp.solr.handler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.JavaBinCodec;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.SolrEventListener;
+import org.apache.solr.request.BinaryResponseWriter;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrQueryResponse;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * Whole responses of {@link NYPhilSearchHandler}, so the same landing searches repeated between commits skip
+ * parsing, searching, faceting and highlighting. Responses are stored serialized in the javabin format (documents
+ * already loaded with the requested fields), keyed on the normalized translated params and bounded by their total
+ * size in bytes, least recently used entries are evicted first.
+ * <p>
+ * The cache is registered as a new searcher listener and cleared when a new searcher is registered. Every entry also
+ * records the index version it was built from and is only returned for that version, so a request still running on
+ * the old searcher can not serve stale results, and those results are not cached once the new searcher is registered.
+ *
+ * @author Technology Services Group
+ * @version 1.0
+ *
+ *          <h2>Modification History</h2>
+ *          <ul>
+ *          <li>Oct 18, 2026 Created.</li>
+ *          </ul>
+ *          <p>
+ *          Copyright &copy; 2026 Technology Services Group, Inc.
+ *          </p>
+ */
+public class NYPhilResponseCache implements SolrEventListener
+{
+
+    /** params that only change how the response is written, the cached values are the same for all of them */
+    private static final Set<String> WRITER_PARAMS = new HashSet<String>();
+    static
+    {
+        WRITER_PARAMS.add( CommonParams.WT );
+        WRITER_PARAMS.add( CommonParams.VERSION );
+        WRITER_PARAMS.add( CommonParams.HEADER_ECHO_PARAMS );
+        WRITER_PARAMS.add( CommonParams.HEADER_ECHO_HANDLER );
+        WRITER_PARAMS.add( "indent" );
+        WRITER_PARAMS.add( "json.wrf" );
+        WRITER_PARAMS.add( "json.nl" );
+    }
+
+    private static final String RESPONSE_HEADER = "responseHeader";
+
+    private static class Entry
+    {
+        final long version;
+
+        final byte[] bytes;
+
+        Entry( long version, byte[] bytes )
+        {
+            this.version = version;
+            this.bytes = bytes;
+        }
+    }
+
+    private final long maxBytes;
+
+    private long bytes;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>( 64, 0.75f, true );
+
+    /** version of the latest searcher, -1 until a new searcher is registered */
+    private long version = -1;
+
+    /**
+     * @param maxBytes the maximum total size of the cached responses and their keys
+     */
+    public NYPhilResponseCache( long maxBytes )
+    {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the cache key for the final params of a request, or null if the request should not be cached
+     */
+    public static String getKey( SolrParams params )
+    {
+        if (params.getBool( CommonParams.DEBUG_QUERY, false ))
+        {
+            return null;
+        }
+
+        List<String> names = new ArrayList<String>();
+        for (Iterator<String> it = params.getParameterNamesIterator(); it.hasNext();)
+        {
+            String name = it.next();
+            if (!WRITER_PARAMS.contains( name ))
+            {
+                names.add( name );
+            }
+        }
+        Collections.sort( names );
+
+        StringBuilder key = new StringBuilder();
+        for (String name : names)
+        {
+            key.append( name );
+            for (String value : params.getParams( name ))
+            {
+                key.append( '=' ).append( value );
+            }
+            key.append( '\u0000' );
+        }
+        return key.toString();
+    }
+
+    /**
+     * Adds the cached response values to the response.
+     *
+     * @return true if the response was cached for the index version of the request
+     */
+    public boolean addCachedResponse( String key, SolrQueryRequest req, SolrQueryResponse rsp ) throws IOException
+    {
+        long version = req.getSearcher().getReader().getVersion();
+        Entry entry;
+        synchronized (this)
+        {
+            entry = entries.get( key );
+        }
+        if (entry == null || entry.version != version)
+        {
+            return false;
+        }
+
+        NamedList values = (NamedList)new JavaBinCodec().unmarshal( new ByteArrayInputStream( entry.bytes ) );
+        for (int i = 0; i < values.size(); i++)
+        {
+            //the header is built for each request
+            if (!RESPONSE_HEADER.equals( values.getName( i ) ))
+            {
+                rsp.add( values.getName( i ), values.getVal( i ) );
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Serializes and caches a successful response.
+     */
+    public void put( String key, SolrQueryRequest req, SolrQueryResponse rsp ) throws IOException
+    {
+        if (rsp.getException() != null)
+        {
+            return;
+        }
+
+        long version = req.getSearcher().getReader().getVersion();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new BinaryResponseWriter().write( out, req, rsp );
+        Entry entry = new Entry( version, out.toByteArray() );
+        long size = size( key, entry );
+        if (size > maxBytes)
+        {
+            return;
+        }
+
+        synchronized (this)
+        {
+            //a request on an older searcher would refill the cache cleared for the new one
+            if (this.version != -1 && this.version != version)
+            {
+                return;
+            }
+
+            Entry old = entries.put( key, entry );
+            if (old != null)
+            {
+                bytes -= size( key, old );
+            }
+            bytes += size;
+
+            //evict the least recently used entries
+            for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); bytes > maxBytes && it.hasNext();)
+            {
+                Map.Entry<String, Entry> eldest = it.next();
+                bytes -= size( eldest.getKey(), eldest.getValue() );
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void clear()
+    {
+        entries.clear();
+        bytes = 0;
+    }
+
+    private static long size( String key, Entry entry )
+    {
+        return entry.bytes.length + 2L * key.length();
+    }
+
+    /**
+     * @see org.apache.solr.core.SolrEventListener#init(org.apache.solr.common.util.NamedList)
+     */
+    public void init( NamedList args )
+    {
+    }
+
+    /**
+     * @see org.apache.solr.core.SolrEventListener#postCommit()
+     */
+    public void postCommit()
+    {
+    }
+
+    /**
+     * @see org.apache.solr.core.SolrEventListener#newSearcher(org.apache.solr.search.SolrIndexSearcher,
+     *      org.apache.solr.search.SolrIndexSearcher)
+     */
+    public synchronized void newSearcher( SolrIndexSearcher newSearcher, SolrIndexSearcher currentSearcher )
+    {
+        clear();
+        version = newSearcher.getReader().getVersion();
+    }
+}
@@ -12,23 +12,32 @@
  */
 package com.tsgrp.solr.handler;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.regex.Pattern;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.lucene.queryParser.ParseException;
+import org.apache.lucene.search.Sort;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.params.CommonParams;
-import org.apache.solr.common.params.DisMaxParams;
-import org.apache.solr.common.params.FacetParams;
 import org.apache.solr.common.params.HighlightParams;
+import org.apache.solr.common.params.MultiMapSolrParams;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.handler.component.SearchComponent;
 import org.apache.solr.handler.component.SearchHandler;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.request.SolrQueryResponse;
-import org.apache.solr.schema.DateField;
+import org.apache.solr.search.DocIterator;
+import org.apache.solr.search.DocList;
 import org.apache.solr.search.ExtendedDismaxQParserPlugin;
+import org.apache.solr.search.NYPhilCursor;
+import org.apache.solr.search.NYPhilCursorQParserPlugin;
+import org.apache.solr.search.NYPhilDateQParserPlugin;
+import org.apache.solr.search.QueryParsing;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -59,6 +68,8 @@ public class NYPhilSearchHandler extends SearchHandler
 
     private static final String PARAM_GENERATE_FACETS = "generateFacets";
 
+    private static final String PARAM_HIGHLIGHT = "highlight";
+
     private static final String PARAM_PAGE_INDEX = "index";
 
     private static final String PARAM_RESULTS_PER_PAGE = "resultsPerPage";
@@ -75,10 +86,109 @@ public class NYPhilSearchHandler extends SearchHandler
     
     private static final String PARAM_DATE_TO = "dateTo";
     
+    /**
+     * deep paging, "*" for the first page then the nextCursor of the previous page. Replaces the index param.
+     */
+    private static final String PARAM_CURSOR = "cursor";
+    
+    private static final String RESPONSE_NEXT_CURSOR = "nextCursor";
+    
+    private static final String RESPONSE_HEADER = "responseHeader";
+    
+    /**
+     * response header entry with the degradation step of a keyword search over the cost budget, see
+     * {@link ExtendedDismaxQParserPlugin#DEGRADED}
+     */
+    private static final String RESPONSE_DEGRADED = "degraded";
+    
+    
+    /**
+     * no date queries, just perform query based on type restrictions
+     */
+    private static final String TYPE_COUNTS_QUERY = "{!" + NYPhilDateQParserPlugin.NAME + "}";
+    
+    /**
+     * init arg, maximum size in bytes of the cached responses, 0 disables the cache
+     */
+    private static final String INIT_RESPONSE_CACHE_BYTES = "responseCacheBytes";
+    
+    private static final long DEFAULT_RESPONSE_CACHE_BYTES = 16L * 1024 * 1024;
+    
+    /**
+     * init arg, maximum estimated cost in postings of a keyword search before it is made cheaper, 0 disables it. Always
+     * sent by the handler, so requests can neither raise nor remove it.
+     */
+    private static final String INIT_COST_BUDGET = ExtendedDismaxQParserPlugin.COST_BUDGET;
     
-    private SimpleDateFormat DATE_FORMAT_PARAM = new SimpleDateFormat( "yyyyMMdd" );
+    private static final int DEFAULT_COST_BUDGET = 10000000;
+    
+    /**
+     * init arg, qf of a keyword search still over the cost budget without its phrase boosts, by default the most
+     * boosted query fields
+     */
+    private static final String INIT_BUDGET_QF = ExtendedDismaxQParserPlugin.BUDGET_QF;
+    
+    /**
+     * static params for each document type, built once from the init args
+     */
+    private Map<NYPhilDocType, NYPhilSearchPlan> plans;
+    
+    /**
+     * whole responses of repeated searches, null if disabled
+     */
+    private NYPhilResponseCache responseCache;
+    
+    private int costBudget;
+    
+    private String budgetQf;
+    
+    /**
+     * true if the components page after a cursor mark themselves, see {@link NYPhilCursorQueryComponent}
+     */
+    private boolean cursorComponent;
+    
+    /**
+     * @see org.apache.solr.handler.RequestHandlerBase#init(org.apache.solr.common.util.NamedList)
+     */
+    @Override
+    public void init( NamedList args )
+    {
+        super.init( args );
+        
+        plans = NYPhilSearchPlan.buildPlans( args );
+        
+        Object cacheBytes = args == null ? null : args.get( INIT_RESPONSE_CACHE_BYTES );
+        long maxBytes = cacheBytes == null ? DEFAULT_RESPONSE_CACHE_BYTES : Long.parseLong( cacheBytes.toString() );
+        if (maxBytes > 0)
+        {
+            responseCache = new NYPhilResponseCache( maxBytes );
+        }
+        
+        Object budget = args == null ? null : args.get( INIT_COST_BUDGET );
+        costBudget = budget == null ? DEFAULT_COST_BUDGET : Integer.parseInt( budget.toString() );
+        Object qf = args == null ? null : args.get( INIT_BUDGET_QF );
+        budgetQf = qf == null ? null : qf.toString();
+    }
     
-    private DateField solrField = new DateField();
+    /**
+     * @see org.apache.solr.handler.component.SearchHandler#inform(org.apache.solr.core.SolrCore)
+     */
+    @Override
+    public void inform( SolrCore core )
+    {
+        super.inform( core );
+        
+        for (SearchComponent component : components)
+        {
+            cursorComponent |= component instanceof NYPhilCursorQueryComponent;
+        }
+        
+        if (responseCache != null)
+        {
+            //cached responses are dropped as soon as a new searcher is registered
+            core.registerNewSearcherListener( responseCache );
+        }
+    }
 
     /**
      * @see org.apache.solr.handler.component.SearchHandler#handleRequestBody(org.apache.solr.request.SolrQueryRequest,
@@ -89,369 +199,257 @@ public class NYPhilSearchHandler extends SearchHandler
     {
         SolrParams requestParams = req.getParams();
         
-        NamedList<Object> params = requestParams.toNamedList();
+        //only the dynamic values are set here, everything else comes from the doctype plan
+        Map<String, String[]> overlay = new HashMap<String, String[]>();
         
         //for now lets echo the handler and all the params for debugging purposes
-        //params.add( CommonParams.HEADER_ECHO_HANDLER, Boolean.TRUE );
-        //params.add( CommonParams.HEADER_ECHO_PARAMS, CommonParams.EchoParamStyle.ALL );
+        //overlay.put( CommonParams.HEADER_ECHO_HANDLER, new String[] { "true" } );
+        //overlay.put( CommonParams.HEADER_ECHO_PARAMS, new String[] { CommonParams.EchoParamStyle.ALL.toString() } );
         
-        String rows = (String)params.get( CommonParams.ROWS );
-        if (rows == null || rows.trim().length() < 1)
+        if (NYPhilRequestDecoder.isBlank( requestParams.get( CommonParams.ROWS ) ))
         {
             //setup items per page, default to 10 items
-            params.add( CommonParams.ROWS, 10 );
-            rows = "10";
+            overlay.put( CommonParams.ROWS, new String[] { "10" } );
         }
         
-        //enable faceting and only return facets with at least 1 item
-        params.add( FacetParams.FACET, Boolean.TRUE );
-        params.add( FacetParams.FACET_MINCOUNT, 1 );
-        
-        //defult ordering to index order (alphabetical)
-        params.add( FacetParams.FACET_SORT, FacetParams.FACET_SORT_INDEX);
-        
-        //only return a maximum of 10 facet values
-        params.add( FacetParams.FACET_LIMIT, 10);
-        
         //always add facets unless they are explicitly not requested
-        String addFacets = (String)params.get( PARAM_GENERATE_FACETS );
-        boolean generateFacets = (addFacets == null ) ? true : addFacets.equalsIgnoreCase("true"); 
+        boolean generateFacets = NYPhilRequestDecoder.getBoolean( requestParams, PARAM_GENERATE_FACETS, true );
+        
+        //snippets are only built when the page displays them, for the whitelisted fields of the doctype
+        boolean highlight = NYPhilRequestDecoder.getBoolean( requestParams, PARAM_HIGHLIGHT, false );
+        overlay.put( HighlightParams.HIGHLIGHT, new String[] { Boolean.toString( highlight ) } );
                 
-        //enable highlighting
-        params.add( HighlightParams.HIGHLIGHT, Boolean.TRUE );
-
-        //remove the query if provided, always want to use our translated query
-        String originalQuery = (String)params.remove( CommonParams.Q );
+        //the query provided is replaced, always want to use our translated query
+        String originalQuery = requestParams.get( CommonParams.Q );
         
         if (logger.isDebugEnabled())
         {
             logger.debug("Original query: " + originalQuery);            
         }
         
+        NYPhilDocType docType = NYPhilRequestDecoder.getDocType( requestParams, PARAM_DOCTYPE );
+        
         //setup sorting params
-        String sortColumn = (String)params.get( PARAM_SORT_COLUMN );
-        String sortOrder = (String)params.get( PARAM_SORT_ORDER );
+        String sortColumn = NYPhilRequestDecoder.getString( requestParams, PARAM_SORT_COLUMN );
+        String sortOrder = NYPhilRequestDecoder.getString( requestParams, PARAM_SORT_ORDER );
+        String sort = null;
         if (sortColumn != null && sortOrder != null)
         {
-            params.add( CommonParams.SORT, sortColumn + " " + sortOrder );
+            sort = sortColumn + " " + sortOrder;
+            
+            // if sort parameter has been supplied (e.g. non-facet search) - apply additional part sorting
+            if (docType == NYPhilDocType.PART)
+            {
+                logger.debug("Addition additional sort parameter for PART type...");
+                sort = sort + ", npm:PartID ASC";
+            }
         }
         
         //get date fields
-        String sDateFrom = (String)params.get( PARAM_DATE_FROM );
-        String sDateTo = (String)params.get( PARAM_DATE_TO );
-        Date dateFrom = null;
-        Date dateTo = null;
-        if (sDateFrom != null && sDateTo != null)
-        {
-            dateFrom = DATE_FORMAT_PARAM.parse( sDateFrom );
-            dateTo = DATE_FORMAT_PARAM.parse(sDateTo);    
-        }
+        int dateFrom = NYPhilRequestDecoder.getDate( requestParams, PARAM_DATE_FROM );
+        int dateTo = NYPhilRequestDecoder.getDate( requestParams, PARAM_DATE_TO );
         
-        String keywords = (String)params.get( PARAM_KEYWORDS );
+        String keywords = NYPhilRequestDecoder.getString( requestParams, PARAM_KEYWORDS );
+        boolean matchAll = keywords == null;
         
-        if (keywords == null || keywords.trim().length() < 1)
+        if (keywords == null)
         {
             //query everything since nothing was provided
             keywords = "*";
         }
         
-        //always use the extended dismax parser
-        params.add( "defType", ExtendedDismaxQParserPlugin.NAME );
-        
         //the keywords sent in are the query since we're in DISMAX mode
-        params.add( CommonParams.Q, keywords );
+        overlay.put( CommonParams.Q, new String[] { keywords } );
         
-        String pageIndex = (String)params.get( PARAM_PAGE_INDEX );
-        String resultsPerPage = (String)params.get( PARAM_RESULTS_PER_PAGE );
-        if (resultsPerPage == null || resultsPerPage.trim().length() < 0)
+        //pathological keywords are made cheaper whatever the request asks for
+        overlay.put( ExtendedDismaxQParserPlugin.COST_BUDGET, new String[] { Integer.toString( costBudget ) } );
+        if (budgetQf != null)
         {
-            resultsPerPage = "10";
+            overlay.put( ExtendedDismaxQParserPlugin.BUDGET_QF, new String[] { budgetQf } );
         }
         
-        if (pageIndex == null || pageIndex.trim().length() < 1)
-        {
-            pageIndex = "1";
-        }
+        int pageIndex = NYPhilRequestDecoder.getPositiveInt( requestParams, PARAM_PAGE_INDEX, 1 );
+        int resultsPerPage = NYPhilRequestDecoder.getPositiveInt( requestParams, PARAM_RESULTS_PER_PAGE, 10 );
         
         //figure out the skip count, use the (pageIndex - 1) * resultsPerPage
         //ie pageIndex = 3, 10 results per page, we'll set start to (3-1)*10 = 20
-        int start = (Integer.parseInt( pageIndex ) - 1 ) * Integer.parseInt(resultsPerPage);
-        params.add( CommonParams.START, start );
+        long skip = (long)(pageIndex - 1) * resultsPerPage;
+        if (skip > Integer.MAX_VALUE)
+        {
+            throw new SolrException( SolrException.ErrorCode.BAD_REQUEST, "Page index out of range: " + pageIndex );
+        }
+        int start = (int)skip;
         
+        List<String> filterQueries = new ArrayList<String>( 4 );
         
-        String doctype = (String)params.get( PARAM_DOCTYPE );
-        if (doctype == null || doctype.trim().length() < 1)
+        //in cursor mode the sort always ends with the unique key so a page can be marked by its last document,
+        //a relevance sort on keywords can't be marked and is paged by offset
+        String cursorParam = NYPhilRequestDecoder.getString( requestParams, PARAM_CURSOR );
+        Sort cursorSort = null;
+        if (cursorParam != null)
         {
-            doctype = "";
+            String uniqueKey = req.getSchema().getUniqueKeyField().getName();
+            if (sort != null)
+            {
+                sort = sort + ", " + uniqueKey + " asc";
+            }
+            else if (matchAll)
+            {
+                //every document scores the same, so relevance order is the index order anyway
+                sort = uniqueKey + " asc";
+            }
+            
+            if (sort != null)
+            {
+                cursorSort = QueryParsing.parseSort( sort, req.getSchema() );
+                if (!NYPhilCursor.isMarkable( cursorSort ))
+                {
+                    cursorSort = null;
+                }
+            }
+            
+            start = 0;
+            if (!NYPhilCursor.FIRST.equals( cursorParam ))
+            {
+                NYPhilCursor cursor = NYPhilCursor.decode( cursorParam );
+                if (!cursor.getSortSpec().equals( sort == null ? "" : sort ))
+                {
+                    throw new SolrException( SolrException.ErrorCode.BAD_REQUEST, "The cursor does not match the requested sort, start again with " + PARAM_CURSOR + "=" + NYPhilCursor.FIRST );
+                }
+                if (cursor.isMark() && cursorComponent)
+                {
+                    //applied while collecting the page, so the matches and facets are counted without it
+                    overlay.put( NYPhilCursorQueryComponent.PARAM_CURSOR_MARK, new String[] { cursorParam } );
+                }
+                else if (cursor.isMark())
+                {
+                    //the default query component only pages with a filter, the counts are of the documents after the mark
+                    filterQueries.add( "{!" + NYPhilCursorQParserPlugin.NAME + "}" + cursorParam );
+                }
+                start = cursor.getOffset();
+            }
         }
+        
+        if (sort != null)
+        {
+            overlay.put( CommonParams.SORT, new String[] { sort } );
+        }
+        overlay.put( CommonParams.START, new String[] { Integer.toString( start ) } );
 
-        String facetQuery = (String)params.get( PARAM_FACET_QUERY );
-        if (facetQuery != null && facetQuery.trim().length() > 0)
+        String facetQuery = NYPhilRequestDecoder.getString( requestParams, PARAM_FACET_QUERY );
+        if (facetQuery != null)
         {
             //facetQuery is pre formatted and correct, just add it as a filter query
-            params.add( CommonParams.FQ, facetQuery );
+            filterQueries.add( facetQuery );
         }
         
-        String suggestedQuery = (String)params.get( PARAM_SUGGESTED_QUERY );
-        if (suggestedQuery != null && suggestedQuery.trim().length() > 0)
+        String suggestedQuery = NYPhilRequestDecoder.getString( requestParams, PARAM_SUGGESTED_QUERY );
+        if (suggestedQuery != null)
         {
             //suggestedQuery is pre formatted and correct, just add it as a filter query
-            params.add( CommonParams.FQ, suggestedQuery );
+            filterQueries.add( suggestedQuery );
         }
-                        
-        //base fields
-        params.add( DisMaxParams.QF, "nyp:DocumentType" );
-        params.add( DisMaxParams.QF, "nyp:Notes");
-        
-        //program fields
-        params.add( DisMaxParams.QF, "npp:ProgramID" );
-        params.add( DisMaxParams.QF, "npp:Season" );
-        params.add( DisMaxParams.QF, "npp:OrchestraCode" );
-        params.add( DisMaxParams.QF, "npp:OrchestraName" );
-        params.add( DisMaxParams.QF, "npp:LocationName" );
-        params.add( DisMaxParams.QF, "npp:VenueName" );
-        params.add( DisMaxParams.QF, "npp:EventTypeName" );
-        params.add( DisMaxParams.QF, "npp:SubEventName" );
-        params.add( DisMaxParams.QF, "npp:ConductorName" );
-        params.add( DisMaxParams.QF, "npp:SoloistsNames" );
-        params.add( DisMaxParams.QF, "npp:SoloistsInstrumentName" );
-        params.add( DisMaxParams.QF, "npp:WorksComposerNames" );
-        params.add( DisMaxParams.QF, "npp:WorksTitle" );
-        params.add( DisMaxParams.QF, "npp:WorksShortTitle" );
-        params.add( DisMaxParams.QF, "npp:WorksConductorNames" );
-        
-        //printedMusic fields
-        params.add( DisMaxParams.QF, "npm:LibraryID" );
-        params.add( DisMaxParams.QF, "npm:ShortTitle" );
-        params.add( DisMaxParams.QF, "npm:ComposerName" );
-        params.add( DisMaxParams.QF, "npm:PublisherName" );
-        params.add( DisMaxParams.QF, "npm:ComposerNameTitle" );
-        params.add( DisMaxParams.QF, "npm:ScoreMarkingArtist" );
-        params.add( DisMaxParams.QF, "npm:ScoreEditionTypeDesc" );
-        params.add( DisMaxParams.QF, "npm:ScoreNotes" );
-
-        //part fields
-        params.add( DisMaxParams.QF, "npm:PartTypeDesc" );
-        params.add( DisMaxParams.QF, "npm:PartMarkingArtist" );
-        params.add( DisMaxParams.QF, "npm:UsedByArtistName" );
-
-        //businessRecord fields
-        params.add( DisMaxParams.QF, "npb:BoxNumber" );
-        params.add( DisMaxParams.QF, "npb:RecordGroup" );
-        params.add( DisMaxParams.QF, "npb:Series" );
-        params.add( DisMaxParams.QF, "npb:SubSeries" );
-        params.add( DisMaxParams.QF, "npb:Folder" );
-        params.add( DisMaxParams.QF, "npb:Names" );
-        params.add( DisMaxParams.QF, "npb:Subject" );
-        params.add( DisMaxParams.QF, "npb:Abstract" );
-        
-        //visual fields
-        params.add( DisMaxParams.QF, "npv:ID" );
-        params.add( DisMaxParams.QF, "npv:BoxNumber" );
-        params.add( DisMaxParams.QF, "npv:PhilharmonicSource" );
-        params.add( DisMaxParams.QF, "npv:OutsideSource" );
-        params.add( DisMaxParams.QF, "npv:Photographer" );
-        params.add( DisMaxParams.QF, "npv:CopyrightHolder" );
-        params.add( DisMaxParams.QF, "npv:PlaceOfImage" );
-        params.add( DisMaxParams.QF, "npv:PersonalNames" );
-        params.add( DisMaxParams.QF, "npv:CorporateNames" );
-        params.add( DisMaxParams.QF, "npv:Event" );
-        params.add( DisMaxParams.QF, "npv:ImageType" );
-        params.add( DisMaxParams.QF, "npv:LocationName" );
-        params.add( DisMaxParams.QF, "npv:VenueName" );        
-        
-        //audio fields
-        params.add( DisMaxParams.QF, "npa:ProgramID" );
-        params.add( DisMaxParams.QF, "npa:Location" );
-        params.add( DisMaxParams.QF, "npa:EventTypeName" );
-        params.add( DisMaxParams.QF, "npa:ConductorName" );
-        params.add( DisMaxParams.QF, "npa:SoloistsAndInstruments" );
-        params.add( DisMaxParams.QF, "npa:ComposerWork" );
-        params.add( DisMaxParams.QF, "npa:OrchestraName" );
-        params.add( DisMaxParams.QF, "npa:IntermissionFeature" );
-        params.add( DisMaxParams.QF, "npa:LocationName" );
-        params.add( DisMaxParams.QF, "npa:VenueName" );
-        params.add( DisMaxParams.QF, "npa:SubEventName" );
-        params.add( DisMaxParams.QF, "npa:URLLocation" );
-        params.add( DisMaxParams.QF, "npa:IntermissionGuests" );
-        params.add( DisMaxParams.QF, "npa:Announcer" );
-        
-        //video fields
-        params.add( DisMaxParams.QF, "npx:ProgramID" );
-        params.add( DisMaxParams.QF, "npx:Location" );
-        params.add( DisMaxParams.QF, "npx:EventTypeName" );
-        params.add( DisMaxParams.QF, "npx:ConductorName" );
-        params.add( DisMaxParams.QF, "npx:SoloistsAndInstruments" );
-        params.add( DisMaxParams.QF, "npx:ComposerNameWork" );
-        params.add( DisMaxParams.QF, "npx:OrchestraName" );
-        params.add( DisMaxParams.QF, "npx:IntermissionFeature" );
-        params.add( DisMaxParams.QF, "npx:LocationName" );
-        params.add( DisMaxParams.QF, "npx:VenueName" );
-        params.add( DisMaxParams.QF, "npx:SubEventName" );
-        params.add( DisMaxParams.QF, "npx:IntermissionGuests" );
-        params.add( DisMaxParams.QF, "npx:Announcer" );
-        
-        params.add( DisMaxParams.QF, "npt:tagged" );
         
         //add in all the restrictions that can be applied to a document type count in the same filter query
         
         //this includes all DATE range queries
         //if a date query does not exist, the TYPE is queried so all results are shown
         //restriction is applied to business records so only the web publishable items are shown
-        StringBuffer filterTypesCountsQuery = new StringBuffer();
-        
-        if (dateFrom != null && dateTo != null)
+        //the rules for each type are evaluated natively by the nypdate parser, see NYPhilDateQParserPlugin
+        if (dateFrom != -1 && dateTo != -1)
         {
-            //program date query
-            filterTypesCountsQuery.append("(npp\\:Date:[" + solrField.toExternal( dateFrom ) + " TO " + solrField.toExternal( dateTo ) + "])");
-            
-            //printedMusic (scores) and parts have no date range, so just or in the type so those results come back
-            filterTypesCountsQuery.append(" OR (nyp\\:DocumentType:Printed Music)");
-            filterTypesCountsQuery.append(" OR (nyp\\:DocumentType:Part)");
-
-            //business record range AND web publishable restriction
-            filterTypesCountsQuery.append(" OR (nyp\\:WebPublishable:true AND ((npb\\:DateFrom:[" + solrField.toExternal( dateFrom ) + " TO *] AND npb\\:DateTo:[* TO " + solrField.toExternal( dateTo ) + "])");
-            filterTypesCountsQuery.append(" OR (npb\\:DateFrom:[* TO " + solrField.toExternal( dateFrom ) + "] AND npb\\:DateTo:[* TO " + solrField.toExternal( dateTo ) + "] AND npb\\:DateTo:[" + solrField.toExternal( dateFrom ) + " TO *])");
-            filterTypesCountsQuery.append(" OR (npb\\:DateFrom:[" + solrField.toExternal( dateFrom ) + " TO *] AND npb\\:DateTo:[" + solrField.toExternal( dateTo ) + " TO *] AND npb\\:DateFrom:[* TO " + solrField.toExternal( dateFrom ) + "])))"); 
-            
-            //visual
-            filterTypesCountsQuery.append(" OR ((npv\\:DateFrom:[" + solrField.toExternal( dateFrom ) + " TO *] AND npv\\:DateTo:[* TO " + solrField.toExternal( dateTo ) + "])");
-            filterTypesCountsQuery.append(" OR (npv\\:DateFrom:[* TO " + solrField.toExternal( dateFrom ) + "] AND npv\\:DateTo:[* TO " + solrField.toExternal( dateTo ) + "] AND npv\\:DateTo:[" + solrField.toExternal( dateFrom ) + " TO *])");
-            filterTypesCountsQuery.append(" OR (npv\\:DateFrom:[" + solrField.toExternal( dateFrom ) + " TO *] AND npv\\:DateTo:[" + solrField.toExternal( dateTo ) + " TO *] AND npv\\:DateFrom:[* TO " + solrField.toExternal( dateFrom ) + "]))");
-            
-            //audio
-            filterTypesCountsQuery.append(" OR (npa\\:Date:[" + solrField.toExternal( dateFrom ) + " TO " + solrField.toExternal( dateTo ) + "])");
-            
-            //video
-            filterTypesCountsQuery.append(" OR (npx\\:Date:[" + solrField.toExternal( dateFrom ) + " TO " + solrField.toExternal( dateTo ) + "])");
+            filterQueries.add( "{!" + NYPhilDateQParserPlugin.NAME + " " + NYPhilDateQParserPlugin.FROM + "=" + dateFrom + " "
+                    + NYPhilDateQParserPlugin.TO + "=" + dateTo + "}" );
         }
         else
         {
-            //no date queries, just perform query based on type restrictions            
-            filterTypesCountsQuery.append("(nyp\\:DocumentType:Program) OR (nyp\\:DocumentType:Printed Music)  OR (nyp\\:DocumentType:Part) OR (nyp\\:DocumentType:Business Record AND nyp\\:WebPublishable:true)");
-            filterTypesCountsQuery.append(" OR (nyp\\:DocumentType:Visual) OR (nyp\\:DocumentType:Audio) OR (nyp\\:DocumentType:Video)");
+            filterQueries.add( TYPE_COUNTS_QUERY );
         }
         
-        params.add( CommonParams.FQ, filterTypesCountsQuery );
+        //the document type restriction is tagged so the document type counts can exclude it
+        NYPhilSearchPlan plan = plans.get( docType );
+        filterQueries.add( NYPhilQueryBuilder.toParam( req, plan.getTypeFilter(), NYPhilSearchPlan.DOCUMENT_TYPE_TAG ) );
         
+        overlay.put( CommonParams.FQ, filterQueries.toArray( new String[filterQueries.size()] ) );
         
-        //default facet for document type that will always return the counts regardless of filter queries applied
-        params.add( FacetParams.FACET_FIELD, "{!ex=test}nyp:DocumentType_facet" );
-        //allow this facet to always display all values, even when there are 0 results for the type
-        params.add( "f.nyp:DocumentType_facet.facet.mincount", 0);
-
-        if (doctype.equalsIgnoreCase( "program" ))
-        {             
-            //set the document type restriction
-            params.add( CommonParams.FQ, "{!tag=test}nyp\\:DocumentType:Program" );
-            
-            if (generateFacets)
-            {
-                params.add( FacetParams.FACET_FIELD, "npp:ConductorName_facet" );
-                params.add( FacetParams.FACET_FIELD, "npp:SoloistsNames_facet" );
-                params.add( FacetParams.FACET_FIELD, "npp:WorksComposerNames_facet" );
-                params.add( FacetParams.FACET_FIELD, "npp:LocationName_facet" );
-                params.add( FacetParams.FACET_FIELD, "npp:VenueName_facet" );
-                params.add( FacetParams.FACET_FIELD, "npp:EventTypeName_facet" );
-                params.add( FacetParams.FACET_FIELD, "npp:Season_facet" );
-            }
-        }
-        else if (doctype.equalsIgnoreCase( "printedMusic" ))
+        //dynamic values first so they replace anything sent on the request, then the request, then the doctype plan
+        SolrParams params = new NYPhilLayeredParams( new MultiMapSolrParams( overlay ), requestParams, plan.getParams( generateFacets ) );
+        
+        if (logger.isDebugEnabled())
         {
-            //set the document type restriction
-            params.add( CommonParams.FQ, "{!tag=test}nyp\\:DocumentType:Printed Music" );
-            
-            if (generateFacets)
-            {
-                params.add( FacetParams.FACET_FIELD, "npm:ScoreMarkingArtist_facet" );
-                params.add( FacetParams.FACET_FIELD, "npm:ComposerName_facet" );
-            }
-
+            logger.debug("Params: " + params);            
         }
-        else if (doctype.equalsIgnoreCase( "part" ))
-        {
-            //set the document type restriction
-            params.add( CommonParams.FQ, "{!tag=test}nyp\\:DocumentType:Part" );
-
-            if (generateFacets)
-            {
-                params.add( FacetParams.FACET_FIELD, "npm:ComposerName_facet");
-                params.add( FacetParams.FACET_FIELD, "npm:UsedByArtistName_facet");
-                params.add( FacetParams.FACET_FIELD, "npm:PartMarkingArtist_facet");
-                params.add( FacetParams.FACET_FIELD, "npm:PartTypeDesc_facet");
-            }
-
-            // if sort parameter has been supplied (e.g. non-facet search) - apply additional part sorting
-            if (sortColumn != null && sortOrder != null) {
-                logger.debug("Addition additional sort parameter for PART type...");
-                String prevParams = (String)params.get(CommonParams.SORT);
-                String newParams = prevParams + ", npm:PartID ASC";
-                params.add(CommonParams.SORT, newParams);
-            }
 
+        //set the new request parameters, then call the default handler behavior
+        req.setParams( params );
+        
+        String cacheKey = responseCache == null ? null : NYPhilResponseCache.getKey( params );
+        if (cacheKey != null && responseCache.addCachedResponse( cacheKey, req, rsp ))
+        {
+            return;
         }
-        else if (doctype.equalsIgnoreCase("businessRecord"))
+        
+        super.handleRequestBody( req, rsp );
+        
+        if (cursorParam != null)
         {
-            //set the document type restriction
-            params.add( CommonParams.FQ, "{!tag=test}nyp\\:DocumentType:Business Record" );
-            
-            if (generateFacets)
-            {
-                params.add( FacetParams.FACET_FIELD, "npb:Names_facet" );
-                params.add( FacetParams.FACET_FIELD, "npb:Subject_facet" );
-                params.add( FacetParams.FACET_FIELD, "npb:RecordGroup_facet" );
-                params.add( FacetParams.FACET_FIELD, "npb:Series_facet" );
-                params.add( FacetParams.FACET_FIELD, "npb:SubSeries_facet" );
-            }
-            
+            addNextCursor( req, rsp, sort == null ? "" : sort, cursorSort, start );
         }
-        else if (doctype.equalsIgnoreCase("visual"))
+        
+        //a keyword search over the cost budget was made cheaper, the client is told how
+        Object degraded = req.getContext().get( ExtendedDismaxQParserPlugin.DEGRADED );
+        if (degraded != null)
         {
-            //set the document type restriction
-            params.add( CommonParams.FQ, "{!tag=test}nyp\\:DocumentType:Visual" );
-            
-            if (generateFacets)
+            NamedList header = (NamedList)rsp.getValues().get( RESPONSE_HEADER );
+            if (header != null)
             {
-                params.add( FacetParams.FACET_FIELD, "npv:Photographer_facet" );
-                params.add( FacetParams.FACET_FIELD, "npv:CopyrightHolder_facet" );
-                params.add( FacetParams.FACET_FIELD, "npv:ImageType_facet" );
-                params.add( FacetParams.FACET_FIELD, "npv:PlaceOfImage_facet" );
-                params.add( FacetParams.FACET_FIELD, "npv:Event_facet" );
-                params.add( FacetParams.FACET_FIELD, "npv:PersonalNames_facet" );
-                params.add( FacetParams.FACET_FIELD, "npv:LocationName_facet" );
-                params.add( FacetParams.FACET_FIELD, "npv:VenueName_facet" );
+                header.add( RESPONSE_DEGRADED, degraded );
             }
-                        
         }
-        else if (doctype.equalsIgnoreCase("audio"))
+        
+        //the header is not cached, a degraded response would be replayed without it
+        if (cacheKey != null && degraded == null)
         {
-            //set the document type restriction
-            params.add( CommonParams.FQ, "{!tag=test}nyp\\:DocumentType:Audio" );
-            
-            //no facets being generated
+            responseCache.put( cacheKey, req, rsp );
         }
-        else if (doctype.equalsIgnoreCase("video"))
+    }
+    
+    /**
+     * Adds the cursor to the page after the current one to the response, if there is one.
+     */
+    private void addNextCursor( SolrQueryRequest req, SolrQueryResponse rsp, String sortSpec, Sort sort, int start ) throws IOException
+    {
+        Object response = rsp.getValues().get( "response" );
+        if (!(response instanceof DocList))
         {
-            //set the document type restriction
-            params.add( CommonParams.FQ, "{!tag=test}nyp\\:DocumentType:Video" );
-            
-            //no facets being generated
+            return;
         }
-        else
+        
+        DocList docs = (DocList)response;
+        //after a mark the matches are counted without it
+        Object afterMark = req.getContext().get( NYPhilCursorQueryComponent.AFTER_MARK );
+        int remaining = afterMark != null ? ((Integer)afterMark).intValue() : docs.matches() - docs.offset();
+        if (docs.size() == 0 || remaining <= docs.size())
         {
-            logger.error("Invalid document type: " + doctype);
-            throw new SolrException( SolrException.ErrorCode.BAD_REQUEST, "Invalid document type: " + doctype );
+            //last page
+            return;
         }
         
-        if (logger.isDebugEnabled())
+        NYPhilCursor next;
+        if (sort != null)
         {
-            logger.debug("Params: " + params);            
+            int last = -1;
+            for (DocIterator it = docs.iterator(); it.hasNext();)
+            {
+                last = it.nextDoc();
+            }
+            next = NYPhilCursor.mark( req.getSearcher(), sortSpec, sort, last );
         }
-
-        //set the new request parameters, then call the default handler behavior
-        req.setParams( SolrParams.toSolrParams( params ) );
-        
-        super.handleRequestBody( req, rsp );
+        else
+        {
+            next = NYPhilCursor.offset( sortSpec, start + docs.size() );
+        }
+        rsp.add( RESPONSE_NEXT_CURSOR, next.encode() );
     }
 
 }
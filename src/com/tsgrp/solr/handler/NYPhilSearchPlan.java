@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) Technology Services Group, Inc.
+ *
+ * Licensed under the Mozilla Public License version 1.1 with a permitted attribution clause. You may obtain a copy of
+ * the License at
+ *
+ * http://www.tsgrp.com/legal/license
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.tsgrp.solr.handler;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.search.Query;
+import org.apache.solr.common.params.DisMaxParams;
+import org.apache.solr.common.params.FacetParams;
+import org.apache.solr.common.params.HighlightParams;
+import org.apache.solr.common.params.MultiMapSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.search.ExtendedDismaxQParserPlugin;
+
+/**
+ * The static part of the parameters {@link NYPhilSearchHandler} sends to the search components for a document type:
+ * query fields, faceting and highlighting setup, and the tagged document type restriction. Plans are built once when
+ * the handler is initialized and are immutable, so requests only layer their dynamic values (query, paging, sorting,
+ * date restriction) on top of them.
+ * <p>
+ * Plan params can be overridden from the handler configuration. Entries of the <code>all</code> list apply to every
+ * document type, entries of a list named after the <code>doctype</code> value apply to that type only. An entry
+ * replaces all built in values of the same param name:
+ *
+ * <pre>
+ * &lt;lst name="plans"&gt;
+ *   &lt;lst name="all"&gt;&lt;int name="facet.limit"&gt;20&lt;/int&gt;&lt;/lst&gt;
+ *   &lt;lst name="audio"&gt;&lt;str name="facet.field"&gt;npa:ConductorName&lt;/str&gt;&lt;/lst&gt;
+ * &lt;/lst&gt;
+ * </pre>
+ *
+ * @author Technology Services Group
+ * @version 1.0
+ *
+ *          <h2>Modification History</h2>
+ *          <ul>
+ *          <li>Oct 18, 2026 Created.</li>
+ *          </ul>
+ *          <p>
+ *          Copyright &copy; 2026 Technology Services Group, Inc.
+ *          </p>
+ */
+public final class NYPhilSearchPlan
+{
+
+    /** name of the handler init list holding plan overrides */
+    public static final String INIT_PLANS = "plans";
+
+    /** name of the plan override list applied to all document types */
+    public static final String INIT_PLANS_ALL = "all";
+
+    /** the document type field, counted by {@link NYPhilDocTypeCountComponent} regardless of the type restriction */
+    static final String DOCUMENT_TYPE_FACET = "nyp:DocumentType_facet";
+
+    /** the tag used on the document type restriction, excluded by the document type counts */
+    static final String DOCUMENT_TYPE_TAG = "test";
+
+    /**
+     * All fields searched by the keywords, in the order they are handed to the extended dismax parser.
+     */
+    static final String[] QUERY_FIELDS = {
+            //base fields
+            "nyp:DocumentType",
+            "nyp:Notes",
+
+            //program fields
+            "npp:ProgramID",
+            "npp:Season",
+            "npp:OrchestraCode",
+            "npp:OrchestraName",
+            "npp:LocationName",
+            "npp:VenueName",
+            "npp:EventTypeName",
+            "npp:SubEventName",
+            "npp:ConductorName",
+            "npp:SoloistsNames",
+            "npp:SoloistsInstrumentName",
+            "npp:WorksComposerNames",
+            "npp:WorksTitle",
+            "npp:WorksShortTitle",
+            "npp:WorksConductorNames",
+
+            //printedMusic fields
+            "npm:LibraryID",
+            "npm:ShortTitle",
+            "npm:ComposerName",
+            "npm:PublisherName",
+            "npm:ComposerNameTitle",
+            "npm:ScoreMarkingArtist",
+            "npm:ScoreEditionTypeDesc",
+            "npm:ScoreNotes",
+
+            //part fields
+            "npm:PartTypeDesc",
+            "npm:PartMarkingArtist",
+            "npm:UsedByArtistName",
+
+            //businessRecord fields
+            "npb:BoxNumber",
+            "npb:RecordGroup",
+            "npb:Series",
+            "npb:SubSeries",
+            "npb:Folder",
+            "npb:Names",
+            "npb:Subject",
+            "npb:Abstract",
+
+            //visual fields
+            "npv:ID",
+            "npv:BoxNumber",
+            "npv:PhilharmonicSource",
+            "npv:OutsideSource",
+            "npv:Photographer",
+            "npv:CopyrightHolder",
+            "npv:PlaceOfImage",
+            "npv:PersonalNames",
+            "npv:CorporateNames",
+            "npv:Event",
+            "npv:ImageType",
+            "npv:LocationName",
+            "npv:VenueName",
+
+            //audio fields
+            "npa:ProgramID",
+            "npa:Location",
+            "npa:EventTypeName",
+            "npa:ConductorName",
+            "npa:SoloistsAndInstruments",
+            "npa:ComposerWork",
+            "npa:OrchestraName",
+            "npa:IntermissionFeature",
+            "npa:LocationName",
+            "npa:VenueName",
+            "npa:SubEventName",
+            "npa:URLLocation",
+            "npa:IntermissionGuests",
+            "npa:Announcer",
+
+            //video fields
+            "npx:ProgramID",
+            "npx:Location",
+            "npx:EventTypeName",
+            "npx:ConductorName",
+            "npx:SoloistsAndInstruments",
+            "npx:ComposerNameWork",
+            "npx:OrchestraName",
+            "npx:IntermissionFeature",
+            "npx:LocationName",
+            "npx:VenueName",
+            "npx:SubEventName",
+            "npx:IntermissionGuests",
+            "npx:Announcer",
+
+            "npt:tagged" };
+
+
+    private final NYPhilDocType docType;
+
+    private final SolrParams facetParams;
+
+    private final SolrParams noFacetParams;
+
+    private final Query typeFilter;
+
+    private NYPhilSearchPlan( NYPhilDocType docType, Map<String, String[]> facetParams, Map<String, String[]> noFacetParams )
+    {
+        this.docType = docType;
+        this.facetParams = new MultiMapSolrParams( Collections.unmodifiableMap( facetParams ) );
+        this.noFacetParams = new MultiMapSolrParams( Collections.unmodifiableMap( noFacetParams ) );
+        this.typeFilter = new NYPhilQueryBuilder().docType( docType ).build();
+    }
+
+    /**
+     * @return the document type of the plan
+     */
+    public NYPhilDocType getDocType()
+    {
+        return docType;
+    }
+
+    /**
+     * @param generateFacets true if the document type facet fields should be generated
+     * @return the plan params, shared between requests and never modified
+     */
+    public SolrParams getParams( boolean generateFacets )
+    {
+        return generateFacets ? facetParams : noFacetParams;
+    }
+
+    /**
+     * @return the document type restriction, added by the handler as a filter tagged with
+     *         {@link #DOCUMENT_TYPE_TAG}. Shared between requests and never modified.
+     */
+    public Query getTypeFilter()
+    {
+        return typeFilter;
+    }
+
+    /**
+     * Builds the plans for all document types.
+     *
+     * @param initArgs the handler init args, may be null
+     * @return plan for each document type
+     */
+    public static Map<NYPhilDocType, NYPhilSearchPlan> buildPlans( NamedList<?> initArgs )
+    {
+        NamedList<?> overrides = null;
+        if (initArgs != null && initArgs.get( INIT_PLANS ) instanceof NamedList)
+        {
+            overrides = (NamedList<?>)initArgs.get( INIT_PLANS );
+        }
+
+        Map<NYPhilDocType, NYPhilSearchPlan> plans = new EnumMap<NYPhilDocType, NYPhilSearchPlan>( NYPhilDocType.class );
+        for (NYPhilDocType docType : NYPhilDocType.values())
+        {
+            Map<String, String[]> facetParams = buildParams( docType, true );
+            Map<String, String[]> noFacetParams = buildParams( docType, false );
+
+            if (overrides != null)
+            {
+                applyOverrides( facetParams, overrides.get( INIT_PLANS_ALL ) );
+                applyOverrides( facetParams, overrides.get( docType.getParamValue() ) );
+                applyOverrides( noFacetParams, overrides.get( INIT_PLANS_ALL ) );
+                applyOverrides( noFacetParams, overrides.get( docType.getParamValue() ) );
+            }
+
+            plans.put( docType, new NYPhilSearchPlan( docType, facetParams, noFacetParams ) );
+        }
+        return Collections.unmodifiableMap( plans );
+    }
+
+    private static Map<String, String[]> buildParams( NYPhilDocType docType, boolean generateFacets )
+    {
+        Map<String, String[]> params = new LinkedHashMap<String, String[]>();
+
+        //enable faceting and only return facets with at least 1 item
+        add( params, FacetParams.FACET, Boolean.TRUE.toString() );
+        add( params, FacetParams.FACET_MINCOUNT, "1" );
+
+        //defult ordering to index order (alphabetical)
+        add( params, FacetParams.FACET_SORT, FacetParams.FACET_SORT_INDEX );
+
+        //only return a maximum of 10 facet values
+        add( params, FacetParams.FACET_LIMIT, "10" );
+
+        //highlighting is opt in (see the handler), only the whitelisted fields of the type are highlighted
+        params.put( HighlightParams.FIELDS, docType.getHighlightFields() );
+
+        //always use the extended dismax parser
+        add( params, "defType", ExtendedDismaxQParserPlugin.NAME );
+
+        params.put( DisMaxParams.QF, QUERY_FIELDS.clone() );
+
+        //document type counts that are always returned regardless of the document type restriction
+        add( params, NYPhilDocTypeCountComponent.PARAM_TYPE_COUNTS, Boolean.TRUE.toString() );
+        add( params, NYPhilDocTypeCountComponent.PARAM_TYPE_COUNTS_EXCLUDE, DOCUMENT_TYPE_TAG );
+        //allow the counts to always display all values, even when there are 0 results for the type
+        add( params, "f." + DOCUMENT_TYPE_FACET + "." + FacetParams.FACET_MINCOUNT, "0" );
+
+        if (generateFacets)
+        {
+            for (String facetField : docType.getFacetFields())
+            {
+                add( params, FacetParams.FACET_FIELD, facetField );
+            }
+        }
+
+        return params;
+    }
+
+    private static void applyOverrides( Map<String, String[]> params, Object overrides )
+    {
+        if (!(overrides instanceof NamedList))
+        {
+            return;
+        }
+
+        //collect first so several entries with the same name all replace the built in value together
+        Map<String, String[]> replacements = new LinkedHashMap<String, String[]>();
+        NamedList<?> list = (NamedList<?>)overrides;
+        for (int i = 0; i < list.size(); i++)
+        {
+            Object val = list.getVal( i );
+            if (val instanceof List)
+            {
+                for (Object o : (List<?>)val)
+                {
+                    add( replacements, list.getName( i ), String.valueOf( o ) );
+                }
+            }
+            else if (val != null)
+            {
+                add( replacements, list.getName( i ), val.toString() );
+            }
+        }
+        params.putAll( replacements );
+    }
+
+    private static void add( Map<String, String[]> params, String name, String val )
+    {
+        String[] vals = params.get( name );
+        if (vals == null)
+        {
+            params.put( name, new String[] { val } );
+        }
+        else
+        {
+            String[] merged = new String[vals.length + 1];
+            System.arraycopy( vals, 0, merged, 0, vals.length );
+            merged[vals.length] = val;
+            params.put( name, merged );
+        }
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) Technology Services Group, Inc.
+ *
+ * Licensed under the Mozilla Public License version 1.1 with a permitted attribution clause. You may obtain a copy of
+ * the License at
+ *
+ * http://www.tsgrp.com/legal/license
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.tsgrp.solr.handler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.lucene.search.Query;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.HighlightParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.handler.component.HighlightComponent;
+import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.highlight.SolrHighlighter;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.search.DocIterator;
+import org.apache.solr.search.DocList;
+import org.apache.solr.search.DocSlice;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * A {@link HighlightComponent} that keeps the snippets of each document in the <code>nypSnippetCache</code> user
+ * cache, so paging back and forth or repeating a search does not re-analyze the stored text of the same documents.
+ * <p>
+ * Entries are keyed by index version, highlight query, the <code>hl</code> params and the document id, and hold the
+ * highlighting entry of that one document. Only the documents of the page missing from the cache are highlighted,
+ * then the response is assembled in page order exactly as the standard component would return it. Without the cache
+ * configured this behaves like the standard component.
+ *
+ * @author Technology Services Group
+ * @version 1.0
+ *
+ *          <h2>Modification History</h2>
+ *          <ul>
+ *          <li>Oct 18, 2026 Created.</li>
+ *          </ul>
+ *          <p>
+ *          Copyright &copy; 2026 Technology Services Group, Inc.
+ *          </p>
+ */
+public class NYPhilSnippetCacheComponent extends HighlightComponent
+{
+
+    /** name of the user cache holding the snippets */
+    public static final String CACHE_NAME = "nypSnippetCache";
+
+    /**
+     * Key of the snippets of a document. The prefix is several KB with many qf fields, so the keys of a page share a
+     * single copy of it.
+     */
+    private static final class SnippetKey
+    {
+        private final String prefix;
+
+        private final int doc;
+
+        private final int hash;
+
+        SnippetKey( String prefix, int doc )
+        {
+            this.prefix = prefix;
+            this.doc = doc;
+            this.hash = prefix.hashCode() * 31 + doc;
+        }
+
+        @Override
+        public boolean equals( Object o )
+        {
+            if (!(o instanceof SnippetKey))
+            {
+                return false;
+            }
+            SnippetKey other = (SnippetKey)o;
+            return doc == other.doc && hash == other.hash && prefix.equals( other.prefix );
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+    }
+
+    /**
+     * @see org.apache.solr.handler.component.HighlightComponent#process(org.apache.solr.handler.component.ResponseBuilder)
+     */
+    @Override
+    public void process( ResponseBuilder rb ) throws IOException
+    {
+        if (!rb.doHighlights)
+        {
+            return;
+        }
+
+        SolrQueryRequest req = rb.req;
+        SolrIndexSearcher searcher = req.getSearcher();
+        SolrCache cache = searcher.getCache( CACHE_NAME );
+        if (cache == null)
+        {
+            super.process( rb );
+            return;
+        }
+
+        //same query and default field resolution as the standard component
+        SolrParams params = req.getParams();
+        String[] defaultHighlightFields;
+        if (rb.getQparser() != null)
+        {
+            defaultHighlightFields = rb.getQparser().getDefaultHighlightFields();
+        }
+        else
+        {
+            defaultHighlightFields = params.getParams( CommonParams.DF );
+        }
+
+        Query highlightQuery = rb.getHighlightQuery();
+        if (highlightQuery == null)
+        {
+            if (rb.getQparser() != null)
+            {
+                try
+                {
+                    highlightQuery = rb.getQparser().getHighlightQuery();
+                }
+                catch (Exception e)
+                {
+                    throw new SolrException( SolrException.ErrorCode.BAD_REQUEST, e );
+                }
+            }
+            else
+            {
+                highlightQuery = rb.getQuery();
+            }
+            rb.setHighlightQuery( highlightQuery );
+        }
+
+        //no highlighting if there is no query
+        if (highlightQuery == null)
+        {
+            return;
+        }
+
+        boolean rewrite = !(params.getBool( HighlightParams.USE_PHRASE_HIGHLIGHTER, true ) && params.getBool( HighlightParams.HIGHLIGHT_MULTI_TERM, true ));
+        if (rewrite)
+        {
+            highlightQuery = highlightQuery.rewrite( searcher.getReader() );
+        }
+
+        DocList docs = rb.getResults().docList;
+        String keyPrefix = getKeyPrefix( searcher, highlightQuery, params, defaultHighlightFields );
+
+        NamedList[] summaries = new NamedList[docs.size()];
+        int[] missing = new int[docs.size()];
+        int missingCount = 0;
+        int i = 0;
+        for (DocIterator it = docs.iterator(); it.hasNext(); i++)
+        {
+            int doc = it.nextDoc();
+            summaries[i] = (NamedList)cache.get( new SnippetKey( keyPrefix, doc ) );
+            if (summaries[i] == null)
+            {
+                missing[missingCount++] = doc;
+            }
+        }
+
+        if (missingCount > 0)
+        {
+            SolrHighlighter highlighter = getHighlighter();
+            DocList missingDocs = new DocSlice( 0, missingCount, missing, null, missingCount, 0f );
+            NamedList highlighted = highlighter.doHighlighting( missingDocs, highlightQuery, req, defaultHighlightFields );
+            if (highlighted == null)
+            {
+                return;
+            }
+            if (highlighted.size() != missingCount)
+            {
+                //not one entry per document, don't guess which is which
+                rb.rsp.add( "highlighting", highlighter.doHighlighting( docs, highlightQuery, req, defaultHighlightFields ) );
+                return;
+            }
+
+            int next = 0;
+            for (i = 0; i < summaries.length; i++)
+            {
+                if (summaries[i] == null)
+                {
+                    NamedList<Object> summary = new SimpleOrderedMap<Object>();
+                    summary.add( highlighted.getName( next ), highlighted.getVal( next ) );
+                    cache.put( new SnippetKey( keyPrefix, missing[next] ), summary );
+                    summaries[i] = summary;
+                    next++;
+                }
+            }
+        }
+
+        NamedList<Object> highlighting = new SimpleOrderedMap<Object>();
+        for (NamedList summary : summaries)
+        {
+            highlighting.addAll( summary );
+        }
+        rb.rsp.add( "highlighting", highlighting );
+    }
+
+    /**
+     * Everything but the document id that decides the snippets of a document: the index version, the query and all
+     * highlighting params in name order.
+     */
+    private static String getKeyPrefix( SolrIndexSearcher searcher, Query highlightQuery, SolrParams params, String[] defaultHighlightFields )
+    {
+        List<String> names = new ArrayList<String>();
+        for (Iterator<String> it = params.getParameterNamesIterator(); it.hasNext();)
+        {
+            String name = it.next();
+            if (name.equals( HighlightParams.HIGHLIGHT ) || name.startsWith( HighlightParams.HIGHLIGHT + "." ) || name.indexOf( "." + HighlightParams.HIGHLIGHT + "." ) >= 0)
+            {
+                names.add( name );
+            }
+        }
+        Collections.sort( names );
+
+        StringBuilder key = new StringBuilder();
+        key.append( searcher.getReader().getVersion() ).append( '\u0000' );
+        key.append( highlightQuery.toString() ).append( '\u0000' );
+        for (String name : names)
+        {
+            key.append( name );
+            for (String value : params.getParams( name ))
+            {
+                key.append( '=' ).append( value );
+            }
+            key.append( '\u0000' );
+        }
+        if (defaultHighlightFields != null)
+        {
+            for (String field : defaultHighlightFields)
+            {
+                key.append( field ).append( ',' );
+            }
+        }
+        key.append( '\u0000' );
+        return key.toString();
+    }
+
+    /**
+     * @see org.apache.solr.handler.component.HighlightComponent#getDescription()
+     */
+    @Override
+    public String getDescription()
+    {
+        return "NY Phil cached highlighting";
+    }
+
+    /**
+     * @see org.apache.solr.handler.component.HighlightComponent#getSource()
+     */
+    @Override
+    public String getSource()
+    {
+        return "$URL$";
+    }
+
+    /**
+     * @see org.apache.solr.handler.component.HighlightComponent#getSourceId()
+     */
+    @Override
+    public String getSourceId()
+    {
+        return "$Id$";
+    }
+
+    /**
+     * @see org.apache.solr.handler.component.HighlightComponent#getVersion()
+     */
+    @Override
+    public String getVersion()
+    {
+        return "1.0";
+    }
+}
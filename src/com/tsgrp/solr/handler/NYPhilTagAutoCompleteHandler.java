@@ -16,14 +16,15 @@
  */
 package com.tsgrp.solr.handler;
 
-import java.util.regex.Pattern;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.apache.lucene.queryParser.ParseException;
-import org.apache.lucene.queryParser.QueryParser;
 import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.FacetParams;
+import org.apache.solr.common.params.MultiMapSolrParams;
 import org.apache.solr.common.params.SolrParams;
-import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.SolrCore;
 import org.apache.solr.handler.component.SearchHandler;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.request.SolrQueryResponse;
@@ -47,11 +48,22 @@ public class NYPhilTagAutoCompleteHandler extends SearchHandler
 	private static final String PARAM_VALUE = "value";
 	private static final String PARAM_CALLBACK = "callback";
 	
-	// regex used to remove all non-alphanumeric chars from the query input so we can 
-	// still use wildcard searches without need to use an edge n-gram filter factory
-	private static final Pattern QUERY_TERM_REGEX =	Pattern.compile( "[\\W]" );
+	// approved tag values in memory, answers without searching when it is current
+	private final NYPhilTagSuggester suggester = new NYPhilTagSuggester();
 	
 	
+	/*
+	 * @see org.apache.solr.handler.component.SearchHandler#inform(org.apache.solr.core.SolrCore)
+	 */
+	@Override
+	public void inform(SolrCore core) 
+	{
+		super.inform( core );
+		
+		// rebuilt while each new searcher warms
+		core.registerNewSearcherListener( suggester );
+	}
+	
 	/*
 	 * @see org.apache.solr.handler.component.SearchHandler#handleRequestBody(org.apache.solr.request.SolrQueryRequest, org.apache.solr.request.SolrQueryResponse)
 	 */
@@ -60,54 +72,46 @@ public class NYPhilTagAutoCompleteHandler extends SearchHandler
 			throws Exception, ParseException, InstantiationException,
 			IllegalAccessException 
 	{
-		NamedList<Object> params = req.getParams().toNamedList();
-		
-		params.add( CommonParams.ROWS, 0 );
-		params.add( FacetParams.FACET, true );
-		params.add( FacetParams.FACET_FIELD, NYPhilSolrConstants.NPT_CONTENT_FACET );
-		params.add( FacetParams.FACET_MINCOUNT, 1 );
-		params.add( FacetParams.FACET_SORT, FacetParams.FACET_SORT_INDEX );
-		params.add( CommonParams.HEADER_ECHO_PARAMS, "explicit" );
-		params.add( CommonParams.WT, "json" );
-		params.add( "json.nl", "map" );
-		
-		String query = (String) params.get( PARAM_VALUE );
-		if( query == null || query.length() == 0 ) {
-			query = "*";
-		}
-		else
-		{
-			query = QueryParser.escape( query.toLowerCase() );
-		}
+		SolrParams requestParams = req.getParams();
+		Map<String, String[]> overlay = new HashMap<String, String[]>();
 		
-		String [] queryTerms = query.split( " " );
+		overlay.put( CommonParams.ROWS, new String[] { "0" } );
+		overlay.put( FacetParams.FACET, new String[] { "true" } );
+		overlay.put( FacetParams.FACET_FIELD, new String[] { NYPhilSolrConstants.NPT_CONTENT_FACET } );
+		overlay.put( FacetParams.FACET_MINCOUNT, new String[] { "1" } );
+		overlay.put( FacetParams.FACET_SORT, new String[] { FacetParams.FACET_SORT_INDEX } );
+		overlay.put( CommonParams.HEADER_ECHO_PARAMS, new String[] { "explicit" } );
+		overlay.put( CommonParams.WT, new String[] { "json" } );
+		overlay.put( "json.nl", new String[] { "map" } );
 		
-		// wrap our query term in parentheses to allow searching on terms separated by whitespace
-		StringBuffer q = new StringBuffer();
+		// every term of the input is required as a prefix, with only its alphanumeric chars so we can
+		// still use prefix searches without need to use an edge n-gram filter factory
+		String[] prefixes = NYPhilTagSuggester.getPrefixes( NYPhilRequestDecoder.getString( requestParams, PARAM_VALUE ) );
 		
-		// for each query term, require the term with a trailing wildcard match
-		for( String queryTerm : queryTerms ) {
-			
-			// remove all non-alphanumeric chars from the query term
-			queryTerm = QUERY_TERM_REGEX.matcher( queryTerm.toLowerCase() ).replaceAll( "" );
-			q.append("+").append( NYPhilSolrConstants.NPT_CONTENT_ESC )
-					.append( ":" ).append( QueryParser.escape( queryTerm) ).append( "* ");
+		NYPhilQueryBuilder q = new NYPhilQueryBuilder();
+		for( String prefix : prefixes ) {
+			q.prefix( NYPhilSolrConstants.NPT_CONTENT, prefix );
 		}
-		q.append("+" ).append( NYPhilSolrConstants.NPT_STATUS_ESC )
-				.append( ":" ).append( NYPhilSolrConstants.STATUS_APPROVED );
+		q.status( NYPhilSolrConstants.STATUS_APPROVED );
 		
-		params.add( CommonParams.Q, q.toString() );
+		String query = q.toParam( req );
+		overlay.put( CommonParams.Q, new String[] { query } );
 		
 		if( logger.isDebugEnabled() ) {
-			logger.debug( "Autocomplete Query: " + q.toString() );
+			logger.debug( "Autocomplete Query: " + query );
 		}
 		
-		String cb = (String) params.get( PARAM_CALLBACK );
-		if( cb != null && cb.length() > 0 ) {
-			params.add( "json.wrf", cb );
+		String cb = NYPhilRequestDecoder.getCallback( requestParams, PARAM_CALLBACK );
+		if( cb != null ) {
+			overlay.put( "json.wrf", new String[] { cb } );
 		}
 		
-        req.setParams( SolrParams.toSolrParams( params ) );
+        req.setParams( new NYPhilLayeredParams( new MultiMapSolrParams( overlay ), requestParams ) );
+        
+        // the query above is only run when the suggester was not built for this searcher
+        if( suggester.suggest( req, res, prefixes ) ) {
+            return;
+        }
         
         super.handleRequestBody( req, res );
 	}
@@ -0,0 +1,355 @@
+/*
+ * Copyright (C) Technology Services Group, Inc.
+ *
+ * Licensed under the Mozilla Public License version 1.1 with a permitted attribution clause. You may obtain a copy of
+ * the License at
+ *
+ * http://www.tsgrp.com/legal/license
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.tsgrp.solr.handler;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.MapFieldSelector;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.core.SolrEventListener;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.search.SolrIndexReader;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The tags of recently viewed assets for {@link NYPhilGetTagsHandler}, so repeat viewers of an asset never load
+ * stored fields. The tags of an asset are loaded once, on first request, and kept serialized the way
+ * {@link NYPhilTagStreamWriter} streams them (field values already converted by the schema, in index order), as one
+ * record for the approved tags and one for the tags of every status. Most assets only have approved tags, their two
+ * records are the same. The size of the cached records is bounded, least recently used assets are evicted first.
+ * <p>
+ * When a new searcher opens only the assets whose tags changed are dropped: the assets of the new segments, and
+ * those of documents deleted from the segments both searchers share. A segment created by a merge is new, so its
+ * assets are dropped too. Assets loaded by requests still running on an older searcher are not cached.
+ *
+ * @author Technology Services Group
+ * @version 1.0
+ *
+ *          <h2>Modification History</h2>
+ *          <ul>
+ *          <li>Oct 18, 2026 Created.</li>
+ *          </ul>
+ *          <p>
+ *          Copyright &copy; 2026 Technology Services Group, Inc.
+ *          </p>
+ */
+public class NYPhilTagCache implements SolrEventListener
+{
+
+    private static final Logger logger = LoggerFactory.getLogger( NYPhilTagCache.class );
+
+    /** estimated bytes of an entry besides its records: the map entry, the key and the entry itself */
+    private static final int ENTRY_OVERHEAD = 128;
+
+    /**
+     * The tags of one asset.
+     */
+    private static class Entry
+    {
+        final NYPhilTagStreamWriter.TagRecord all;
+
+        final NYPhilTagStreamWriter.TagRecord approved;
+
+        final long bytes;
+
+        Entry( String assetId, NYPhilTagStreamWriter.TagRecord all, NYPhilTagStreamWriter.TagRecord approved )
+        {
+            this.all = all;
+            this.approved = approved;
+            this.bytes = ENTRY_OVERHEAD + assetId.length() * 2 + all.getBytes() + (approved == all ? 0 : approved.getBytes());
+        }
+    }
+
+    private final long maxBytes;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>( 64, 0.75f, true );
+
+    /** estimated bytes of the entries */
+    private long bytes;
+
+    /** version of the latest searcher, -1 until a new searcher is registered */
+    private long version = -1;
+
+    /**
+     * @param maxBytes the maximum size of the cached tags, estimated from the length of their records
+     */
+    public NYPhilTagCache( long maxBytes )
+    {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param allTags true for the tags of every status, false for the approved tags only
+     * @return the tags of the asset in index order
+     */
+    public NYPhilTagStreamWriter.TagRecord getTags( SolrIndexSearcher searcher, String assetId, boolean allTags ) throws IOException
+    {
+        return getTags( searcher, Collections.singletonList( assetId ), allTags ).getVal( 0 );
+    }
+
+    /**
+     * The tags of several assets, the assets missing from the cache are all loaded with a single walk over the asset
+     * id terms.
+     *
+     * @param allTags true for the tags of every status, false for the approved tags only
+     * @return the tags of each asset in index order keyed by asset id, in the order of the asset ids
+     */
+    public NamedList<NYPhilTagStreamWriter.TagRecord> getTags( SolrIndexSearcher searcher, List<String> assetIds, boolean allTags ) throws IOException
+    {
+        Map<String, Entry> found = new HashMap<String, Entry>();
+        List<String> missing = new ArrayList<String>();
+        synchronized (this)
+        {
+            for (String assetId : assetIds)
+            {
+                Entry entry = entries.get( assetId );
+                if (entry != null)
+                {
+                    found.put( assetId, entry );
+                }
+                else
+                {
+                    missing.add( assetId );
+                }
+            }
+        }
+
+        if (!missing.isEmpty())
+        {
+            Map<String, Entry> loaded = load( searcher, missing );
+            found.putAll( loaded );
+            synchronized (this)
+            {
+                //an older searcher may miss changes that were already invalidated
+                if (version == -1 || version == searcher.getReader().getVersion())
+                {
+                    for (Map.Entry<String, Entry> e : loaded.entrySet())
+                    {
+                        Entry old = entries.put( e.getKey(), e.getValue() );
+                        bytes += e.getValue().bytes - (old == null ? 0 : old.bytes);
+                    }
+                    Iterator<Entry> eldest = entries.values().iterator();
+                    while (bytes > maxBytes && eldest.hasNext())
+                    {
+                        bytes -= eldest.next().bytes;
+                        eldest.remove();
+                    }
+                }
+            }
+        }
+
+        return toNamedList( assetIds, found, allTags );
+    }
+
+    /**
+     * The tags of several assets loaded like {@link #getTags(SolrIndexSearcher, List, boolean)} does, without a
+     * cache.
+     *
+     * @param allTags true for the tags of every status, false for the approved tags only
+     * @return the tags of each asset in index order keyed by asset id, in the order of the asset ids
+     */
+    public static NamedList<NYPhilTagStreamWriter.TagRecord> loadTags( SolrIndexSearcher searcher, List<String> assetIds, boolean allTags ) throws IOException
+    {
+        return toNamedList( assetIds, load( searcher, assetIds ), allTags );
+    }
+
+    private static NamedList<NYPhilTagStreamWriter.TagRecord> toNamedList( List<String> assetIds, Map<String, Entry> entries, boolean allTags )
+    {
+        NamedList<NYPhilTagStreamWriter.TagRecord> result = new SimpleOrderedMap<NYPhilTagStreamWriter.TagRecord>();
+        for (String assetId : assetIds)
+        {
+            Entry entry = entries.get( assetId );
+            result.add( assetId, allTags ? entry.all : entry.approved );
+        }
+        return result;
+    }
+
+    /**
+     * Loads the tags of the assets like a terms query: the asset ids are visited in term order with a single
+     * TermDocs.
+     */
+    private static Map<String, Entry> load( SolrIndexSearcher searcher, List<String> assetIds ) throws IOException
+    {
+        List<String> sorted = new ArrayList<String>( assetIds );
+        Collections.sort( sorted );
+
+        IndexSchema schema = searcher.getSchema();
+        Map<String, Entry> result = new HashMap<String, Entry>();
+        TermDocs td = searcher.getReader().termDocs();
+        try
+        {
+            for (String assetId : sorted)
+            {
+                List<String> all = new ArrayList<String>();
+                List<String> approved = new ArrayList<String>();
+
+                td.seek( new Term( NYPhilSolrConstants.NPT_ASSET_ID, assetId ) );
+                while (td.next())
+                {
+                    Document doc = searcher.doc( td.doc() );
+                    StringWriter writer = new StringWriter();
+                    NYPhilTagStreamWriter.writeDoc( writer, schema, doc );
+                    String json = writer.toString();
+                    all.add( json );
+                    if (NYPhilSolrConstants.STATUS_APPROVED.equals( doc.get( NYPhilSolrConstants.NPT_STATUS ) ))
+                    {
+                        approved.add( json );
+                    }
+                }
+
+                NYPhilTagStreamWriter.TagRecord allRecord = NYPhilTagStreamWriter.writeRecord( all );
+                NYPhilTagStreamWriter.TagRecord approvedRecord = approved.size() == all.size() ? allRecord : NYPhilTagStreamWriter.writeRecord( approved );
+                result.put( assetId, new Entry( assetId, allRecord, approvedRecord ) );
+            }
+        }
+        finally
+        {
+            td.close();
+        }
+        return result;
+    }
+
+    /**
+     * @return the assets with tags added or deleted between the searchers
+     */
+    private static Set<String> getChangedAssets( SolrIndexSearcher newSearcher, SolrIndexSearcher currentSearcher ) throws IOException
+    {
+        Map<Object, SolrIndexReader> current = new HashMap<Object, SolrIndexReader>();
+        for (SolrIndexReader reader : currentSearcher.getReader().getLeafReaders())
+        {
+            current.put( reader.getFieldCacheKey(), reader );
+        }
+
+        Set<String> changed = new HashSet<String>();
+        MapFieldSelector assetIdOnly = new MapFieldSelector( new String[] { NYPhilSolrConstants.NPT_ASSET_ID } );
+        for (SolrIndexReader reader : newSearcher.getReader().getLeafReaders())
+        {
+            SolrIndexReader old = current.get( reader.getFieldCacheKey() );
+            if (old == null)
+            {
+                addAssetIds( reader, changed );
+            }
+            else if (reader.numDocs() != old.numDocs())
+            {
+                //deleted since the current searcher, still readable from it
+                for (int doc = 0; doc < reader.maxDoc(); doc++)
+                {
+                    if (reader.isDeleted( doc ) && !old.isDeleted( doc ))
+                    {
+                        String assetId = old.document( doc, assetIdOnly ).get( NYPhilSolrConstants.NPT_ASSET_ID );
+                        if (assetId != null)
+                        {
+                            changed.add( assetId );
+                        }
+                    }
+                }
+            }
+        }
+        return changed;
+    }
+
+    private static void addAssetIds( IndexReader reader, Set<String> assetIds ) throws IOException
+    {
+        TermEnum te = reader.terms( new Term( NYPhilSolrConstants.NPT_ASSET_ID, "" ) );
+        try
+        {
+            do
+            {
+                Term t = te.term();
+                if (t == null || !NYPhilSolrConstants.NPT_ASSET_ID.equals( t.field() ))
+                {
+                    break;
+                }
+                assetIds.add( t.text() );
+            }
+            while (te.next());
+        }
+        finally
+        {
+            te.close();
+        }
+    }
+
+    /**
+     * @see org.apache.solr.core.SolrEventListener#init(org.apache.solr.common.util.NamedList)
+     */
+    public void init( NamedList args )
+    {
+    }
+
+    /**
+     * @see org.apache.solr.core.SolrEventListener#postCommit()
+     */
+    public void postCommit()
+    {
+    }
+
+    /**
+     * @see org.apache.solr.core.SolrEventListener#newSearcher(org.apache.solr.search.SolrIndexSearcher,
+     *      org.apache.solr.search.SolrIndexSearcher)
+     */
+    public void newSearcher( SolrIndexSearcher newSearcher, SolrIndexSearcher currentSearcher )
+    {
+        Set<String> changed = null;
+        if (currentSearcher != null)
+        {
+            try
+            {
+                changed = getChangedAssets( newSearcher, currentSearcher );
+            }
+            catch (IOException e)
+            {
+                logger.error( "Unable to find the changed assets, clearing the tag cache", e );
+            }
+        }
+
+        synchronized (this)
+        {
+            if (changed == null)
+            {
+                entries.clear();
+                bytes = 0;
+            }
+            else
+            {
+                for (String assetId : changed)
+                {
+                    Entry entry = entries.remove( assetId );
+                    if (entry != null)
+                    {
+                        bytes -= entry.bytes;
+                    }
+                }
+            }
+            version = newSearcher.getReader().getVersion();
+        }
+    }
+}
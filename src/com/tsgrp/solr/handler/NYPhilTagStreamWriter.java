@@ -0,0 +1,489 @@
+/*
+ * Copyright (C) Technology Services Group, Inc.
+ *
+ * Licensed under the Mozilla Public License version 1.1 with a permitted attribution clause. You may obtain a copy of
+ * the License at
+ *
+ * http://www.tsgrp.com/legal/license
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.tsgrp.solr.handler;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Fieldable;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.search.TermQuery;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.request.QueryResponseWriter;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrQueryResponse;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * Writes the tags of {@link NYPhilGetTagsHandler} as they are read from the index, so memory does not grow with the
+ * number of tags of an asset. The handler adds a {@link TagStream} holding only the asset ids instead of the
+ * documents, when it is written the ids of the matching documents are read from the postings of the asset and each
+ * document is loaded and written straight to the output. The tags kept by {@link NYPhilTagCache} are serialized the
+ * same way beforehand and written as they are.
+ * <p>
+ * The output is the same as the JSON writer with <code>json.nl=map</code> (the only layout the tag handlers use),
+ * wrapped in the <code>json.wrf</code> function if given: a <code>numFound</code>/<code>start</code>/<code>docs</code>
+ * object for a single asset, and an object of them keyed by asset id for a batch.
+ *
+ * <pre>
+ * &lt;queryResponseWriter name="nyptags" class="com.tsgrp.solr.handler.NYPhilTagStreamWriter" /&gt;
+ * </pre>
+ *
+ * @author Technology Services Group
+ * @version 1.0
+ *
+ *          <h2>Modification History</h2>
+ *          <ul>
+ *          <li>Oct 18, 2026 Created.</li>
+ *          </ul>
+ *          <p>
+ *          Copyright &copy; 2026 Technology Services Group, Inc.
+ *          </p>
+ */
+public class NYPhilTagStreamWriter implements QueryResponseWriter
+{
+
+    /** name the writer is registered under */
+    public static final String NAME = "nyptags";
+
+    /**
+     * The tags of one or more assets, written by {@link NYPhilTagStreamWriter}.
+     */
+    public static class TagStream
+    {
+        private final List<String> assetIds;
+
+        private final boolean batch;
+
+        private final boolean allTags;
+
+        private final int maxDocs;
+
+        /**
+         * @param batch true to write the tags of each asset keyed by asset id, false to write the tags of the single
+         *            asset
+         * @param maxDocs the maximum number of documents written for each asset, -1 for all
+         */
+        public TagStream( List<String> assetIds, boolean batch, boolean allTags, int maxDocs )
+        {
+            this.assetIds = assetIds;
+            this.batch = batch;
+            this.allTags = allTags;
+            this.maxDocs = maxDocs;
+        }
+    }
+
+    /**
+     * The tags of one asset already serialized by {@link #writeRecord}, as kept by {@link NYPhilTagCache}. Written
+     * as is.
+     */
+    public static class TagRecord
+    {
+        private final String json;
+
+        TagRecord( String json )
+        {
+            this.json = json;
+        }
+
+        /**
+         * @return the number of bytes of the serialized tags
+         */
+        int getBytes()
+        {
+            return json.length() * 2;
+        }
+    }
+
+    /**
+     * @see org.apache.solr.util.plugin.NamedListInitializedPlugin#init(org.apache.solr.common.util.NamedList)
+     */
+    public void init( NamedList args )
+    {
+    }
+
+    /**
+     * @see org.apache.solr.request.QueryResponseWriter#getContentType(org.apache.solr.request.SolrQueryRequest,
+     *      org.apache.solr.request.SolrQueryResponse)
+     */
+    public String getContentType( SolrQueryRequest request, SolrQueryResponse response )
+    {
+        //same as the JSON writer so the response can be viewed in a browser
+        return CONTENT_TYPE_TEXT_UTF8;
+    }
+
+    /**
+     * @see org.apache.solr.request.QueryResponseWriter#write(java.io.Writer, org.apache.solr.request.SolrQueryRequest,
+     *      org.apache.solr.request.SolrQueryResponse)
+     */
+    public void write( Writer writer, SolrQueryRequest request, SolrQueryResponse response ) throws IOException
+    {
+        String wrapper = request.getParams().get( "json.wrf" );
+        if (wrapper != null)
+        {
+            writer.write( wrapper );
+            writer.write( '(' );
+        }
+
+        writeNamedList( writer, request, response.getValues() );
+
+        if (wrapper != null)
+        {
+            writer.write( ')' );
+        }
+    }
+
+    private void writeVal( Writer writer, SolrQueryRequest request, Object val ) throws IOException
+    {
+        if (val == null)
+        {
+            writer.write( "null" );
+        }
+        else if (val instanceof TagStream)
+        {
+            writeTagStream( writer, request.getSearcher(), (TagStream)val );
+        }
+        else if (val instanceof TagRecord)
+        {
+            writer.write( ((TagRecord)val).json );
+        }
+        else if (val instanceof NamedList)
+        {
+            writeNamedList( writer, request, (NamedList)val );
+        }
+        else if (val instanceof Collection || val instanceof Object[])
+        {
+            Iterator<?> it = (val instanceof Collection) ? ((Collection<?>)val).iterator() : Arrays.asList( (Object[])val ).iterator();
+            writer.write( '[' );
+            while (it.hasNext())
+            {
+                writeVal( writer, request, it.next() );
+                if (it.hasNext())
+                {
+                    writer.write( ',' );
+                }
+            }
+            writer.write( ']' );
+        }
+        else if (val instanceof Number || val instanceof Boolean)
+        {
+            writeNumber( writer, val );
+        }
+        else
+        {
+            writeStr( writer, val.toString() );
+        }
+    }
+
+    private void writeNamedList( Writer writer, SolrQueryRequest request, NamedList list ) throws IOException
+    {
+        writer.write( '{' );
+        for (int i = 0; i < list.size(); i++)
+        {
+            if (i > 0)
+            {
+                writer.write( ',' );
+            }
+            writeStr( writer, list.getName( i ) == null ? "" : list.getName( i ) );
+            writer.write( ':' );
+            writeVal( writer, request, list.getVal( i ) );
+        }
+        writer.write( '}' );
+    }
+
+    private void writeTagStream( Writer writer, SolrIndexSearcher searcher, TagStream stream ) throws IOException
+    {
+        IndexReader reader = searcher.getReader();
+        DocSet approved = null;
+        if (!stream.allTags)
+        {
+            //nearly every tag is approved, the set comes from the filterCache rather than its postings
+            approved = searcher.getDocSet( new TermQuery( new Term( NYPhilSolrConstants.NPT_STATUS, NYPhilSolrConstants.STATUS_APPROVED ) ) );
+        }
+
+        if (stream.batch)
+        {
+            writer.write( '{' );
+        }
+        for (int i = 0; i < stream.assetIds.size(); i++)
+        {
+            String assetId = stream.assetIds.get( i );
+            if (stream.batch)
+            {
+                if (i > 0)
+                {
+                    writer.write( ',' );
+                }
+                writeStr( writer, assetId );
+                writer.write( ':' );
+            }
+
+            writeDocs( writer, searcher, assetDocs( reader, assetId, approved ), stream.maxDocs );
+        }
+        if (stream.batch)
+        {
+            writer.write( '}' );
+        }
+    }
+
+    private void writeDocs( Writer writer, SolrIndexSearcher searcher, IntList docs, int maxDocs ) throws IOException
+    {
+        writeDocsStart( writer, docs.size );
+
+        IndexSchema schema = searcher.getSchema();
+        int count = maxDocs < 0 ? docs.size : Math.min( docs.size, maxDocs );
+        for (int i = 0; i < count; i++)
+        {
+            if (i > 0)
+            {
+                writer.write( ',' );
+            }
+            //straight from the reader, one document in memory at a time
+            writeDoc( writer, schema, searcher.getReader().document( docs.docs[i] ) );
+        }
+        writer.write( "]}" );
+    }
+
+    /**
+     * Serializes the tags of an asset the way they are streamed.
+     *
+     * @param docs the documents of the tags, each already written by {@link #writeDoc}
+     */
+    static TagRecord writeRecord( List<String> docs )
+    {
+        StringWriter writer = new StringWriter();
+        try
+        {
+            writeDocsStart( writer, docs.size() );
+            for (int i = 0; i < docs.size(); i++)
+            {
+                if (i > 0)
+                {
+                    writer.write( ',' );
+                }
+                writer.write( docs.get( i ) );
+            }
+            writer.write( "]}" );
+        }
+        catch (IOException e)
+        {
+            //not thrown by a StringWriter
+            throw new IllegalStateException( e );
+        }
+        return new TagRecord( writer.toString() );
+    }
+
+    private static void writeDocsStart( Writer writer, int numFound ) throws IOException
+    {
+        writer.write( "{\"numFound\":" );
+        writer.write( Integer.toString( numFound ) );
+        writer.write( ",\"start\":0,\"docs\":[" );
+    }
+
+    /**
+     * Writes the stored fields like the JSON writer, multi valued fields as arrays.
+     */
+    static void writeDoc( Writer writer, IndexSchema schema, Document doc ) throws IOException
+    {
+        Map<String, List<Fieldable>> fields = new LinkedHashMap<String, List<Fieldable>>();
+        for (Object o : doc.getFields())
+        {
+            Fieldable f = (Fieldable)o;
+            List<Fieldable> values = fields.get( f.name() );
+            if (values == null)
+            {
+                values = new ArrayList<Fieldable>( 1 );
+                fields.put( f.name(), values );
+            }
+            values.add( f );
+        }
+
+        writer.write( '{' );
+        boolean first = true;
+        for (Map.Entry<String, List<Fieldable>> e : fields.entrySet())
+        {
+            if (!first)
+            {
+                writer.write( ',' );
+            }
+            first = false;
+
+            SchemaField sf = schema.getFieldOrNull( e.getKey() );
+            boolean multi = (sf != null && sf.multiValued()) || e.getValue().size() > 1;
+            writeStr( writer, e.getKey() );
+            writer.write( ':' );
+            if (multi)
+            {
+                writer.write( '[' );
+            }
+            for (int i = 0; i < e.getValue().size(); i++)
+            {
+                if (i > 0)
+                {
+                    writer.write( ',' );
+                }
+                writeField( writer, sf, e.getValue().get( i ) );
+            }
+            if (multi)
+            {
+                writer.write( ']' );
+            }
+        }
+        writer.write( '}' );
+    }
+
+    private static void writeField( Writer writer, SchemaField sf, Fieldable f ) throws IOException
+    {
+        if (sf == null)
+        {
+            writeStr( writer, f.stringValue() );
+            return;
+        }
+
+        Object val = sf.getType().toObject( f );
+        if (val instanceof Number || val instanceof Boolean)
+        {
+            writeNumber( writer, val );
+        }
+        else
+        {
+            //dates and text in their external form
+            writeStr( writer, sf.getType().toExternal( f ) );
+        }
+    }
+
+    private static void writeNumber( Writer writer, Object val ) throws IOException
+    {
+        String s = val.toString();
+        //like the JSON writer, values JSON can't represent are strings
+        if ((val instanceof Float && (((Float)val).isNaN() || ((Float)val).isInfinite()))
+                || (val instanceof Double && (((Double)val).isNaN() || ((Double)val).isInfinite())))
+        {
+            writeStr( writer, s );
+        }
+        else
+        {
+            writer.write( s );
+        }
+    }
+
+    private static void writeStr( Writer writer, String s ) throws IOException
+    {
+        writer.write( '"' );
+        for (int i = 0; i < s.length(); i++)
+        {
+            char ch = s.charAt( i );
+            switch (ch)
+            {
+                case '"':
+                case '\\':
+                    writer.write( '\\' );
+                    writer.write( ch );
+                    break;
+                case '\n':
+                    writer.write( "\\n" );
+                    break;
+                case '\r':
+                    writer.write( "\\r" );
+                    break;
+                case '\t':
+                    writer.write( "\\t" );
+                    break;
+                case '\b':
+                    writer.write( "\\b" );
+                    break;
+                case '\f':
+                    writer.write( "\\f" );
+                    break;
+                default:
+                    //control chars and the line separators javascript does not allow in strings
+                    if (ch < ' ' || ch == 0x2028 || ch == 0x2029)
+                    {
+                        String hex = Integer.toHexString( ch );
+                        writer.write( "\\u" );
+                        for (int pad = hex.length(); pad < 4; pad++)
+                        {
+                            writer.write( '0' );
+                        }
+                        writer.write( hex );
+                    }
+                    else
+                    {
+                        writer.write( ch );
+                    }
+            }
+        }
+        writer.write( '"' );
+    }
+
+    /**
+     * The live documents of an asset in index order, as ids.
+     */
+    private static class IntList
+    {
+        int[] docs = new int[16];
+
+        int size;
+
+        void add( int doc )
+        {
+            if (size == docs.length)
+            {
+                int[] grown = new int[size * 2];
+                System.arraycopy( docs, 0, grown, 0, size );
+                docs = grown;
+            }
+            docs[size++] = doc;
+        }
+    }
+
+    /**
+     * @param approved the approved tags, null for all tags
+     * @return the tags of the asset, only the approved ones if given
+     */
+    private static IntList assetDocs( IndexReader reader, String assetId, DocSet approved ) throws IOException
+    {
+        IntList docs = new IntList();
+        TermDocs td = reader.termDocs( new Term( NYPhilSolrConstants.NPT_ASSET_ID, assetId ) );
+        try
+        {
+            while (td.next())
+            {
+                int doc = td.doc();
+                if (approved == null || approved.exists( doc ))
+                {
+                    docs.add( doc );
+                }
+            }
+        }
+        finally
+        {
+            td.close();
+        }
+        return docs;
+    }
+}
@@ -0,0 +1,509 @@
+/*
+ * Copyright (C) Technology Services Group, Inc.
+ *
+ * Licensed under the Mozilla Public License version 1.1 with a permitted attribution clause. You may obtain a copy of
+ * the License at
+ *
+ * http://www.tsgrp.com/legal/license
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.tsgrp.solr.handler;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.TermAttribute;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.util.OpenBitSet;
+import org.apache.solr.common.params.FacetParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.core.SolrEventListener;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrQueryResponse;
+import org.apache.solr.search.DocSlice;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In memory tag autocomplete for {@link NYPhilTagAutoCompleteHandler}. For a searcher it keeps the distinct
+ * <code>npt:content_facet</code> values of the approved tags with their document counts, and a sorted array of the
+ * tokens <code>npt:content</code> indexes for those values, each with the (ascending) ids of the values containing
+ * it. A prefix is a binary search plus a walk over the matching tokens, so a keystroke never touches the index.
+ * <p>
+ * The answer is the same as the prefix query and facet it replaces: a value matches when every prefix is the start of
+ * one of its tokens, values are returned in index order with their counts, honoring <code>facet.limit</code> and
+ * <code>facet.offset</code>, and <code>numFound</code> is the number of matching tags.
+ * <p>
+ * The index is rebuilt for every new searcher while it warms (registered as a new searcher listener), and built
+ * lazily for the first searcher. Requests still running on a searcher the index was not built for get no answer and
+ * fall back to searching.
+ * <p>
+ * Each index keeps an LRU cache of the matching value ids of recent inputs, bounded by the total number of ids. As a
+ * user types "bee", "beet", "beeth" each input is answered by filtering the cached ids of the longest cached shorter
+ * input instead of matching all tokens again. The cache belongs to the index, so it is dropped with it when a commit
+ * opens a new searcher.
+ *
+ * @author Technology Services Group
+ * @version 1.0
+ *
+ *          <h2>Modification History</h2>
+ *          <ul>
+ *          <li>Oct 18, 2026 Created.</li>
+ *          </ul>
+ *          <p>
+ *          Copyright &copy; 2026 Technology Services Group, Inc.
+ *          </p>
+ */
+public class NYPhilTagSuggester implements SolrEventListener
+{
+
+    private static final Logger logger = LoggerFactory.getLogger( NYPhilTagSuggester.class );
+
+    //non-alphanumeric chars are removed from each query term
+    private static final Pattern QUERY_TERM_REGEX = Pattern.compile( "[\\W]" );
+
+    private static final int DEFAULT_LIMIT = 100;
+
+    /** maximum number of value ids kept by the prefix cache of an index */
+    private static final int PREFIX_CACHE_MAX_IDS = 1 << 21;
+
+    /**
+     * The approved tag values of one searcher.
+     */
+    static class Index
+    {
+        final long version;
+
+        /** distinct approved values in index order */
+        final String[] values;
+
+        /** number of approved tags of each value */
+        final int[] counts;
+
+        /** sorted distinct tokens of all values */
+        final String[] terms;
+
+        /** ascending value ids of each token */
+        final int[][] postings;
+
+        /** token ids of each value */
+        final int[][] valueTerms;
+
+        /** matching value ids of recent inputs, keyed on the joined prefixes */
+        private final LinkedHashMap<String, int[]> prefixCache = new LinkedHashMap<String, int[]>( 64, 0.75f, true );
+
+        private int prefixCacheIds;
+
+        Index( long version, String[] values, int[] counts, String[] terms, int[][] postings, int[][] valueTerms )
+        {
+            this.version = version;
+            this.values = values;
+            this.counts = counts;
+            this.terms = terms;
+            this.postings = postings;
+            this.valueTerms = valueTerms;
+        }
+
+        /**
+         * @return the ascending ids of the values matching all prefixes
+         */
+        int[] match( String[] prefixes )
+        {
+            String key = getKey( prefixes, prefixes.length - 1, prefixes[prefixes.length - 1] );
+            int[] ids = getCached( key );
+            if (ids != null)
+            {
+                return ids;
+            }
+
+            //narrow the longest cached input this one extends, ie "bee" for "beet"
+            String last = prefixes[prefixes.length - 1];
+            int[] parent = null;
+            for (int len = last.length() - 1; len >= 0 && parent == null; len--)
+            {
+                parent = getCached( getKey( prefixes, prefixes.length - 1, last.substring( 0, len ) ) );
+            }
+
+            if (parent != null)
+            {
+                ids = filter( parent, last );
+            }
+            else
+            {
+                OpenBitSet matches = match( prefixes[0] );
+                for (int i = 1; i < prefixes.length; i++)
+                {
+                    matches.intersect( match( prefixes[i] ) );
+                }
+                ids = new int[(int)matches.cardinality()];
+                int n = 0;
+                for (int id = matches.nextSetBit( 0 ); id >= 0; id = matches.nextSetBit( id + 1 ))
+                {
+                    ids[n++] = id;
+                }
+            }
+
+            putCached( key, ids );
+            return ids;
+        }
+
+        /**
+         * @return the ids of the values with a token starting with the prefix, an empty prefix matches all values
+         */
+        private OpenBitSet match( String prefix )
+        {
+            OpenBitSet result = new OpenBitSet( values.length );
+            if (prefix.length() == 0)
+            {
+                result.set( 0, values.length );
+                return result;
+            }
+
+            for (int i = lowerBound( terms, prefix ); i < terms.length && terms[i].startsWith( prefix ); i++)
+            {
+                for (int id : postings[i])
+                {
+                    result.fastSet( id );
+                }
+            }
+            return result;
+        }
+
+        /**
+         * @return the ids of the candidates with a token starting with the prefix
+         */
+        private int[] filter( int[] candidates, String prefix )
+        {
+            //the tokens starting with the prefix are a range of token ids
+            int from = lowerBound( terms, prefix );
+            int to = from;
+            while (to < terms.length && terms[to].startsWith( prefix ))
+            {
+                to++;
+            }
+
+            int[] ids = new int[candidates.length];
+            int n = 0;
+            for (int id : candidates)
+            {
+                for (int term : valueTerms[id])
+                {
+                    if (term >= from && term < to)
+                    {
+                        ids[n++] = id;
+                        break;
+                    }
+                }
+            }
+
+            int[] result = new int[n];
+            System.arraycopy( ids, 0, result, 0, n );
+            return result;
+        }
+
+        private synchronized int[] getCached( String key )
+        {
+            return prefixCache.get( key );
+        }
+
+        private synchronized void putCached( String key, int[] ids )
+        {
+            if (ids.length > PREFIX_CACHE_MAX_IDS)
+            {
+                return;
+            }
+
+            int[] old = prefixCache.put( key, ids );
+            if (old != null)
+            {
+                prefixCacheIds -= old.length;
+            }
+            prefixCacheIds += ids.length;
+
+            //evict the least recently used inputs
+            for (Iterator<int[]> it = prefixCache.values().iterator(); prefixCacheIds > PREFIX_CACHE_MAX_IDS && it.hasNext();)
+            {
+                prefixCacheIds -= it.next().length;
+                it.remove();
+            }
+        }
+    }
+
+    private volatile Index index;
+
+    /**
+     * Splits the autocomplete input like the handler does for its query: lower cased, split on spaces and stripped of
+     * non-alphanumeric chars. A missing value is a single empty prefix.
+     */
+    public static String[] getPrefixes( String value )
+    {
+        String[] prefixes = (value == null ? "" : value.toLowerCase()).split( " " );
+        for (int i = 0; i < prefixes.length; i++)
+        {
+            prefixes[i] = QUERY_TERM_REGEX.matcher( prefixes[i] ).replaceAll( "" );
+        }
+        return prefixes;
+    }
+
+    /**
+     * Adds the autocomplete response for the prefixes, in the same layout as the facet request it replaces.
+     *
+     * @return false if there is no index for the searcher of the request, nothing is added to the response
+     */
+    public boolean suggest( SolrQueryRequest req, SolrQueryResponse rsp, String[] prefixes ) throws IOException
+    {
+        Index idx = getIndex( req.getSearcher() );
+        if (idx == null)
+        {
+            return false;
+        }
+
+        int[] matches = idx.match( prefixes );
+
+        SolrParams params = req.getParams();
+        String field = NYPhilSolrConstants.NPT_CONTENT_FACET;
+        int offset = params.getFieldInt( field, FacetParams.FACET_OFFSET, 0 );
+        int limit = params.getFieldInt( field, FacetParams.FACET_LIMIT, DEFAULT_LIMIT );
+
+        NamedList<Integer> values = new NamedList<Integer>();
+        int found = 0;
+        int seen = 0;
+        for (int id : matches)
+        {
+            found += idx.counts[id];
+            if (seen++ >= offset && (limit < 0 || values.size() < limit))
+            {
+                values.add( idx.values[id], idx.counts[id] );
+            }
+        }
+
+        NamedList<Object> facetFields = new SimpleOrderedMap<Object>();
+        facetFields.add( field, values );
+        NamedList<Object> facetCounts = new SimpleOrderedMap<Object>();
+        facetCounts.add( "facet_queries", new SimpleOrderedMap<Object>() );
+        facetCounts.add( "facet_fields", facetFields );
+        facetCounts.add( "facet_dates", new SimpleOrderedMap<Object>() );
+
+        //rows=0, only the number of matching tags
+        rsp.add( "response", new DocSlice( 0, 0, new int[0], null, found, 0f ) );
+        rsp.add( "facet_counts", facetCounts );
+        return true;
+    }
+
+    /**
+     * @return the index of the searcher, or null if it was built for another searcher
+     */
+    Index getIndex( SolrIndexSearcher searcher ) throws IOException
+    {
+        long version = searcher.getReader().getVersion();
+        Index idx = index;
+        if (idx != null)
+        {
+            return idx.version == version ? idx : null;
+        }
+
+        synchronized (this)
+        {
+            //first searcher, nothing was built while warming
+            if (index == null)
+            {
+                index = build( searcher );
+            }
+            return index.version == version ? index : null;
+        }
+    }
+
+    /**
+     * Builds the index from the approved tags of the searcher.
+     */
+    static Index build( SolrIndexSearcher searcher ) throws IOException
+    {
+        long start = System.currentTimeMillis();
+
+        //count the approved tags of each content value
+        FieldCache.StringIndex si = FieldCache.DEFAULT.getStringIndex( searcher.getReader(), NYPhilSolrConstants.NPT_CONTENT_FACET );
+        int[] ordCounts = new int[si.lookup.length];
+        TermDocs td = searcher.getReader().termDocs( new Term( NYPhilSolrConstants.NPT_STATUS, NYPhilSolrConstants.STATUS_APPROVED ) );
+        try
+        {
+            while (td.next())
+            {
+                ordCounts[si.order[td.doc()]]++;
+            }
+        }
+        finally
+        {
+            td.close();
+        }
+
+        List<String> values = new ArrayList<String>();
+        List<Integer> counts = new ArrayList<Integer>();
+        //ord 0 are the tags without content
+        for (int ord = 1; ord < ordCounts.length; ord++)
+        {
+            if (ordCounts[ord] > 0)
+            {
+                values.add( si.lookup[ord] );
+                counts.add( ordCounts[ord] );
+            }
+        }
+
+        //tokens as npt:content indexes them, the facet field is a copy of it
+        Analyzer analyzer = searcher.getSchema().getField( NYPhilSolrConstants.NPT_CONTENT ).getType().getAnalyzer();
+        Map<String, List<Integer>> tokens = new TreeMap<String, List<Integer>>();
+        for (int id = 0; id < values.size(); id++)
+        {
+            TokenStream ts = analyzer.tokenStream( NYPhilSolrConstants.NPT_CONTENT, new StringReader( values.get( id ) ) );
+            TermAttribute term = ts.addAttribute( TermAttribute.class );
+            ts.reset();
+            while (ts.incrementToken())
+            {
+                List<Integer> ids = tokens.get( term.term() );
+                if (ids == null)
+                {
+                    ids = new ArrayList<Integer>();
+                    tokens.put( term.term(), ids );
+                }
+                //ids are added in ascending order, only once per value
+                if (ids.isEmpty() || ids.get( ids.size() - 1 ).intValue() != id)
+                {
+                    ids.add( id );
+                }
+            }
+            ts.close();
+        }
+
+        String[] terms = new String[tokens.size()];
+        int[][] postings = new int[tokens.size()][];
+        int i = 0;
+        for (Map.Entry<String, List<Integer>> e : tokens.entrySet())
+        {
+            terms[i] = e.getKey();
+            postings[i] = new int[e.getValue().size()];
+            for (int j = 0; j < postings[i].length; j++)
+            {
+                postings[i][j] = e.getValue().get( j ).intValue();
+            }
+            i++;
+        }
+
+        //invert the postings, token ids of each value
+        int[] termCounts = new int[values.size()];
+        for (int[] ids : postings)
+        {
+            for (int id : ids)
+            {
+                termCounts[id]++;
+            }
+        }
+        int[][] valueTerms = new int[values.size()][];
+        for (int id = 0; id < valueTerms.length; id++)
+        {
+            valueTerms[id] = new int[termCounts[id]];
+            termCounts[id] = 0;
+        }
+        for (int t = 0; t < postings.length; t++)
+        {
+            for (int id : postings[t])
+            {
+                valueTerms[id][termCounts[id]++] = t;
+            }
+        }
+
+        int[] valueCounts = new int[counts.size()];
+        for (int id = 0; id < valueCounts.length; id++)
+        {
+            valueCounts[id] = counts.get( id ).intValue();
+        }
+
+        if (logger.isDebugEnabled())
+        {
+            logger.debug( "Built tag suggester with " + values.size() + " values and " + terms.length + " tokens in "
+                    + (System.currentTimeMillis() - start) + "ms" );
+        }
+        return new Index( searcher.getReader().getVersion(), values.toArray( new String[values.size()] ), valueCounts, terms, postings, valueTerms );
+    }
+
+    /**
+     * @return the cache key of the first prefixes followed by the last one
+     */
+    private static String getKey( String[] prefixes, int count, String last )
+    {
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; i < count; i++)
+        {
+            key.append( prefixes[i] ).append( ' ' );
+        }
+        return key.append( last ).toString();
+    }
+
+    /**
+     * @return the position of the first term not before the prefix
+     */
+    private static int lowerBound( String[] terms, String prefix )
+    {
+        int low = 0;
+        int high = terms.length;
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+            if (terms[mid].compareTo( prefix ) < 0)
+            {
+                low = mid + 1;
+            }
+            else
+            {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @see org.apache.solr.core.SolrEventListener#init(org.apache.solr.common.util.NamedList)
+     */
+    public void init( NamedList args )
+    {
+    }
+
+    /**
+     * @see org.apache.solr.core.SolrEventListener#postCommit()
+     */
+    public void postCommit()
+    {
+    }
+
+    /**
+     * @see org.apache.solr.core.SolrEventListener#newSearcher(org.apache.solr.search.SolrIndexSearcher,
+     *      org.apache.solr.search.SolrIndexSearcher)
+     */
+    public void newSearcher( SolrIndexSearcher newSearcher, SolrIndexSearcher currentSearcher )
+    {
+        try
+        {
+            index = build( newSearcher );
+        }
+        catch (IOException e)
+        {
+            //requests fall back to searching until the next searcher
+            logger.error( "Unable to build the tag suggester", e );
+        }
+    }
+}
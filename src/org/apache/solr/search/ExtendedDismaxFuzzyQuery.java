@@ -0,0 +1,388 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.search;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.FuzzyQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.ReaderUtil;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * A fuzzy query of the edismax parser, expanded from the caches of the
+ * segments of the reader it is rewritten against, see
+ * {@link ExtendedDismaxFuzzyExpansions}.  It rewrites to the same terms and
+ * boosts as a {@link FuzzyQuery}, only faster, and like it only at search
+ * time, so a parsed query kept across commits is expanded against the
+ * current terms.
+ */
+class ExtendedDismaxFuzzyQuery extends FuzzyQuery {
+  private final ExtendedDismaxFuzzyExpansions expansions;
+
+  ExtendedDismaxFuzzyQuery(ExtendedDismaxFuzzyExpansions expansions, Term term, float minimumSimilarity) {
+    super(term, minimumSimilarity, 0);
+    this.expansions = expansions;
+  }
+
+  public Query rewrite(IndexReader reader) throws IOException {
+    Term term = getTerm();
+    float minimumSimilarity = getMinSimilarity();
+    // can only match if it's exact
+    if (term.text().length() <= 1.0f / (1.0f - minimumSimilarity)) {
+      return new TermQuery(term);
+    }
+
+    // a term has the same score in every segment, and each segment keeps
+    // its most similar terms, so the most similar of all are among them
+    List segments = new ArrayList();
+    ReaderUtil.gatherSubReaders(segments, reader);
+    final Map<String,Float> scores = new HashMap<String,Float>();
+    for (Object segment : segments) {
+      ExtendedDismaxFuzzyExpansions.Expansion expansion = expansions.get((IndexReader)segment, term, minimumSimilarity);
+      for (int i=0; i<expansion.terms.length; i++) {
+        scores.put(expansion.terms[i], Float.valueOf(expansion.scores[i]));
+      }
+    }
+    List<String> terms = new ArrayList<String>(scores.keySet());
+    ExtendedDismaxFuzzyExpansions.sort(terms, scores);
+
+    BooleanQuery query = new BooleanQuery(true);
+    // least similar first, like the fuzzy query adds them
+    for (int i=Math.min(terms.size(), BooleanQuery.getMaxClauseCount())-1; i>=0; i--) {
+      TermQuery tq = new TermQuery(new Term(term.field(), terms.get(i)));
+      tq.setBoost(getBoost() * scores.get(terms.get(i)).floatValue());
+      query.add(tq, BooleanClause.Occur.SHOULD);
+    }
+    return query;
+  }
+}
+
+
+/**
+ * The fuzzy expansions of each segment, by field, term and minimum
+ * similarity, for {@link ExtendedDismaxFuzzyQuery}.  Segments are shared by
+ * the searchers, so after a commit only the new segments are expanded.
+ * <p>
+ * Instead of computing the edit distance to every term of the field,
+ * candidates are found from an index of the padded bigrams of the terms of
+ * the field, built once per segment on first use.  An edit changes at most
+ * two bigrams, so a term within <code>k</code> edits of a word shares at
+ * least <code>bigrams(word) - 2k</code> of its distinct bigrams, and only
+ * the terms sharing that many and of a close enough length are scored.
+ * When the bound allows any term, the ones of a close enough length are
+ * scored.  The terms and similarities are those of {@link FuzzyQuery}.
+ */
+class ExtendedDismaxFuzzyExpansions {
+
+  /** expansions kept per segment */
+  private static final int MAX_EXPANSIONS = 1000;
+
+  private static final char PAD = '\u0000';
+
+  /** The terms of an expansion in a segment, most similar first, and their boosts. */
+  static class Expansion {
+    final String[] terms;
+    final float[] scores;
+
+    Expansion(String[] terms, float[] scores) {
+      this.terms = terms;
+      this.scores = scores;
+    }
+  }
+
+  /** The terms of a field of a segment, with their bigrams. */
+  static class TermGrams {
+    /** the terms, in index order */
+    final String[] terms;
+    /** the terms having each bigram, ascending */
+    final Map<Integer,int[]> grams;
+    /** the terms by length, the ones of length l are byLength[lengthStart[l]] to byLength[lengthStart[l+1]-1] */
+    final int[] byLength;
+    final int[] lengthStart;
+
+    TermGrams(String[] terms, Map<Integer,int[]> grams, int[] byLength, int[] lengthStart) {
+      this.terms = terms;
+      this.grams = grams;
+      this.byLength = byLength;
+      this.lengthStart = lengthStart;
+    }
+  }
+
+  static class ReaderEntry {
+    final Map<String,TermGrams> fields = new HashMap<String,TermGrams>();
+    final Map<String,Expansion> expansions = new LinkedHashMap<String,Expansion>(64, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<String,Expansion> eldest) {
+        return size() > MAX_EXPANSIONS;
+      }
+    };
+  }
+
+  private final Map<Object, ReaderEntry> readers =
+      Collections.synchronizedMap(new WeakHashMap<Object, ReaderEntry>());
+
+  /**
+   * @return the terms the fuzzy query expands to in the segment
+   */
+  Expansion get(IndexReader reader, Term term, float minimumSimilarity) throws IOException {
+    Object key = reader.getFieldCacheKey();
+    ReaderEntry entry;
+    synchronized (readers) {
+      entry = readers.get(key);
+      if (entry == null) {
+        entry = new ReaderEntry();
+        readers.put(key, entry);
+      }
+    }
+
+    String expansionKey = term.field() + '\u0000' + minimumSimilarity + '\u0000' + term.text();
+    TermGrams grams;
+    synchronized (entry) {
+      Expansion expansion = entry.expansions.get(expansionKey);
+      if (expansion != null) return expansion;
+      grams = entry.fields.get(term.field());
+    }
+    if (grams == null) {
+      // built without holding the segment, so the fields already indexed are
+      // expanded meanwhile; the first index built is the one kept
+      grams = build(reader, term.field());
+      synchronized (entry) {
+        TermGrams built = entry.fields.get(term.field());
+        if (built != null) {
+          grams = built;
+        } else {
+          entry.fields.put(term.field(), grams);
+        }
+      }
+    }
+
+    Expansion expansion = expand(grams, term.text(), minimumSimilarity);
+    synchronized (entry) {
+      entry.expansions.put(expansionKey, expansion);
+    }
+    return expansion;
+  }
+
+  private static TermGrams build(IndexReader reader, String field) throws IOException {
+    List<String> terms = new ArrayList<String>();
+    TermEnum te = reader.terms(new Term(field, ""));
+    try {
+      do {
+        Term t = te.term();
+        if (t == null || !field.equals(t.field())) break;
+        terms.add(t.text());
+      } while (te.next());
+    } finally {
+      te.close();
+    }
+
+    Map<Integer,int[]> postings = new HashMap<Integer,int[]>();
+    Map<Integer,Integer> sizes = new HashMap<Integer,Integer>();
+    int maxLength = 0;
+    for (int id=0; id<terms.size(); id++) {
+      String text = terms.get(id);
+      maxLength = Math.max(maxLength, text.length());
+      for (int i=0; i<=text.length(); i++) {
+        Integer gram = Integer.valueOf(gram(text, i));
+        int[] ids = postings.get(gram);
+        Integer size = sizes.get(gram);
+        int n = size == null ? 0 : size.intValue();
+        // a bigram repeated in the term is listed once
+        if (n > 0 && ids[n-1] == id) continue;
+        if (ids == null) {
+          ids = new int[4];
+        } else if (n == ids.length) {
+          ids = copy(ids, n * 2);
+        }
+        ids[n] = id;
+        postings.put(gram, ids);
+        sizes.put(gram, Integer.valueOf(n + 1));
+      }
+    }
+    for (Map.Entry<Integer,int[]> e : postings.entrySet()) {
+      e.setValue(copy(e.getValue(), sizes.get(e.getKey()).intValue()));
+    }
+
+    // counting sort of the terms by length
+    int[] lengthStart = new int[maxLength + 2];
+    for (String text : terms) lengthStart[text.length() + 1]++;
+    for (int l=0; l<=maxLength; l++) lengthStart[l+1] += lengthStart[l];
+    int[] byLength = new int[terms.size()];
+    int[] fill = new int[maxLength + 1];
+    for (int id=0; id<terms.size(); id++) {
+      int l = terms.get(id).length();
+      byLength[lengthStart[l] + fill[l]++] = id;
+    }
+
+    return new TermGrams(terms.toArray(new String[terms.size()]), postings, byLength, lengthStart);
+  }
+
+  /**
+   * @return the i-th bigram of the text padded at both ends, 0 to text.length()
+   */
+  private static int gram(String text, int i) {
+    char a = i == 0 ? PAD : text.charAt(i - 1);
+    char b = i == text.length() ? PAD : text.charAt(i);
+    return (a << 16) | b;
+  }
+
+  private static Expansion expand(TermGrams grams, String text, float minimumSimilarity) {
+    int n = text.length();
+    // the most edits of any match, the allowed edits grow with the shorter of the two terms
+    int maxDistance = (int)((1 - minimumSimilarity) * n);
+    int minLength = Math.max(1, n - maxDistance);
+    int maxLength = Math.min(grams.lengthStart.length - 2, n + maxDistance);
+
+    int[] distinct = new int[n + 1];
+    int distinctCount = 0;
+    for (int i=0; i<=n; i++) {
+      int g = gram(text, i);
+      boolean seen = false;
+      for (int j=0; j<distinctCount && !seen; j++) seen = distinct[j] == g;
+      if (!seen) distinct[distinctCount++] = g;
+    }
+    int minShared = distinctCount - 2 * maxDistance;
+
+    List<Integer> candidates = new ArrayList<Integer>();
+    if (minShared <= 0) {
+      // any term of a close enough length
+      for (int l=minLength; l<=maxLength; l++) {
+        for (int i=grams.lengthStart[l]; i<grams.lengthStart[l+1]; i++) {
+          candidates.add(Integer.valueOf(grams.byLength[i]));
+        }
+      }
+    } else {
+      // count the bigrams each term shares, from the merged lists of the term ids
+      int total = 0;
+      int[][] lists = new int[distinctCount][];
+      for (int j=0; j<distinctCount; j++) {
+        lists[j] = grams.grams.get(Integer.valueOf(distinct[j]));
+        if (lists[j] != null) total += lists[j].length;
+      }
+      int[] ids = new int[total];
+      int upto = 0;
+      for (int[] list : lists) {
+        if (list == null) continue;
+        System.arraycopy(list, 0, ids, upto, list.length);
+        upto += list.length;
+      }
+      Arrays.sort(ids);
+      for (int i=0; i<total;) {
+        int id = ids[i];
+        int j = i;
+        while (j < total && ids[j] == id) j++;
+        int length = grams.terms[id].length();
+        if (j - i >= minShared && length >= minLength && length <= maxLength) {
+          candidates.add(Integer.valueOf(id));
+        }
+        i = j;
+      }
+    }
+
+    final List<String> matches = new ArrayList<String>();
+    final Map<String,Float> scores = new HashMap<String,Float>();
+    float scale = 1.0f / (1.0f - minimumSimilarity);
+    for (Integer id : candidates) {
+      String target = grams.terms[id.intValue()];
+      float similarity = similarity(text, target, minimumSimilarity);
+      if (similarity > minimumSimilarity) {
+        matches.add(target);
+        scores.put(target, Float.valueOf((similarity - minimumSimilarity) * scale));
+      }
+    }
+    sort(matches, scores);
+
+    int size = Math.min(matches.size(), BooleanQuery.getMaxClauseCount());
+    String[] terms = new String[size];
+    float[] boosts = new float[size];
+    for (int i=0; i<size; i++) {
+      terms[i] = matches.get(i);
+      boosts[i] = scores.get(matches.get(i)).floatValue();
+    }
+    return new Expansion(terms, boosts);
+  }
+
+  /**
+   * Sorts terms most similar first, ties by term like the fuzzy query keeps them.
+   */
+  static void sort(List<String> terms, final Map<String,Float> scores) {
+    Collections.sort(terms, new Comparator<String>() {
+      public int compare(String a, String b) {
+        int c = Float.compare(scores.get(b).floatValue(), scores.get(a).floatValue());
+        return c != 0 ? c : a.compareTo(b);
+      }
+    });
+  }
+
+  /**
+   * The similarity of FuzzyTermEnum without a prefix: 1 minus the edit
+   * distance over the length of the shorter term, 0 if the distance is
+   * more than the minimum similarity allows.
+   */
+  static float similarity(String text, String target, float minimumSimilarity) {
+    int m = target.length();
+    int n = text.length();
+    if (n == 0 || m == 0) return 0.0f;
+
+    int maxDistance = (int)((1 - minimumSimilarity) * Math.min(n, m));
+    if (maxDistance < Math.abs(m - n)) return 0.0f;
+
+    int[] p = new int[n + 1];
+    int[] d = new int[n + 1];
+    for (int i=0; i<=n; i++) p[i] = i;
+    for (int j=1; j<=m; j++) {
+      int bestPossibleEditDistance = m;
+      char t = target.charAt(j - 1);
+      d[0] = j;
+      for (int i=1; i<=n; i++) {
+        if (t != text.charAt(i - 1)) {
+          d[i] = Math.min(Math.min(d[i-1], p[i]), p[i-1]) + 1;
+        } else {
+          d[i] = Math.min(Math.min(d[i-1] + 1, p[i] + 1), p[i-1]);
+        }
+        bestPossibleEditDistance = Math.min(bestPossibleEditDistance, d[i]);
+      }
+      // no way to get back within the distance
+      if (j > maxDistance && bestPossibleEditDistance > maxDistance) return 0.0f;
+      int[] swap = p;
+      p = d;
+      d = swap;
+    }
+    return 1.0f - ((float)p[n] / (float)Math.min(n, m));
+  }
+
+  private static int[] copy(int[] ids, int length) {
+    int[] result = new int[length];
+    System.arraycopy(ids, 0, result, 0, Math.min(length, ids.length));
+    return result;
+  }
+}
@@ -22,18 +22,25 @@
 
 package org.apache.solr.search;
 
+import org.apache.lucene.index.Term;
 import org.apache.lucene.queryParser.ParseException;
 import org.apache.lucene.queryParser.QueryParser;
 import org.apache.lucene.search.*;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.TermAttribute;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.params.DefaultSolrParams;
 import org.apache.solr.common.params.DisMaxParams;
+import org.apache.solr.common.params.MapSolrParams;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.schema.CopyField;
 import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
 import org.apache.solr.search.QueryUtils;
 import org.apache.solr.search.function.BoostedQuery;
 import org.apache.solr.search.function.FunctionQuery;
@@ -44,7 +51,9 @@ import org.apache.solr.util.SolrPluginUtils;
 import org.apache.solr.analysis.*;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.io.Reader;
+import java.io.StringReader;
 import java.io.IOException;
 
 /**
@@ -53,11 +62,47 @@ import java.io.IOException;
 public class ExtendedDismaxQParserPlugin extends QParserPlugin {
   public static final String NAME = "edismax";
 
+  /**
+   * Request context key of the degradation step of a user query over its
+   * cost budget, if any: <code>pf3</code>, <code>pf</code> or <code>qf</code>.
+   */
+  public static final String DEGRADED = NAME + ".degraded";
+
+  /**
+   * Param with the maximum estimated cost of the user query and its phrase
+   * boosts, in postings read, none if 0.  A query over the budget is made
+   * cheaper, see {@link ExtendedDismaxQParser#degrade}.
+   */
+  public static final String COST_BUDGET = "costBudget";
+
+  /**
+   * Param with the qf of a query still over the cost budget without its
+   * phrase boosts, by default the
+   * {@link ExtendedDismaxQParser#REDUCED_QF_SIZE} most boosted qf fields.
+   */
+  public static final String BUDGET_QF = "budgetQf";
+
   public void init(NamedList args) {
   }
 
+  /** the derived analyzers of the current schema, replaced when the schema changes */
+  private volatile ExtendedAnalyzer.Registry analyzers;
+
+  /** the fuzzy expansions of the readers searched, kept until they are closed */
+  final ExtendedDismaxFuzzyExpansions fuzzyExpansions = new ExtendedDismaxFuzzyExpansions();
+
   public QParser createParser(String qstr, SolrParams localParams, SolrParams params, SolrQueryRequest req) {
-    return new ExtendedDismaxQParser(qstr, localParams, params, req);
+    return new ExtendedDismaxQParser(qstr, localParams, params, req, getAnalyzers(req.getSchema()), fuzzyExpansions);
+  }
+
+  ExtendedAnalyzer.Registry getAnalyzers(IndexSchema schema) {
+    ExtendedAnalyzer.Registry registry = analyzers;
+    if (registry == null || registry.schema != schema) {
+      // two threads may create one concurrently, the last one in wins
+      registry = new ExtendedAnalyzer.Registry(schema);
+      analyzers = registry;
+    }
+    return registry;
   }
 }
 
@@ -82,12 +127,106 @@ class ExtendedDismaxQParser extends QParser {
   }
 
 
-  public ExtendedDismaxQParser(String qstr, SolrParams localParams, SolrParams params, SolrQueryRequest req) {
+  /**
+   * Name of the optional user cache of parsed user queries.  Parsing
+   * analyzes every query term for every qf field, popular keywords are
+   * parsed once and copied on later requests.
+   */
+  static final String QUERY_CACHE = "edismaxQueryCache";
+
+  /** the params the parsed user query depends on, besides the query itself */
+  private static final String[] QUERY_CACHE_PARAMS = {
+    DMP.QF, DMP.PF, "pf3", DMP.MM, DMP.TIE, DMP.PS, DMP.QS, "stopwords", "lowercaseOperators"
+  };
+
+  /**
+   * Param to trim the parsed user query and its phrase boosts by the
+   * document frequencies of their terms, see {@link ExtendedDismaxQueryPlanner}.
+   * The plan is in the debug output.
+   */
+  static final String PLAN = "plan";
+
+  static final int REDUCED_QF_SIZE = 5;
+
+  /** the degradation steps, the pf3 boost dropped, the pf boost dropped too, and the reduced qf */
+  static final String DEGRADED_PF3 = "pf3";
+  static final String DEGRADED_PF = "pf";
+  static final String DEGRADED_QF = "qf";
+
+  /**
+   * The user query with its phrase boosts, as cached in the query cache.
+   */
+  static class ParsedUserQuery {
+    final IndexSchema schema;
+    final Query userQuery;
+    /** the pf and pf3 phrase boosts, null if there is none */
+    Query pf;
+    Query pf3;
+    /** tie breaker of each DisjunctionMaxQuery built by the parsers, it can't be read back from the query */
+    final Map<Query,Float> ties;
+
+    ParsedUserQuery(IndexSchema schema, Query userQuery, Query pf, Query pf3, Map<Query,Float> ties) {
+      this.schema = schema;
+      this.userQuery = userQuery;
+      this.pf = pf;
+      this.pf3 = pf3;
+      this.ties = ties;
+    }
+
+    /**
+     * @return a copy sharing no boolean or disjunction query with this one,
+     * so either can be modified.  Leaf queries are cloned.
+     */
+    ParsedUserQuery copy() {
+      Map<Query,Float> copyTies = new IdentityHashMap<Query,Float>();
+      return new ParsedUserQuery(schema, copy(userQuery, copyTies),
+          pf == null ? null : copy(pf, copyTies), pf3 == null ? null : copy(pf3, copyTies), copyTies);
+    }
+
+    private Query copy(Query q, Map<Query,Float> copyTies) {
+      Query c;
+      if (q.getClass() == BooleanQuery.class) {
+        BooleanQuery bq = (BooleanQuery)q;
+        BooleanQuery cbq = new BooleanQuery(bq.isCoordDisabled());
+        cbq.setMinimumNumberShouldMatch(bq.getMinimumNumberShouldMatch());
+        for (BooleanClause clause : bq.getClauses()) {
+          cbq.add(copy(clause.getQuery(), copyTies), clause.getOccur());
+        }
+        c = cbq;
+      } else if (q.getClass() == DisjunctionMaxQuery.class && ties.containsKey(q)) {
+        Float tie = ties.get(q);
+        DisjunctionMaxQuery dmq = new DisjunctionMaxQuery(tie.floatValue());
+        for (Iterator it = ((DisjunctionMaxQuery)q).iterator(); it.hasNext();) {
+          dmq.add(copy((Query)it.next(), copyTies));
+        }
+        copyTies.put(dmq, tie);
+        c = dmq;
+      } else {
+        return (Query)q.clone();
+      }
+      c.setBoost(q.getBoost());
+      return c;
+    }
+  }
+
+  /** the stop filter free analyzers shared by the parsers of the schema */
+  final ExtendedAnalyzer.Registry analyzers;
+  /** the values analyzed while parsing this request, shared by its query parsers */
+  final ExtendedAnalyzer.TokenMemo tokenMemo = new ExtendedAnalyzer.TokenMemo();
+  /** the fuzzy expansions shared by the parsers of the plugin */
+  final ExtendedDismaxFuzzyExpansions fuzzyExpansions;
+
+  public ExtendedDismaxQParser(String qstr, SolrParams localParams, SolrParams params, SolrQueryRequest req,
+      ExtendedAnalyzer.Registry analyzers, ExtendedDismaxFuzzyExpansions fuzzyExpansions) {
     super(qstr, localParams, params, req);
+    this.analyzers = analyzers;
+    this.fuzzyExpansions = fuzzyExpansions;
   }
 
   Map<String,Float> queryFields;
   Query parsedUserQuery;
+  /** tie breaker of the DisjunctionMaxQueries built while parsing the user query */
+  Map<Query,Float> dismaxTies = new IdentityHashMap<Query,Float>();
 
 
   private String[] boostParams;
@@ -95,6 +234,11 @@ class ExtendedDismaxQParser extends QParser {
   private List<Query> boostQueries;
   private Query altUserQuery;
   private QParser altQParser;
+  private ExtendedDismaxQueryPlanner planner;
+  /** the estimated cost and the degradation step, if there is a cost budget */
+  private int costBudget;
+  private long estimatedCost;
+  private String degraded;
 
 
   public Query parse() throws ParseException {
@@ -104,16 +248,6 @@ class ExtendedDismaxQParser extends QParser {
     SolrParams solrParams = localParams == null ? params : new DefaultSolrParams(localParams, params);
 
     queryFields = U.parseFieldBoosts(solrParams.getParams(DMP.QF));
-    Map<String,Float> phraseFields = U.parseFieldBoosts(solrParams.getParams(DMP.PF));
-    Map<String,Float> phraseFields3 = U.parseFieldBoosts(solrParams.getParams("pf3"));
-
-    float tiebreaker = solrParams.getFloat(DMP.TIE, 0.0f);
-
-    int pslop = solrParams.getInt(DMP.PS, 0);
-    int qslop = solrParams.getInt(DMP.QS, 0);
-
-    // remove stopwords from mandatory "matching" component?
-    boolean stopwords = solrParams.getBool("stopwords", true);
 
     /* the main query we will execute.  we disable the coord because
      * this query is an artificial construct
@@ -137,231 +271,28 @@ class ExtendedDismaxQParser extends QParser {
     }
     else {     
       // There is a valid query string
-      // userQuery = partialEscape(U.stripUnbalancedQuotes(userQuery)).toString();
-
-      boolean lowercaseOperators = solrParams.getBool("lowercaseOperators", true);
-      String mainUserQuery = userQuery;
-
-      ExtendedSolrQueryParser up =
-        new ExtendedSolrQueryParser(this, IMPOSSIBLE_FIELD_NAME);
-      up.addAlias(IMPOSSIBLE_FIELD_NAME,
-                tiebreaker, queryFields);
-      up.setPhraseSlop(qslop);     // slop for explicit user phrase queries
-      up.setAllowLeadingWildcard(true);
-
-      // defer escaping and only do if lucene parsing fails, or we need phrases
-      // parsing fails.  Need to sloppy phrase queries anyway though.
-      List<Clause> clauses = null;
-      boolean specialSyntax = false;
-      int numPluses = 0;
-      int numMinuses = 0;
-      int numOptional = 0;
-      int numAND = 0;
-      int numOR = 0;
-      int numNOT = 0;
-      boolean sawLowerAnd=false;
-      boolean sawLowerOr=false;
-
-      clauses = splitIntoClauses(userQuery, false);
-      for (Clause clause : clauses) {
-        if (!clause.isPhrase && clause.hasSpecialSyntax) {
-          specialSyntax = true;
-        }
-        if (clause.must == '+') numPluses++;
-        if (clause.must == '-') numMinuses++;
-        if (clause.isBareWord()) {
-          String s = clause.val;
-          if ("AND".equals(s)) {
-            numAND++;
-          } else if ("OR".equals(s)) {
-            numOR++;
-          } else if ("NOT".equals(s)) {
-            numNOT++;
-          } else if (lowercaseOperators) {
-            if ("and".equals(s)) {
-              numAND++;
-              sawLowerAnd=true;
-            } else if ("or".equals(s)) {
-              numOR++;
-              sawLowerOr=true;
-            }
-          }
-        }
-      }
-      numOptional = clauses.size() - (numPluses + numMinuses);
-
-      // convert lower or mixed case operators to uppercase if we saw them.
-      // only do this for the lucene query part and not for phrase query boosting
-      // since some fields might not be case insensitive.
-      // We don't use a regex for this because it might change and AND or OR in
-      // a phrase query in a case sensitive field.
-      if (sawLowerAnd || sawLowerOr) {
-        StringBuilder sb = new StringBuilder();
-        for (int i=0; i<clauses.size(); i++) {
-          Clause clause = clauses.get(i);
-          String s = clause.raw;
-          // and and or won't be operators at the start or end
-          if (i>0 && i+1<clauses.size()) {
-            if ("AND".equalsIgnoreCase(s)) {
-              s="AND";
-            } else if ("OR".equalsIgnoreCase(s)) {
-              s="OR";
-            }
-          }
-          sb.append(s);
-          sb.append(' ');
-        }
-
-        mainUserQuery = sb.toString();
-      }
-
-      // For correct lucene queries, turn off mm processing if there
-      // were explicit operators (except for AND).
-      boolean doMinMatched = (numOR + numNOT + numPluses + numMinuses) == 0;
+      ParsedUserQuery parsed = getParsedUserQuery(userQuery, solrParams);
 
       try {
-        up.setRemoveStopFilter(!stopwords);
-        parsedUserQuery = up.parse(mainUserQuery);
-
-        if (stopwords && isEmpty(parsedUserQuery)) {
-         // if the query was all stop words, remove none of them
-          up.setRemoveStopFilter(true);
-          parsedUserQuery = up.parse(mainUserQuery);          
-        }
-      } catch (Exception e) {
-        // ignore failure and reparse later after escaping reserved chars
-      }
-
-      if (parsedUserQuery != null && doMinMatched) {
-        String minShouldMatch = solrParams.get(DMP.MM, "100%");
-        if (parsedUserQuery instanceof BooleanQuery) {
-          U.setMinShouldMatch((BooleanQuery)parsedUserQuery, minShouldMatch);
-        }
-      }
-
-
-      if (parsedUserQuery == null) {
-        StringBuilder sb = new StringBuilder();
-        for (Clause clause : clauses) {
-
-          boolean doQuote = clause.isPhrase;
-
-          String s=clause.val;
-          if (!clause.isPhrase && ("OR".equals(s) || "AND".equals(s) || "NOT".equals(s))) {
-            doQuote=true;
-          }
-
-          if (clause.must != 0) {
-            sb.append(clause.must);
-          }
-          if (clause.field != null) {
-            sb.append(clause.field);
-            sb.append(':');
-          }
-          if (doQuote) {
-            sb.append('"');
-          }
-          sb.append(clause.val);
-          if (doQuote) {
-            sb.append('"');
-          }
-          sb.append(' ');
+        costBudget = solrParams.getInt(ExtendedDismaxQParserPlugin.COST_BUDGET, 0);
+        if (costBudget > 0) {
+          parsed = degrade(userQuery, solrParams, parsed, costBudget);
         }
-        String escapedUserQuery = sb.toString();
-        parsedUserQuery = up.parse(escapedUserQuery);
-
-        // Only do minimum-match logic
-        String minShouldMatch = solrParams.get(DMP.MM, "100%");
 
-        if (parsedUserQuery instanceof BooleanQuery) {
-          BooleanQuery t = new BooleanQuery();
-          U.flattenBooleanQuery(t, (BooleanQuery)parsedUserQuery);
-          U.setMinShouldMatch(t, minShouldMatch);
-          parsedUserQuery = t;
-        }
-      }
-
-      query.add(parsedUserQuery, BooleanClause.Occur.MUST);
-
-      // sloppy phrase queries for proximity
-      if (phraseFields.size() > 0 || phraseFields3.size() > 0) {
-        // find non-field clauses
-        List<Clause> normalClauses = new ArrayList<Clause>(clauses.size());
-        for (Clause clause : clauses) {
-          if (clause.field != null || clause.isPhrase) continue;
-          // check for keywords "AND,OR,TO"
-          if (clause.isBareWord()) {
-            String s = clause.val.toString();
-            // avoid putting explict operators in the phrase query
-            if ("OR".equals(s) || "AND".equals(s) || "NOT".equals(s) || "TO".equals(s)) continue;
+        // the plan depends on the index, so it is made for every request
+        planner = solrParams.getBool(PLAN, false) ? new ExtendedDismaxQueryPlanner(getReq().getSearcher(), parsed.ties) : null;
+        parsedUserQuery = planner == null ? parsed.userQuery : planner.planUserQuery(parsed.userQuery);
+        query.add(parsedUserQuery, BooleanClause.Occur.MUST);
+        for (Query phrase : new Query[] { parsed.pf, parsed.pf3 }) {
+          if (phrase != null && planner != null) {
+            phrase = planner.planPhrase(phrase);
           }
-          normalClauses.add(clause);
-        }
-
-        Map<String,Float> pf = phraseFields;
-        if (normalClauses.size() >= 2 && pf.size() > 0) {
-          StringBuilder sb = new StringBuilder();
-          for (int i=0; i<normalClauses.size()-1; i++) {
-            sb.append('"');
-            sb.append(normalClauses.get(i).val);
-            sb.append(' ');
-            sb.append(normalClauses.get(i+1).val);
-            sb.append('"');
-            sb.append(' ');
-          }
-
-          String userPhraseQuery = sb.toString();
-
-          /* for parsing sloppy phrases using DisjunctionMaxQueries */
-          ExtendedSolrQueryParser pp =
-                  new ExtendedSolrQueryParser(this, IMPOSSIBLE_FIELD_NAME);
-          pp.addAlias(IMPOSSIBLE_FIELD_NAME,
-                  tiebreaker, pf);
-          pp.setPhraseSlop(pslop);
-          pp.makeDismax = false;  // make boolean queries instead
-          pp.setRemoveStopFilter(true);  // remove stop filter and keep stopwords
-          pp.minClauseSize = 2;  // if a stopword is removed, don't add the phrase
-
-          // TODO: perhaps we shouldn't use synonyms either...
-
-          Query phrase = pp.parse(userPhraseQuery);
-          if (phrase != null) {
-            query.add(phrase, BooleanClause.Occur.SHOULD);
-          }
-        }
-
-        pf = phraseFields3;
-        if (normalClauses.size() >= 3 && pf.size() > 0) {
-          StringBuilder sb = new StringBuilder();
-          for (int i=0; i<normalClauses.size()-2; i++) {
-            sb.append('"');
-            sb.append(normalClauses.get(i).val);
-            sb.append(' ');
-            sb.append(normalClauses.get(i+1).val);
-            sb.append(' ');
-            sb.append(normalClauses.get(i+2).val);
-            sb.append('"');
-            sb.append(' ');
-          }
-
-          String userPhraseQuery = sb.toString();
-
-          /* for parsing sloppy phrases using DisjunctionMaxQueries */
-          ExtendedSolrQueryParser pp =
-                  new ExtendedSolrQueryParser(this, IMPOSSIBLE_FIELD_NAME);
-          pp.addAlias(IMPOSSIBLE_FIELD_NAME,
-                  tiebreaker, pf);
-          pp.setPhraseSlop(pslop);
-          pp.makeDismax = false;  // make boolean queries instead
-          pp.setRemoveStopFilter(true);  // remove stop filter and keep stopwords
-          pp.minClauseSize = 2;  // keep min phrase size at 2 since stopword could have been removed in middle
-
-          Query phrase = pp.parse(userPhraseQuery);
           if (phrase != null) {
             query.add(phrase, BooleanClause.Occur.SHOULD);
           }
         }
-
+      } catch (IOException e) {
+        throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, e);
       }
     }
 
@@ -450,6 +381,434 @@ class ExtendedDismaxQParser extends QParser {
     return topQuery;
   }
 
+  /**
+   * @return the user query and its phrase boosts parsed with the params,
+   * from the query cache if it is there
+   */
+  private ParsedUserQuery getParsedUserQuery(String userQuery, SolrParams solrParams) throws ParseException {
+    queryFields = U.parseFieldBoosts(solrParams.getParams(DMP.QF));
+    Map<String,Float> phraseFields = U.parseFieldBoosts(solrParams.getParams(DMP.PF));
+    Map<String,Float> phraseFields3 = U.parseFieldBoosts(solrParams.getParams("pf3"));
+
+    float tiebreaker = solrParams.getFloat(DMP.TIE, 0.0f);
+
+    int pslop = solrParams.getInt(DMP.PS, 0);
+    int qslop = solrParams.getInt(DMP.QS, 0);
+
+    // remove stopwords from mandatory "matching" component?
+    boolean stopwords = solrParams.getBool("stopwords", true);
+
+    SolrCache queryCache = getReq().getSearcher().getCache(QUERY_CACHE);
+    String cacheKey = queryCache == null ? null : getQueryCacheKey(userQuery, solrParams);
+    if (cacheKey != null) {
+      ParsedUserQuery cached = (ParsedUserQuery)queryCache.get(cacheKey);
+      // the queries were analyzed with the field types of the schema they were parsed with
+      if (cached != null && cached.schema == getReq().getSchema()) {
+        return cached.copy();
+      }
+    }
+
+    ParsedUserQuery parsed = parseUserQuery(userQuery, solrParams, tiebreaker, pslop, qslop, stopwords, phraseFields, phraseFields3);
+    if (cacheKey != null) {
+      // the queries handed out may be modified, the cached ones never are
+      queryCache.put(cacheKey, parsed.copy());
+    }
+    return parsed;
+  }
+
+  /**
+   * Brings the estimated cost of the query within the budget, one step at
+   * a time: without the pf3 boost, then without the pf boost too, then
+   * with the reduced qf as well.  The last step is taken whatever its cost.
+   * The step taken is in the request context under {@link ExtendedDismaxQParserPlugin#DEGRADED}.
+   */
+  private ParsedUserQuery degrade(String userQuery, SolrParams solrParams, ParsedUserQuery parsed, int budget)
+      throws ParseException, IOException {
+    ExtendedDismaxQueryPlanner estimator = new ExtendedDismaxQueryPlanner(getReq().getSearcher(), parsed.ties);
+    long userCost = estimator.estimate(parsed.userQuery);
+    long pfCost = parsed.pf == null ? 0 : estimator.estimate(parsed.pf);
+    long pf3Cost = parsed.pf3 == null ? 0 : estimator.estimate(parsed.pf3);
+    estimatedCost = userCost + pfCost + pf3Cost;
+    degraded = null;
+
+    if (estimatedCost > budget && parsed.pf3 != null) {
+      parsed.pf3 = null;
+      estimatedCost -= pf3Cost;
+      degraded = DEGRADED_PF3;
+    }
+    if (estimatedCost > budget && parsed.pf != null) {
+      parsed.pf = null;
+      parsed.pf3 = null;
+      estimatedCost -= pfCost;
+      degraded = DEGRADED_PF;
+    }
+    if (estimatedCost > budget) {
+      String reducedQf = getReducedQueryFields(solrParams);
+      if (reducedQf != null) {
+        Map<String,String> reduced = new HashMap<String,String>();
+        reduced.put(DMP.QF, reducedQf);
+        reduced.put(DMP.PF, "");
+        reduced.put("pf3", "");
+        parsed = getParsedUserQuery(userQuery, new DefaultSolrParams(new MapSolrParams(reduced), solrParams));
+        // it is cached under the reduced qf, a query of the whole qf would be served for it from then on
+        if (!searchesQueryFields(parsed.userQuery, parsed.ties, getSearchedFields())) {
+          throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+              "query of the reduced qf '" + reducedQf + "' searches other fields: " + parsed.userQuery);
+        }
+        estimatedCost = new ExtendedDismaxQueryPlanner(getReq().getSearcher(), parsed.ties).estimate(parsed.userQuery);
+        degraded = DEGRADED_QF;
+      }
+    }
+
+    if (degraded != null) {
+      getReq().getContext().put(ExtendedDismaxQParserPlugin.DEGRADED, degraded);
+    }
+    return parsed;
+  }
+
+  /**
+   * @return the qf of the last degradation step, null if it is the whole qf:
+   * the {@link ExtendedDismaxQParserPlugin#BUDGET_QF} param, or else the most boosted qf fields
+   */
+  private String getReducedQueryFields(SolrParams solrParams) {
+    String budgetQf = solrParams.get(ExtendedDismaxQParserPlugin.BUDGET_QF);
+    if (budgetQf != null) return budgetQf;
+    if (queryFields.size() <= REDUCED_QF_SIZE) return null;
+
+    List<Map.Entry<String,Float>> fields = new ArrayList<Map.Entry<String,Float>>(queryFields.entrySet());
+    // fields without a boost have a boost of 1, ties by name so the reduced qf is always the same
+    Collections.sort(fields, new Comparator<Map.Entry<String,Float>>() {
+      public int compare(Map.Entry<String,Float> a, Map.Entry<String,Float> b) {
+        float ba = a.getValue() == null ? 1.0f : a.getValue().floatValue();
+        float bb = b.getValue() == null ? 1.0f : b.getValue().floatValue();
+        return ba != bb ? Float.compare(bb, ba) : a.getKey().compareTo(b.getKey());
+      }
+    });
+    StringBuilder sb = new StringBuilder();
+    for (int i=0; i<REDUCED_QF_SIZE; i++) {
+      Map.Entry<String,Float> field = fields.get(i);
+      sb.append(field.getKey());
+      if (field.getValue() != null) sb.append('^').append(field.getValue());
+      sb.append(' ');
+    }
+    return sb.toString();
+  }
+
+  /**
+   * @return the qf fields, and the reversed copies their leading wildcards run on
+   */
+  private Set<String> getSearchedFields() {
+    Set<String> fields = new HashSet<String>(queryFields.keySet());
+    for (String f : queryFields.keySet()) {
+      fields.add(analyzers.getWildcardField(f, queryFields.keySet()));
+    }
+    return fields;
+  }
+
+  /**
+   * @return true if every disjunction of the qf in the query was built by
+   * the parser, and only searches the given fields
+   */
+  private static boolean searchesQueryFields(Query q, Map<Query,Float> ties, Set<String> fields) {
+    if (q instanceof BooleanQuery) {
+      for (BooleanClause clause : ((BooleanQuery)q).getClauses()) {
+        if (!searchesQueryFields(clause.getQuery(), ties, fields)) return false;
+      }
+    } else if (q instanceof DisjunctionMaxQuery) {
+      if (!ties.containsKey(q)) return false;
+      Set<String> searched = new HashSet<String>();
+      for (Iterator it = ((DisjunctionMaxQuery)q).iterator(); it.hasNext();) {
+        addFields((Query)it.next(), searched);
+      }
+      return fields.containsAll(searched);
+    }
+    // explicit fields of the user query are not qf fields
+    return true;
+  }
+
+  private static void addFields(Query q, Set<String> fields) {
+    if (q instanceof BooleanQuery) {
+      for (BooleanClause clause : ((BooleanQuery)q).getClauses()) {
+        addFields(clause.getQuery(), fields);
+      }
+    } else if (q instanceof PrefixQuery) {
+      fields.add(((PrefixQuery)q).getPrefix().field());
+    } else if (q instanceof WildcardQuery) {
+      fields.add(((WildcardQuery)q).getTerm().field());
+    } else if (q instanceof FuzzyQuery) {
+      fields.add(((FuzzyQuery)q).getTerm().field());
+    } else if (q instanceof TermRangeQuery) {
+      fields.add(((TermRangeQuery)q).getField());
+    } else if (q instanceof NumericRangeQuery) {
+      fields.add(((NumericRangeQuery)q).getField());
+    } else {
+      Set<Term> terms = new HashSet<Term>();
+      try {
+        q.extractTerms(terms);
+      } catch (UnsupportedOperationException e) {
+        // a query of other terms than the ones it was built with, its field can't be told
+        return;
+      }
+      for (Term term : terms) {
+        fields.add(term.field());
+      }
+    }
+  }
+
+  /**
+   * Parses the user query, and its pf and pf3 sloppy phrase boosts.  This
+   * only depends on the params of {@link #getQueryCacheKey}.
+   */
+  private ParsedUserQuery parseUserQuery(String userQuery, SolrParams solrParams, float tiebreaker, int pslop, int qslop,
+      boolean stopwords, Map<String,Float> phraseFields, Map<String,Float> phraseFields3) throws ParseException {
+    dismaxTies = new IdentityHashMap<Query,Float>();
+    // a local, the degrade step parses again with the reduced qf
+    Query parsedQuery = null;
+    Query pfQuery = null;
+    Query pf3Query = null;
+
+    // userQuery = partialEscape(U.stripUnbalancedQuotes(userQuery)).toString();
+
+    boolean lowercaseOperators = solrParams.getBool("lowercaseOperators", true);
+    String mainUserQuery = userQuery;
+
+    ExtendedSolrQueryParser up =
+      new ExtendedSolrQueryParser(this, IMPOSSIBLE_FIELD_NAME);
+    up.addAlias(IMPOSSIBLE_FIELD_NAME,
+              tiebreaker, queryFields);
+    up.setPhraseSlop(qslop);     // slop for explicit user phrase queries
+    up.setAllowLeadingWildcard(true);
+
+    // defer escaping and only do if lucene parsing fails, or we need phrases
+    // parsing fails.  Need to sloppy phrase queries anyway though.
+    Clauses clauses = null;
+    boolean specialSyntax = false;
+    int numPluses = 0;
+    int numMinuses = 0;
+    int numOptional = 0;
+    int numAND = 0;
+    int numOR = 0;
+    int numNOT = 0;
+    boolean sawLowerAnd=false;
+    boolean sawLowerOr=false;
+
+    clauses = splitIntoClauses(userQuery);
+    for (Clause clause : clauses) {
+      if (!clause.isPhrase && clause.hasSpecialSyntax) {
+        specialSyntax = true;
+      }
+      if (clause.must == '+') numPluses++;
+      if (clause.must == '-') numMinuses++;
+      if (clause.isBareWord()) {
+        if (clause.valEquals("AND")) {
+          numAND++;
+        } else if (clause.valEquals("OR")) {
+          numOR++;
+        } else if (clause.valEquals("NOT")) {
+          numNOT++;
+        } else if (lowercaseOperators) {
+          if (clause.valEquals("and")) {
+            numAND++;
+            sawLowerAnd=true;
+          } else if (clause.valEquals("or")) {
+            numOR++;
+            sawLowerOr=true;
+          }
+        }
+      }
+    }
+    numOptional = clauses.size() - (numPluses + numMinuses);
+
+    // convert lower or mixed case operators to uppercase if we saw them.
+    // only do this for the lucene query part and not for phrase query boosting
+    // since some fields might not be case insensitive.
+    // We don't use a regex for this because it might change and AND or OR in
+    // a phrase query in a case sensitive field.
+    if (sawLowerAnd || sawLowerOr) {
+      StringBuilder sb = new StringBuilder();
+      for (int i=0; i<clauses.size(); i++) {
+        Clause clause = clauses.get(i);
+        String s = clause.raw();
+        // and and or won't be operators at the start or end
+        if (i>0 && i+1<clauses.size()) {
+          if ("AND".equalsIgnoreCase(s)) {
+            s="AND";
+          } else if ("OR".equalsIgnoreCase(s)) {
+            s="OR";
+          }
+        }
+        sb.append(s);
+        sb.append(' ');
+      }
+
+      mainUserQuery = sb.toString();
+    }
+
+    // For correct lucene queries, turn off mm processing if there
+    // were explicit operators (except for AND).
+    boolean doMinMatched = (numOR + numNOT + numPluses + numMinuses) == 0;
+
+    // don't bother lucene with a query it is known to fail on
+    if (!clauses.needsEscaping) {
+      try {
+        up.setRemoveStopFilter(!stopwords);
+        parsedQuery = up.parse(mainUserQuery);
+
+        if (stopwords && isEmpty(parsedQuery)) {
+         // if the query was all stop words, remove none of them
+          up.setRemoveStopFilter(true);
+          parsedQuery = up.parse(mainUserQuery);          
+        }
+      } catch (Exception e) {
+        // ignore failure and reparse later after escaping reserved chars
+      }
+    }
+
+    if (parsedQuery != null && doMinMatched) {
+      String minShouldMatch = solrParams.get(DMP.MM, "100%");
+      if (parsedQuery instanceof BooleanQuery) {
+        U.setMinShouldMatch((BooleanQuery)parsedQuery, minShouldMatch);
+      }
+    }
+
+
+    if (parsedQuery == null) {
+      StringBuilder sb = new StringBuilder();
+      for (Clause clause : clauses) {
+
+        boolean doQuote = clause.isPhrase;
+
+        if (!clause.isPhrase && (clause.valEquals("OR") || clause.valEquals("AND") || clause.valEquals("NOT"))) {
+          doQuote=true;
+        }
+
+        if (clause.must != 0) {
+          sb.append(clause.must);
+        }
+        if (clause.field != null) {
+          sb.append(clause.field);
+          sb.append(':');
+        }
+        if (doQuote) {
+          sb.append('"');
+        }
+        sb.append(clause.val());
+        if (doQuote) {
+          sb.append('"');
+        }
+        sb.append(' ');
+      }
+      String escapedUserQuery = sb.toString();
+      parsedQuery = up.parse(escapedUserQuery);
+
+      // Only do minimum-match logic
+      String minShouldMatch = solrParams.get(DMP.MM, "100%");
+
+      if (parsedQuery instanceof BooleanQuery) {
+        BooleanQuery t = new BooleanQuery();
+        U.flattenBooleanQuery(t, (BooleanQuery)parsedQuery);
+        U.setMinShouldMatch(t, minShouldMatch);
+        parsedQuery = t;
+      }
+    }
+
+    // sloppy phrase queries for proximity
+    if (phraseFields.size() > 0 || phraseFields3.size() > 0) {
+      // find non-field clauses
+      List<Clause> normalClauses = new ArrayList<Clause>(clauses.size());
+      for (Clause clause : clauses) {
+        if (clause.field != null || clause.isPhrase) continue;
+        // check for keywords "AND,OR,TO"
+        if (clause.isBareWord()) {
+          // avoid putting explict operators in the phrase query
+          if (clause.valEquals("OR") || clause.valEquals("AND") || clause.valEquals("NOT") || clause.valEquals("TO")) continue;
+        }
+        normalClauses.add(clause);
+      }
+
+      Map<String,Float> pf = phraseFields;
+      if (normalClauses.size() >= 2 && pf.size() > 0) {
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i<normalClauses.size()-1; i++) {
+          sb.append('"');
+          sb.append(normalClauses.get(i).val());
+          sb.append(' ');
+          sb.append(normalClauses.get(i+1).val());
+          sb.append('"');
+          sb.append(' ');
+        }
+
+        String userPhraseQuery = sb.toString();
+
+        /* for parsing sloppy phrases using DisjunctionMaxQueries */
+        ExtendedSolrQueryParser pp =
+                new ExtendedSolrQueryParser(this, IMPOSSIBLE_FIELD_NAME);
+        pp.addAlias(IMPOSSIBLE_FIELD_NAME,
+                tiebreaker, pf);
+        pp.setPhraseSlop(pslop);
+        pp.makeDismax = false;  // make boolean queries instead
+        pp.setRemoveStopFilter(true);  // remove stop filter and keep stopwords
+        pp.minClauseSize = 2;  // if a stopword is removed, don't add the phrase
+
+        // TODO: perhaps we shouldn't use synonyms either...
+
+        pfQuery = pp.parse(userPhraseQuery);
+      }
+
+      pf = phraseFields3;
+      if (normalClauses.size() >= 3 && pf.size() > 0) {
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i<normalClauses.size()-2; i++) {
+          sb.append('"');
+          sb.append(normalClauses.get(i).val());
+          sb.append(' ');
+          sb.append(normalClauses.get(i+1).val());
+          sb.append(' ');
+          sb.append(normalClauses.get(i+2).val());
+          sb.append('"');
+          sb.append(' ');
+        }
+
+        String userPhraseQuery = sb.toString();
+
+        /* for parsing sloppy phrases using DisjunctionMaxQueries */
+        ExtendedSolrQueryParser pp =
+                new ExtendedSolrQueryParser(this, IMPOSSIBLE_FIELD_NAME);
+        pp.addAlias(IMPOSSIBLE_FIELD_NAME,
+                tiebreaker, pf);
+        pp.setPhraseSlop(pslop);
+        pp.makeDismax = false;  // make boolean queries instead
+        pp.setRemoveStopFilter(true);  // remove stop filter and keep stopwords
+        pp.minClauseSize = 2;  // keep min phrase size at 2 since stopword could have been removed in middle
+
+        pf3Query = pp.parse(userPhraseQuery);
+      }
+
+    }
+
+    return new ParsedUserQuery(getReq().getSchema(), parsedQuery, pfQuery, pf3Query, dismaxTies);
+  }
+
+  /**
+   * @return the query cache key, or null if the query can't be cached
+   */
+  static String getQueryCacheKey(String userQuery, SolrParams solrParams) {
+    // nested queries may depend on any param
+    if (userQuery.indexOf("_query_") >= 0) return null;
+    // date math is resolved when parsed, a cached NOW would never move
+    if (userQuery.indexOf("NOW") >= 0) return null;
+
+    StringBuilder sb = new StringBuilder(userQuery);
+    for (String name : QUERY_CACHE_PARAMS) {
+      sb.append('\u0000').append(name);
+      String[] vals = solrParams.getParams(name);
+      if (vals != null) {
+        for (String val : vals) sb.append('=').append(val);
+      }
+    }
+    return sb.toString();
+  }
+
   @Override
   public String[] getDefaultHighlightFields() {
     String[] highFields = queryFields.keySet().toArray(new String[0]);
@@ -470,6 +829,13 @@ class ExtendedDismaxQParser extends QParser {
                 QueryParsing.toString(boostQueries, getReq().getSchema()));
     }
     debugInfo.add("boostfuncs", getReq().getParams().getParams(DisMaxParams.BF));
+    if (planner != null) {
+      debugInfo.add("queryPlan", planner.getDebugInfo());
+    }
+    if (costBudget > 0) {
+      debugInfo.add("estimatedCost", Long.valueOf(estimatedCost));
+      debugInfo.add("degraded", degraded);
+    }
   }
 
 
@@ -550,165 +916,291 @@ class ExtendedDismaxQParser extends QParser {
   }
 
 
+  /**
+   * The clauses of a user query, see {@link #splitIntoClauses}.
+   */
+  static class Clauses extends ArrayList<Clause> {
+    /**
+     * true if lucene is known to fail on the raw query, so only the query
+     * rebuilt from the escaped clauses is parsed
+     */
+    boolean needsEscaping;
+
+    Clauses() {
+      super(4);
+    }
+  }
+
+  /**
+   * A clause of the user query.  The raw clause and the value are offsets
+   * into the query, the strings are only made when asked for.
+   */
   static class Clause {
 
     boolean isBareWord() {
       return must==0 && !isPhrase;
     }
 
+    CharSequence src;
+    int start, end;  // the raw clause w/o leading/trailing whitespace
+    int valStart, valEnd;  // the field value (minus the field name, +/-, quotes)
+    boolean escapeVal;  // the value has chars that need escaping
     String field;
     boolean isPhrase;
     boolean hasWhitespace;
     boolean hasSpecialSyntax;
     boolean syntaxError;
     char must;   // + or -
-    String val;  // the field value (minus the field name, +/-, quotes)
-    String raw;  // the raw clause w/o leading/trailing whitespace
+    private String val;
+    private String raw;
+
+    /**
+     * @return the field value with the reserved chars escaped
+     */
+    String val() {
+      if (val == null) {
+        if (!escapeVal) {
+          val = src.subSequence(valStart, valEnd).toString();
+        } else {
+          StringBuilder sb = new StringBuilder(valEnd - valStart + 8);
+          int pos = valStart;
+          while (pos < valEnd) {
+            char ch = src.charAt(pos++);
+            if (ch=='\\') {    // leave escaped chars escaped
+              sb.append(ch);
+              if (pos >= valEnd) {
+                sb.append(ch); // double backslash if we are at the end of the string
+                break;
+              }
+              sb.append(src.charAt(pos++));
+              continue;
+            }
+            if (isSpecial(ch)) sb.append('\\');
+            sb.append(ch);
+          }
+          val = sb.toString();
+        }
+      }
+      return val;
+    }
+
+    /**
+     * @return the raw clause
+     */
+    String raw() {
+      if (raw == null) raw = src.subSequence(start, end).toString();
+      return raw;
+    }
+
+    /**
+     * @return true if the field value is s, without making the value
+     */
+    boolean valEquals(String s) {
+      if (val != null) return val.equals(s);
+      // an escaped value has backslashes, none of the words compared have
+      if (escapeVal || valEnd - valStart != s.length()) return false;
+      for (int i=0; i<s.length(); i++) {
+        if (src.charAt(valStart + i) != s.charAt(i)) return false;
+      }
+      return true;
+    }
   }
 
-  
-  public List<Clause> splitIntoClauses(String s, boolean ignoreQuote) {
-    ArrayList<Clause> lst = new ArrayList<Clause>(4);
-    Clause clause = new Clause();
+  /** the chars escaped in a clause value outside of a phrase */
+  static boolean isSpecial(char ch) {
+    switch (ch) {
+      case '!':
+      case '(':
+      case ')':
+      case ':':
+      case '^':
+      case '[':
+      case ']':
+      case '{':
+      case '}':
+      case '~':
+      case '*':
+      case '?':
+      case '"':
+      case '+':
+      case '-':
+        return true;
+    }
+    return false;
+  }
 
+  /**
+   * Splits the user query into clauses in a single pass, without copying
+   * it.  A quote that is never closed is taken as a plain char, the
+   * phrases before it are kept.  Also finds out on the way whether lucene
+   * would fail on the raw query, from unbalanced parens, ranges and quotes,
+   * a trailing + or -, a dangling colon, boost or backslash, or an operator
+   * with a missing operand.  Only failures that are certain are reported,
+   * anything else is left to the parser.
+   */
+  public Clauses splitIntoClauses(CharSequence s) {
+    Clauses lst = new Clauses();
     int pos=0;
     int end=s.length();
-    char ch=0;
-    int start;
-    outer: while (pos < end) {
-      ch = s.charAt(pos);
+    // no unescaped quote closes a phrase opened from here on
+    int quoteLimit=end;
+    int parens=0;
+    int ranges=0;
+    boolean escape=false;
+    boolean unbalancedQuote=false;
+    // lucene starts a phrase at a quote inside a word, then nothing is certain
+    boolean innerQuote=false;
 
+    while (pos < end) {
+      char ch = s.charAt(pos);
       while (Character.isWhitespace(ch)) {
         if (++pos >= end) break;
         ch = s.charAt(pos);
       }
+      if (pos >= end) break;
 
-      start = pos;      
+      Clause clause = new Clause();
+      clause.src = s;
+      clause.start = pos;
 
       if (ch=='+' || ch=='-') {
         clause.must = ch;
         pos++;
       }
 
-      clause.field = getFieldName(s, pos, end);
-      if (clause.field != null) {
-        pos += clause.field.length(); // skip the field name
-        pos++;  // skip the ':'
+      int colon = getFieldNameEnd(s, pos, end);
+      if (colon >= 0) {
+        clause.field = s.subSequence(pos, colon).toString();
+        pos = colon + 1;  // skip the ':'
       }
 
-      if (pos>=end) break;
-
-
-      char inString=0;
+      if (pos>=end) {
+        // a trailing + or - is dropped
+        escape = true;
+        break;
+      }
 
-      ch = s.charAt(pos);
-      if (!ignoreQuote && ch=='"') {
-        clause.isPhrase = true;
-        inString = '"';
-        pos++;
+      if (s.charAt(pos)=='"' && pos < quoteLimit) {
+        int close = pos + 1;
+        boolean hasWhitespace = false;
+        while (close < end) {
+          ch = s.charAt(close);
+          if (ch=='\\') {
+            close += 2;
+            continue;
+          }
+          if (ch=='"') break;
+          if (Character.isWhitespace(ch)) hasWhitespace = true;
+          close++;
+        }
+        if (close < end) {
+          clause.isPhrase = true;
+          clause.hasWhitespace = hasWhitespace;
+          clause.valStart = pos + 1;
+          clause.valEnd = close;
+          pos = close + 1;
+        } else {
+          // unbalanced, this quote and any after it are plain chars
+          quoteLimit = pos;
+          unbalancedQuote = true;
+        }
       }
 
-      StringBuilder sb = new StringBuilder();
-      while (pos < end) {
-        ch = s.charAt(pos++);
-        if (ch=='\\') {    // skip escaped chars, but leave escaped
-          sb.append(ch);
-          if (pos >= end) {
-            sb.append(ch); // double backslash if we are at the end of the string
-            break;
+      if (!clause.isPhrase) {
+        clause.valStart = pos;
+        while (pos < end) {
+          ch = s.charAt(pos);
+          if (ch=='\\') {    // skip escaped chars, but leave escaped
+            if (pos + 1 >= end) {
+              clause.escapeVal = true;
+              escape = true;
+              pos = end;
+              break;
+            }
+            pos += 2;
+            continue;
           }
-          ch = s.charAt(pos++);
-          sb.append(ch);
-          continue;
-        } else if (inString != 0 && ch == inString) {
-          inString=0;
-          break;
-        } else if (Character.isWhitespace(ch)) {
-          clause.hasWhitespace=true;
-          if (inString == 0) {
-            // end of the token if we aren't in a string, backing
-            // up the position.
-            pos--;
+          if (Character.isWhitespace(ch)) {
+            clause.hasWhitespace = true;
             break;
           }
-        }
-
-        if (inString == 0) {
-          switch (ch) {
-            case '!':
-            case '(':
-            case ')':
-            case ':':
-            case '^':
-            case '[':
-            case ']':
-            case '{':
-            case '}':
-            case '~':
-            case '*':
-            case '?':
-            case '"':
-            case '+':
-            case '-':
-              clause.hasSpecialSyntax = true;
-              sb.append('\\');
+          if (isSpecial(ch)) {
+            clause.hasSpecialSyntax = true;
+            clause.escapeVal = true;
+            switch (ch) {
+              case '[':
+              case '{': ranges++; break;
+              case ']':
+              case '}': if (--ranges < 0) escape = true; break;
+              case '"':
+                if (pos != clause.valStart) innerQuote = true;
+                break;
+            }
+            // anything goes between the bounds of a range
+            if (ranges == 0) {
+              switch (ch) {
+                case '(': parens++; break;
+                case ')': if (--parens < 0) escape = true; break;
+                case '^':
+                  if (pos + 1 >= end || !Character.isDigit(s.charAt(pos + 1))) escape = true;
+                  break;
+                case ':':
+                  // a colon without a field name, or without a value at the end
+                  if (pos == clause.valStart || pos + 1 >= end) escape = true;
+                  break;
+              }
+            }
           }
-        } else if (ch=='"') {
-          // only char we need to escape in a string is double quote
-          sb.append('\\');
-        }
-        sb.append(ch);
-      }
-      clause.val = sb.toString();
- 
-      if (clause.isPhrase) {
-        if (inString != 0) {
-          // detected bad quote balancing... retry
-          // parsing with quotes like any other char
-          return splitIntoClauses(s, true);
+          pos++;
         }
+        clause.valEnd = pos;
 
-        // special syntax in a string isn't special
-        clause.hasSpecialSyntax = false;        
-      } else {
         // an empty clause... must be just a + or - on it's own
-        if (clause.val.length() == 0) {
+        if (clause.valEnd == clause.valStart) {
           clause.syntaxError = true;
-          if (clause.must != 0) {
-            clause.val="\\"+clause.must;
-            clause.must = 0;
-            clause.hasSpecialSyntax = true;
-          } else {
+          if (clause.must == 0) {
             // uh.. this shouldn't happen.
-            clause=null;
+            continue;
           }
+          clause.val = "\\" + clause.must;
+          clause.must = 0;
+          clause.hasSpecialSyntax = true;
         }
       }
 
-      if (clause != null) {
-        clause.raw = s.substring(start, pos);
-        lst.add(clause);
-      }
-      clause = new Clause();
+      clause.end = pos;
+      lst.add(clause);
     }
 
+    if (parens != 0 || ranges != 0 || unbalancedQuote) escape = true;
+    if (!lst.isEmpty()) {
+      // operators missing an operand, lucene takes a lone + or - before a clause as its operator
+      Clause first = lst.get(0);
+      Clause last = lst.get(lst.size() - 1);
+      if (first.isBareWord() && (first.valEquals("AND") || first.valEquals("OR"))) escape = true;
+      if (last.syntaxError) escape = true;
+      if (last.isBareWord() && (last.valEquals("AND") || last.valEquals("OR") || last.valEquals("NOT"))) escape = true;
+    }
+    lst.needsEscaping = escape && !innerQuote;
     return lst;
   }
 
-  public String getFieldName(String s, int pos, int end) {
-    if (pos >= end) return null;
-    int p=pos;
-    int colon = s.indexOf(':',pos);
-    // make sure there is space after the colon, but not whitespace
-    if (colon<=pos || colon+1>=end || Character.isWhitespace(s.charAt(colon+1))) return null;
-    char ch = s.charAt(p++);
-    if (!Character.isJavaIdentifierPart(ch)) return null;
-    while (p<colon) {
-      ch = s.charAt(p++);
-      if (!(Character.isJavaIdentifierPart(ch) || ch=='-' || ch=='.')) return null;
-    }
-    String fname = s.substring(pos, p);
-    return getReq().getSchema().getFieldTypeNoEx(fname) == null ? null : fname;
+  /**
+   * @return the position of the colon after the field name at pos, or -1 if
+   * the clause doesn't start with a field name of the schema
+   */
+  int getFieldNameEnd(CharSequence s, int pos, int end) {
+    if (pos >= end || !Character.isJavaIdentifierPart(s.charAt(pos))) return -1;
+    int p = pos + 1;
+    while (p < end) {
+      char ch = s.charAt(p);
+      if (ch == ':') break;
+      if (!(Character.isJavaIdentifierPart(ch) || ch=='-' || ch=='.')) return -1;
+      p++;
+    }
+    // make sure there is something after the colon, but not whitespace
+    if (p + 1 >= end || Character.isWhitespace(s.charAt(p + 1))) return -1;
+    return analyzers.isField(s.subSequence(pos, p).toString()) ? p : -1;
   }
 
 
@@ -845,6 +1337,8 @@ class ExtendedDismaxQParser extends QParser {
     boolean bool;
     float flt;
     int slop;
+    /** the fields of the alias being expanded, a leading wildcard only runs on a reversed copy of these */
+    Set<String> aliasFields;
 
     @Override
     protected Query getFieldQuery(String field, String val) throws ParseException {
@@ -942,6 +1436,7 @@ class ExtendedDismaxQParser extends QParser {
 
         if (makeDismax) {
           DisjunctionMaxQuery q = new DisjunctionMaxQuery(lst, a.tie);
+          dismaxTies.put(q, Float.valueOf(a.tie));
           return q;
         } else {
           // should we disable coord?
@@ -962,27 +1457,59 @@ class ExtendedDismaxQParser extends QParser {
        if (a.fields.size()==0) return null;
        List<Query> lst= new ArrayList<Query>(4);
 
-       for (String f : a.fields.keySet()) {
-         this.field = f;
-         Query sub = getQuery();
-         if (sub != null) {
+       // with leading wildcards, fields copied into the same reversed field would repeat its clause,
+       // they share one with the highest boost of them instead
+       Map<String,Query> wildcardQueries = null;
+       aliasFields = a.fields.keySet();
+       try {
+         for (String f : a.fields.keySet()) {
+           this.field = f;
            Float boost = a.fields.get(f);
-           if (boost != null) {
-              sub.setBoost(boost);
+           String wildcardField = null;
+           if (isLeadingWildcard()) {
+             if (wildcardQueries == null) wildcardQueries = new HashMap<String,Query>();
+             wildcardField = analyzers.getWildcardField(f, aliasFields);
+             Query shared = wildcardQueries.get(wildcardField);
+             if (shared != null) {
+               float b = boost == null ? 1.0f : boost.floatValue();
+               if (b > shared.getBoost()) shared.setBoost(b);
+               continue;
+             }
+           }
+           Query sub = getQuery();
+           if (sub != null) {
+             if (boost != null) {
+                sub.setBoost(boost);
+             }
+             lst.add(sub);
+             if (wildcardField != null) wildcardQueries.put(wildcardField, sub);
            }
-           lst.add(sub);
          }
+       } finally {
+         aliasFields = null;
        }
        return lst;
      }
 
+    private boolean isLeadingWildcard() {
+      return type == QType.WILDCARD && val.length() > 0 && (val.charAt(0) == '*' || val.charAt(0) == '?');
+    }
+
     private Query getQuery() throws ParseException {
       try {
 
         switch (type) {
           case FIELD:  // fallthrough
           case PHRASE:
-            Query query = super.getFieldQuery(field, val);
+            // most fields share a few field types, and the same words come
+            // back in the escaped query and the phrase boosts
+            Query query;
+            analyzer.startSharedTokens(val);
+            try {
+              query = super.getFieldQuery(field, val);
+            } finally {
+              analyzer.endSharedTokens();
+            }
             if (query instanceof PhraseQuery) {
               PhraseQuery pq = (PhraseQuery)query;
               if (minClauseSize > 1 && pq.getTerms().length < minClauseSize) return null;
@@ -997,8 +1524,22 @@ class ExtendedDismaxQParser extends QParser {
             }
             return query;
           case PREFIX: return super.getPrefixQuery(field, val);
-          case WILDCARD: return super.getWildcardQuery(field, val);
-          case FUZZY: return super.getFuzzyQuery(field, val, flt);
+          case WILDCARD:
+            // the reversed terms of a copy are a prefix enumeration instead of a scan of all terms,
+            // the solr parser reverses the wildcard for fields indexed that way
+            if (!isLeadingWildcard()) return super.getWildcardQuery(field, val);
+            return super.getWildcardQuery(analyzers.getWildcardField(field,
+                aliasFields == null ? Collections.singleton(field) : aliasFields), val);
+          case FUZZY:
+            Query fq = super.getFuzzyQuery(field, val, flt);
+            // expanded from the cached candidates of the searcher instead of a scan of all terms
+            if (fq instanceof FuzzyQuery && ((FuzzyQuery)fq).getPrefixLength() == 0) {
+              FuzzyQuery fuzzy = (FuzzyQuery)fq;
+              Query expanded = new ExtendedDismaxFuzzyQuery(fuzzyExpansions, fuzzy.getTerm(), fuzzy.getMinSimilarity());
+              expanded.setBoost(fuzzy.getBoost());
+              return expanded;
+            }
+            return fq;
           case RANGE: return super.getRangeQuery(field, val, val2, bool);
         }
         return null;
@@ -1021,11 +1562,238 @@ class ExtendedDismaxQParser extends QParser {
 
 
 class ExtendedAnalyzer extends Analyzer {
-  final Map<String, Analyzer> map = new HashMap<String, Analyzer>();
   final QParser parser;
   final Analyzer queryAnalyzer;
+  final Registry registry;
   public boolean removeStopFilter = false;
 
+  final TokenMemo tokenMemo;
+  // the value being analyzed for a field query, null if none
+  private String sharedText;
+
+  /**
+   * The tokens of the values analyzed for a request, by query analyzer and
+   * text.  Fields of the same type share the analyzer, and the stop filter
+   * free analyzer of a type is another one, so the key covers the stop
+   * filter mode too.
+   */
+  static class TokenMemo {
+    private final Map<Analyzer, Map<String, SharedTokens>> analyzers = new IdentityHashMap<Analyzer, Map<String, SharedTokens>>();
+
+    SharedTokens get(Analyzer a, String text) {
+      Map<String, SharedTokens> texts = analyzers.get(a);
+      return texts == null ? null : texts.get(text);
+    }
+
+    void put(Analyzer a, String text, SharedTokens tokens) {
+      Map<String, SharedTokens> texts = analyzers.get(a);
+      if (texts == null) {
+        texts = new HashMap<String, SharedTokens>();
+        analyzers.put(a, texts);
+      }
+      texts.put(text, tokens);
+    }
+  }
+
+  /**
+   * The terms and position increments of a value analyzed once, replayed
+   * for each field of the same query analyzer.  The query parser builds
+   * its queries from these two attributes only.
+   */
+  static class SharedTokens {
+    private final List<String> terms = new ArrayList<String>(4);
+    private final List<Integer> positionIncrements = new ArrayList<Integer>(4);
+
+    SharedTokens(TokenStream source) throws IOException {
+      TermAttribute termAtt = (TermAttribute)source.addAttribute(TermAttribute.class);
+      PositionIncrementAttribute posIncrAtt = (PositionIncrementAttribute)source.addAttribute(PositionIncrementAttribute.class);
+      try {
+        source.reset();
+        while (source.incrementToken()) {
+          terms.add(termAtt.term());
+          positionIncrements.add(Integer.valueOf(posIncrAtt.getPositionIncrement()));
+        }
+        source.end();
+      } finally {
+        source.close();
+      }
+    }
+
+    TokenStream replay() {
+      return new SharedTokenStream(this);
+    }
+  }
+
+  static final class SharedTokenStream extends TokenStream {
+    private final SharedTokens tokens;
+    private final TermAttribute termAtt = (TermAttribute)addAttribute(TermAttribute.class);
+    private final PositionIncrementAttribute posIncrAtt = (PositionIncrementAttribute)addAttribute(PositionIncrementAttribute.class);
+    private int upto;
+
+    SharedTokenStream(SharedTokens tokens) {
+      this.tokens = tokens;
+    }
+
+    public boolean incrementToken() {
+      if (upto >= tokens.terms.size()) return false;
+      clearAttributes();
+      termAtt.setTermBuffer(tokens.terms.get(upto));
+      posIncrAtt.setPositionIncrement(tokens.positionIncrements.get(upto).intValue());
+      upto++;
+      return true;
+    }
+
+    public void reset() {
+      upto = 0;
+    }
+  }
+
+  /**
+   * The query analyzers of the fields of a schema without their stop
+   * filter.  Each one is derived once, on first use, and shared by all
+   * parsers using the schema, so its token streams are reused like the
+   * ones of the schema analyzers.  Also remembers which clause prefixes of
+   * user queries are field names of the schema, and where the fields are
+   * indexed with reversed wildcards.
+   */
+  static class Registry {
+    // field names come from user input, only this many are remembered
+    private static final int MAX_FIELD_NAMES = 10000;
+
+    final IndexSchema schema;
+    private final ConcurrentHashMap<String, Analyzer> fields = new ConcurrentHashMap<String, Analyzer>();
+    // fields of the same type share the derived analyzer
+    private final ConcurrentHashMap<FieldType, Analyzer> types = new ConcurrentHashMap<FieldType, Analyzer>();
+    private final ConcurrentHashMap<String, Boolean> fieldNames = new ConcurrentHashMap<String, Boolean>();
+    private final ConcurrentHashMap<String, String> wildcardFields = new ConcurrentHashMap<String, String>();
+    // the fields copied into each reversed copy
+    private final ConcurrentHashMap<String, Set<String>> copySources = new ConcurrentHashMap<String, Set<String>>();
+
+    Registry(IndexSchema schema) {
+      this.schema = schema;
+    }
+
+    Analyzer getStopFreeAnalyzer(String fieldName) {
+      Analyzer a = fields.get(fieldName);
+      if (a != null) return a;
+
+      FieldType ft = schema.getFieldType(fieldName);
+      a = types.get(ft);
+      if (a == null) {
+        a = derive(fieldName, ft);
+        Analyzer prev = types.putIfAbsent(ft, a);
+        if (prev != null) a = prev;
+      }
+      fields.put(fieldName, a);
+      return a;
+    }
+
+    /**
+     * @return true if the name is a field or dynamic field of the schema
+     */
+    boolean isField(String name) {
+      Boolean known = fieldNames.get(name);
+      if (known == null) {
+        // dynamic fields are matched against every pattern, so misses are remembered too
+        known = Boolean.valueOf(schema.getFieldTypeNoEx(name) != null);
+        if (fieldNames.size() < MAX_FIELD_NAMES) fieldNames.put(name, known);
+      }
+      return known.booleanValue();
+    }
+
+    /**
+     * @return the field to run a leading wildcard query of the field on: a
+     * copy of the field indexed with reversed wildcards, such as a text_rev
+     * field, if every field copied into it is searched too, or else the
+     * field itself
+     * @param searched the fields the query searches, including this one
+     */
+    String getWildcardField(String fieldName, Set<String> searched) {
+      String target = wildcardFields.get(fieldName);
+      if (target == null) {
+        target = fieldName;
+        FieldType ft = schema.getFieldTypeNoEx(fieldName);
+        if (ft != null && !isReversed(ft)) {
+          for (CopyField cf : schema.getCopyFieldsList(fieldName)) {
+            if (isReversed(cf.getDestination().getType())) {
+              target = cf.getDestination().getName();
+              break;
+            }
+          }
+        }
+        if (wildcardFields.size() < MAX_FIELD_NAMES) wildcardFields.put(fieldName, target);
+      }
+      if (target.equals(fieldName)) return fieldName;
+
+      // the copy would match the values of its other sources as well
+      Set<String> sources = copySources.get(target);
+      if (sources == null) {
+        sources = new HashSet<String>();
+        for (SchemaField source : schema.getCopySources(target)) {
+          sources.add(source.getName());
+        }
+        if (copySources.size() < MAX_FIELD_NAMES) copySources.put(target, sources);
+      }
+      return searched.containsAll(sources) ? target : fieldName;
+    }
+
+    private static boolean isReversed(FieldType ft) {
+      Analyzer a = ft.getAnalyzer();
+      if (!(a instanceof TokenizerChain)) return false;
+      for (TokenFilterFactory tf : ((TokenizerChain)a).getTokenFilterFactories()) {
+        if (tf instanceof ReversedWildcardFilterFactory) return true;
+      }
+      return false;
+    }
+
+    private static Analyzer derive(String fieldName, FieldType ft) {
+      Analyzer qa = ft.getQueryAnalyzer();
+      if (!(qa instanceof TokenizerChain)) {
+        return qa;
+      }
+      TokenizerChain tcq = (TokenizerChain)qa;
+      Analyzer ia = ft.getAnalyzer();
+      if (ia == qa || !(ia instanceof TokenizerChain)) {
+        return qa;
+      }
+      TokenizerChain tci = (TokenizerChain)ia;
+
+      // make sure that there isn't a stop filter in the indexer
+      for (TokenFilterFactory tf : tci.getTokenFilterFactories()) {
+        if (tf instanceof StopFilterFactory) {
+          return qa;
+        }
+      }
+
+      // now if there is a stop filter in the query analyzer, remove it
+      int stopIdx = -1;
+      TokenFilterFactory[] facs = tcq.getTokenFilterFactories();
+
+      for (int i=0; i<facs.length; i++) {
+        TokenFilterFactory tf = facs[i];
+        if (tf instanceof StopFilterFactory) {
+          stopIdx = i;
+          break;
+        }
+      }
+
+      if (stopIdx == -1) {
+        // no stop filter exists
+        return qa;
+      }
+
+      TokenFilterFactory[] newtf = new TokenFilterFactory[facs.length-1];
+      for (int i=0,j=0; i<facs.length; i++) {
+        if (i==stopIdx) continue;
+        newtf[j++] = facs[i];
+      }
+
+      TokenizerChain newa = new TokenizerChain(tcq.getTokenizerFactory(), newtf);
+      newa.setPositionIncrementGap(tcq.getPositionIncrementGap(fieldName));
+      return newa;
+    }
+  }
+
   public static TokenizerChain getQueryTokenizerChain(QParser parser, String fieldName) {
     FieldType ft = parser.getReq().getSchema().getFieldType(fieldName);
     Analyzer qa = ft.getQueryAnalyzer();
@@ -1049,69 +1817,57 @@ class ExtendedAnalyzer extends Analyzer {
   public ExtendedAnalyzer(QParser parser) {
     this.parser = parser;
     this.queryAnalyzer = parser.getReq().getSchema().getQueryAnalyzer();
+    this.registry = parser instanceof ExtendedDismaxQParser
+        ? ((ExtendedDismaxQParser)parser).analyzers : new Registry(parser.getReq().getSchema());
+    this.tokenMemo = parser instanceof ExtendedDismaxQParser
+        ? ((ExtendedDismaxQParser)parser).tokenMemo : new TokenMemo();
   }
 
-  public TokenStream tokenStream(String fieldName, Reader reader) {
-    if (!removeStopFilter) {
-      return queryAnalyzer.tokenStream(fieldName, reader);
-    }
-    
-    Analyzer a = map.get(fieldName);
-    if (a != null) {
-      return a.tokenStream(fieldName, reader);
-    }
-
-    FieldType ft = parser.getReq().getSchema().getFieldType(fieldName);
-    Analyzer qa = ft.getQueryAnalyzer();
-    if (!(qa instanceof TokenizerChain)) {
-      map.put(fieldName, qa);
-      return qa.tokenStream(fieldName, reader);
-    }
-    TokenizerChain tcq = (TokenizerChain)qa;
-    Analyzer ia = ft.getAnalyzer();
-    if (ia == qa || !(ia instanceof TokenizerChain)) {
-      map.put(fieldName, qa);
-      return qa.tokenStream(fieldName, reader);
-    }
-    TokenizerChain tci = (TokenizerChain)ia;
-
-    // make sure that there isn't a stop filter in the indexer
-    for (TokenFilterFactory tf : tci.getTokenFilterFactories()) {
-      if (tf instanceof StopFilterFactory) {
-        map.put(fieldName, qa);
-        return qa.tokenStream(fieldName, reader);
-      }
-    }
+  /**
+   * Until {@link #endSharedTokens}, the text is only analyzed if no field
+   * with the same query analyzer analyzed it before for the request,
+   * otherwise its tokens are replayed.
+   */
+  void startSharedTokens(String text) {
+    sharedText = text;
+  }
 
-    // now if there is a stop filter in the query analyzer, remove it
-    int stopIdx = -1;
-    TokenFilterFactory[] facs = tcq.getTokenFilterFactories();
+  void endSharedTokens() {
+    sharedText = null;
+  }
 
-    for (int i=0; i<facs.length; i++) {
-      TokenFilterFactory tf = facs[i];
-      if (tf instanceof StopFilterFactory) {
-        stopIdx = i;
-        break;
+  /**
+   * @return the shared tokens of the text for the field, or null if the
+   * field analyzes it on its own
+   */
+  private TokenStream getSharedTokens(String fieldName) {
+    if (sharedText == null) return null;
+    FieldType ft = registry.schema.getFieldTypeNoEx(fieldName);
+    if (ft == null) return null;
+    Analyzer a = removeStopFilter ? registry.getStopFreeAnalyzer(fieldName) : ft.getQueryAnalyzer();
+    // a tokenizer chain doesn't depend on the field name, other analyzers may
+    if (!(a instanceof TokenizerChain)) return null;
+
+    SharedTokens tokens = tokenMemo.get(a, sharedText);
+    if (tokens == null) {
+      try {
+        tokens = new SharedTokens(a.reusableTokenStream(fieldName, new StringReader(sharedText)));
+      } catch (IOException e) {
+        // the field analyzes it on its own
+        return null;
       }
+      tokenMemo.put(a, sharedText, tokens);
     }
+    return tokens.replay();
+  }
 
-    if (stopIdx == -1) {
-      // no stop filter exists
-      map.put(fieldName, qa);
-      return qa.tokenStream(fieldName, reader);
-    }
-
-    TokenFilterFactory[] newtf = new TokenFilterFactory[facs.length-1];
-    for (int i=0,j=0; i<facs.length; i++) {
-      if (i==stopIdx) continue;
-      newtf[j++] = facs[i];
+  public TokenStream tokenStream(String fieldName, Reader reader) {
+    TokenStream shared = getSharedTokens(fieldName);
+    if (shared != null) return shared;
+    if (!removeStopFilter) {
+      return queryAnalyzer.tokenStream(fieldName, reader);
     }
-
-    TokenizerChain newa = new TokenizerChain(tcq.getTokenizerFactory(), newtf);
-    newa.setPositionIncrementGap(tcq.getPositionIncrementGap(fieldName));
-
-    map.put(fieldName, newa);
-    return newa.tokenStream(fieldName, reader);        
+    return registry.getStopFreeAnalyzer(fieldName).tokenStream(fieldName, reader);
   }
 
   public int getPositionIncrementGap(String fieldName) {
@@ -1119,10 +1875,12 @@ class ExtendedAnalyzer extends Analyzer {
   }
 
   public TokenStream reusableTokenStream(String fieldName, Reader reader) throws IOException {
+    TokenStream shared = getSharedTokens(fieldName);
+    if (shared != null) return shared;
     if (!removeStopFilter) {
       return queryAnalyzer.reusableTokenStream(fieldName, reader);
     }
-    // TODO: done to fix stop word removal bug - could be done while still using resusable?
-    return tokenStream(fieldName, reader);
+    // the derived analyzer keeps its own reused stream, separate from the one with the stop filter
+    return registry.getStopFreeAnalyzer(fieldName).reusableTokenStream(fieldName, reader);
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,38 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.search;
+
+import java.io.IOException;
+
+/**
+ * Carries the parsed user queries of the edismax query cache over to the
+ * cache of a new searcher.  A parsed query depends on the schema, not on
+ * the index, so every entry is still valid after a commit.
+ *
+ * <br>Example:
+ * <pre>
+ * &lt;cache name="edismaxQueryCache" class="solr.LRUCache" size="1024" autowarmCount="1024"
+ *   regenerator="org.apache.solr.search.ExtendedDismaxQueryCacheRegenerator"/&gt;
+ * </pre>
+ */
+public class ExtendedDismaxQueryCacheRegenerator implements CacheRegenerator {
+  public boolean regenerateItem(SolrIndexSearcher newSearcher, SolrCache newCache, SolrCache oldCache, Object oldKey, Object oldVal) throws IOException {
+    newCache.put(oldKey, oldVal);
+    return true;
+  }
+}
@@ -0,0 +1,334 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.search;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.DisjunctionMaxQuery;
+import org.apache.lucene.search.MultiPhraseQuery;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Searcher;
+import org.apache.lucene.search.Similarity;
+import org.apache.lucene.search.SimilarityDelegator;
+import org.apache.lucene.search.TermQuery;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.schema.IndexSchema;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Trims the queries the edismax parser built from the user query, using
+ * the document frequency of their terms in the index:
+ * <ul>
+ * <li>a term or phrase on a qf field where one of its terms is never
+ * indexed can't match, it is dropped from its disjunction</li>
+ * <li>pf and pf3 phrase boosts that can't match are dropped</li>
+ * <li>the remaining clauses are ordered by cost, the number of postings
+ * they read, cheapest first</li>
+ * </ul>
+ * Which documents match is unchanged.  A boolean query that dropped
+ * optional clauses still counts them in its coord, so scores are only
+ * scaled by the query norm and the order of the results is unchanged too.
+ * Queries without terms to look at, like prefix or function queries, are
+ * kept as they are and count as the most costly.
+ */
+class ExtendedDismaxQueryPlanner {
+
+  private final SolrIndexSearcher searcher;
+  private final IndexSchema schema;
+  /** the cost of a query without terms to look at */
+  private final long maxDoc;
+  /** tie breaker of each DisjunctionMaxQuery, needed to rebuild it */
+  private final Map<Query,Float> ties;
+
+  private final Map<Term,Integer> docFreqs = new HashMap<Term,Integer>();
+  private final Map<Query,Long> costs = new IdentityHashMap<Query,Long>();
+
+  private final List<String> pruned = new ArrayList<String>();
+  private long cost;
+  private long plannedCost;
+  private Query planned;
+
+  ExtendedDismaxQueryPlanner(SolrIndexSearcher searcher, Map<Query,Float> ties) {
+    this.searcher = searcher;
+    this.schema = searcher.getSchema();
+    this.maxDoc = searcher.getReader().maxDoc();
+    this.ties = ties;
+  }
+
+  /**
+   * @return the user query trimmed, or as is if it can't match anything at all
+   */
+  Query planUserQuery(Query q) throws IOException {
+    cost += estimate(q);
+    Query p = plan(q);
+    if (p == null) {
+      pruned.add(QueryParsing.toString(q, schema));
+      p = q;
+    }
+    plannedCost += cost(p);
+    planned = p;
+    return p;
+  }
+
+  /**
+   * @return the phrase boost trimmed, or null if it can't match anything
+   */
+  Query planPhrase(Query q) throws IOException {
+    cost += estimate(q);
+    Query p = plan(q);
+    if (p == null) {
+      pruned.add(QueryParsing.toString(q, schema));
+    } else {
+      plannedCost += cost(p);
+    }
+    return p;
+  }
+
+  /**
+   * @return the plan, for the debug output
+   */
+  NamedList<Object> getDebugInfo() {
+    NamedList<Object> info = new SimpleOrderedMap<Object>();
+    info.add("cost", Long.valueOf(cost));
+    info.add("plannedCost", Long.valueOf(plannedCost));
+    info.add("pruned", pruned);
+    if (planned instanceof BooleanQuery) {
+      NamedList<Object> clauses = new SimpleOrderedMap<Object>();
+      for (BooleanClause clause : ((BooleanQuery)planned).getClauses()) {
+        clauses.add(QueryParsing.toString(clause.getQuery(), schema), Long.valueOf(cost(clause.getQuery())));
+      }
+      info.add("clauses", clauses);
+    }
+    return info;
+  }
+
+  /**
+   * @return the cost of the query as parsed, nothing is dropped
+   */
+  long estimate(Query q) throws IOException {
+    if (q instanceof TermQuery) {
+      return docFreq(((TermQuery)q).getTerm());
+    } else if (q instanceof PhraseQuery) {
+      long c = 0;
+      for (Term t : ((PhraseQuery)q).getTerms()) c += docFreq(t);
+      return c;
+    } else if (q instanceof MultiPhraseQuery) {
+      long c = 0;
+      for (Object terms : ((MultiPhraseQuery)q).getTermArrays()) {
+        for (Term t : (Term[])terms) c += docFreq(t);
+      }
+      return c;
+    } else if (q instanceof BooleanQuery) {
+      long c = 0;
+      for (BooleanClause clause : ((BooleanQuery)q).getClauses()) c += estimate(clause.getQuery());
+      return c;
+    } else if (q instanceof DisjunctionMaxQuery) {
+      long c = 0;
+      for (Iterator it = ((DisjunctionMaxQuery)q).iterator(); it.hasNext();) c += estimate((Query)it.next());
+      return c;
+    }
+    return maxDoc;
+  }
+
+  /**
+   * @return the query trimmed, or null if it can't match anything
+   */
+  private Query plan(Query q) throws IOException {
+    long c;
+    if (q instanceof TermQuery) {
+      c = docFreq(((TermQuery)q).getTerm());
+      if (c == 0) return null;
+    } else if (q instanceof PhraseQuery) {
+      c = 0;
+      for (Term t : ((PhraseQuery)q).getTerms()) {
+        int df = docFreq(t);
+        if (df == 0) return null;
+        c += df;
+      }
+    } else if (q instanceof MultiPhraseQuery) {
+      c = 0;
+      for (Object terms : ((MultiPhraseQuery)q).getTermArrays()) {
+        // one of the terms of each position must be there
+        long position = 0;
+        for (Term t : (Term[])terms) position += docFreq(t);
+        if (position == 0) return null;
+        c += position;
+      }
+    } else if (q.getClass() == BooleanQuery.class) {
+      return planBoolean((BooleanQuery)q);
+    } else if (q.getClass() == DisjunctionMaxQuery.class && ties.containsKey(q)) {
+      return planDisjunction((DisjunctionMaxQuery)q);
+    } else {
+      c = maxDoc;
+    }
+    costs.put(q, Long.valueOf(c));
+    return q;
+  }
+
+  private Query planBoolean(BooleanQuery bq) throws IOException {
+    int mark = pruned.size();
+    List<BooleanClause> kept = new ArrayList<BooleanClause>();
+    int positive = 0;
+    int should = 0;
+    int droppedShould = 0;
+    long c = 0;
+    for (BooleanClause clause : bq.getClauses()) {
+      Query sub = plan(clause.getQuery());
+      if (sub == null) {
+        // a required clause that can't match, nothing can
+        if (clause.getOccur() == BooleanClause.Occur.MUST) return unmatched(mark);
+        // an optional one matches no document the others don't, an excluded one excludes nothing
+        if (clause.getOccur() == BooleanClause.Occur.SHOULD) droppedShould++;
+        pruned.add(QueryParsing.toString(clause.getQuery(), schema));
+        continue;
+      }
+      kept.add(new BooleanClause(sub, clause.getOccur()));
+      if (clause.getOccur() != BooleanClause.Occur.MUST_NOT) {
+        positive++;
+        c += cost(sub);
+      }
+      if (clause.getOccur() == BooleanClause.Occur.SHOULD) should++;
+    }
+    if (positive == 0 && bq.getClauses().length > kept.size()) return unmatched(mark);
+    if (should < bq.getMinimumNumberShouldMatch()) return unmatched(mark);
+
+    sortByCost(kept);
+    BooleanQuery p = droppedShould == 0 || bq.isCoordDisabled()
+        ? new BooleanQuery(bq.isCoordDisabled()) : new PlannedBooleanQuery(droppedShould);
+    p.setMinimumNumberShouldMatch(bq.getMinimumNumberShouldMatch());
+    p.setBoost(bq.getBoost());
+    for (BooleanClause clause : kept) p.add(clause);
+    costs.put(p, Long.valueOf(c));
+    return p;
+  }
+
+  private Query planDisjunction(DisjunctionMaxQuery dmq) throws IOException {
+    int mark = pruned.size();
+    List<BooleanClause> kept = new ArrayList<BooleanClause>();
+    long c = 0;
+    for (Iterator it = dmq.iterator(); it.hasNext();) {
+      Query disjunct = (Query)it.next();
+      Query sub = plan(disjunct);
+      if (sub == null) {
+        pruned.add(QueryParsing.toString(disjunct, schema));
+        continue;
+      }
+      kept.add(new BooleanClause(sub, BooleanClause.Occur.SHOULD));
+      c += cost(sub);
+    }
+    if (kept.isEmpty()) return unmatched(mark);
+
+    sortByCost(kept);
+    Float tie = ties.get(dmq);
+    DisjunctionMaxQuery p = new DisjunctionMaxQuery(tie.floatValue());
+    p.setBoost(dmq.getBoost());
+    for (BooleanClause clause : kept) p.add(clause.getQuery());
+    ties.put(p, tie);
+    costs.put(p, Long.valueOf(c));
+    return p;
+  }
+
+  /**
+   * The query can't match, it is reported as a whole by its parent rather
+   * than by the clauses dropped from it.
+   */
+  private Query unmatched(int mark) {
+    pruned.subList(mark, pruned.size()).clear();
+    return null;
+  }
+
+  private void sortByCost(List<BooleanClause> clauses) {
+    Collections.sort(clauses, new Comparator<BooleanClause>() {
+      public int compare(BooleanClause a, BooleanClause b) {
+        // excluded clauses last, they are only checked against the matches
+        boolean na = a.getOccur() == BooleanClause.Occur.MUST_NOT;
+        boolean nb = b.getOccur() == BooleanClause.Occur.MUST_NOT;
+        if (na != nb) return na ? 1 : -1;
+        long ca = cost(a.getQuery());
+        long cb = cost(b.getQuery());
+        return ca < cb ? -1 : (ca == cb ? 0 : 1);
+      }
+    });
+  }
+
+  private long cost(Query q) {
+    Long c = costs.get(q);
+    return c == null ? maxDoc : c.longValue();
+  }
+
+  private int docFreq(Term t) throws IOException {
+    Integer df = docFreqs.get(t);
+    if (df == null) {
+      df = Integer.valueOf(searcher.docFreq(t));
+      docFreqs.put(t, df);
+    }
+    return df.intValue();
+  }
+
+  /**
+   * A boolean query with optional clauses dropped, they still count in its
+   * coord so a document scores as it did with them.
+   */
+  static class PlannedBooleanQuery extends BooleanQuery {
+    private final int dropped;
+
+    PlannedBooleanQuery(int dropped) {
+      this.dropped = dropped;
+    }
+
+    public Similarity getSimilarity(Searcher searcher) {
+      return new SimilarityDelegator(super.getSimilarity(searcher)) {
+        public float coord(int overlap, int maxOverlap) {
+          return super.coord(overlap, maxOverlap + dropped);
+        }
+      };
+    }
+
+    public Query rewrite(IndexReader reader) throws IOException {
+      if (clauses().size() != 1) return super.rewrite(reader);
+      // a single clause isn't unwrapped, its coord isn't 1
+      BooleanClause clause = (BooleanClause)clauses().get(0);
+      Query q = clause.getQuery().rewrite(reader);
+      if (q == clause.getQuery()) return this;
+      PlannedBooleanQuery clone = (PlannedBooleanQuery)clone();
+      clone.clauses().set(0, new BooleanClause(q, clause.getOccur()));
+      return clone;
+    }
+
+    public boolean equals(Object o) {
+      return o instanceof PlannedBooleanQuery && dropped == ((PlannedBooleanQuery)o).dropped && super.equals(o);
+    }
+
+    public int hashCode() {
+      return super.hashCode() * 31 + dropped;
+    }
+  }
+}
@@ -0,0 +1,253 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.search;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.util.Base64;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An opaque position in a sorted result list, used to page deep into
+ * results without collecting and sorting all the documents before the
+ * page.  A mark holds the sort values and the unique key of the last
+ * document of a page, the next page is every document sorting after it,
+ * see {@link NYPhilCursorCollector}.
+ * <p>
+ * The sort must end with the unique key so that the order is total, and
+ * may only use string and numeric fields.  Sort values are read from the
+ * same FieldCache entries Lucene sorts with, so missing values order the
+ * same way as in the sort.
+ * <p>
+ * When a sort can't be marked, the cursor simply holds the offset of the
+ * next page, which costs the same as index based paging.
+ */
+public class NYPhilCursor {
+  /** the cursor value starting at the first page */
+  public static final String FIRST = "*";
+
+  private static final char SEP = '\u0000';
+  private static final String VERSION = "1";
+
+  private static final char OFFSET = 'o';
+  private static final char MARK = 'm';
+
+  private static final char NULL = '0';
+  private static final char STRING = 's';
+  private static final char INT = 'i';
+  private static final char LONG = 'l';
+  private static final char FLOAT = 'f';
+  private static final char DOUBLE = 'd';
+
+  private final String sortSpec;
+  private final int offset;
+  private final Object[] values;
+
+  private NYPhilCursor(String sortSpec, int offset, Object[] values) {
+    this.sortSpec = sortSpec;
+    this.offset = offset;
+    this.values = values;
+  }
+
+  /** a cursor to the next page when the sort can't be marked */
+  public static NYPhilCursor offset(String sortSpec, int offset) {
+    return new NYPhilCursor(sortSpec, offset, null);
+  }
+
+  /** the sort spec the cursor was created for */
+  public String getSortSpec() {
+    return sortSpec;
+  }
+
+  /** true if the cursor is a mark, false if it is an offset */
+  public boolean isMark() {
+    return values != null;
+  }
+
+  /** the offset of the page, always 0 for a mark */
+  public int getOffset() {
+    return values == null ? offset : 0;
+  }
+
+  /**
+   * The sort values of the marked document, the last one is the unique key.
+   * Values are a String (or null) for string sorts and the boxed FieldCache
+   * value for numeric sorts.
+   */
+  Object[] getValues() {
+    return values;
+  }
+
+  /**
+   * @return true if every sort field is a string or numeric field sort
+   */
+  public static boolean isMarkable(Sort sort) {
+    if (sort == null) return false;
+    for (SortField sf : sort.getSort()) {
+      switch (sf.getType()) {
+        case SortField.STRING:
+        case SortField.INT:
+        case SortField.LONG:
+        case SortField.FLOAT:
+        case SortField.DOUBLE:
+          break;
+        case SortField.CUSTOM:
+          if (sf.getComparatorSource() instanceof MissingStringLastComparatorSource) break;
+          return false;
+        default:
+          return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Marks a document of the searcher.
+   *
+   * @param sort a sort accepted by {@link #isMarkable}
+   * @param docid the top level document id
+   */
+  public static NYPhilCursor mark(SolrIndexSearcher searcher, String sortSpec, Sort sort, int docid) throws IOException {
+    SolrIndexReader top = searcher.getReader();
+    SolrIndexReader[] leaves = top.getLeafReaders();
+    int[] offsets = top.getLeafOffsets();
+    int idx = SolrIndexReader.readerIndex(docid, offsets);
+    IndexReader reader = leaves[idx];
+    int doc = docid - offsets[idx];
+
+    SortField[] fields = sort.getSort();
+    Object[] values = new Object[fields.length];
+    for (int i=0; i<fields.length; i++) {
+      SortField sf = fields[i];
+      String field = sf.getField();
+      switch (sf.getType()) {
+        case SortField.INT:
+          values[i] = Integer.valueOf(FieldCache.DEFAULT.getInts(reader, field, (FieldCache.IntParser)sf.getParser())[doc]);
+          break;
+        case SortField.LONG:
+          values[i] = Long.valueOf(FieldCache.DEFAULT.getLongs(reader, field, (FieldCache.LongParser)sf.getParser())[doc]);
+          break;
+        case SortField.FLOAT:
+          values[i] = Float.valueOf(FieldCache.DEFAULT.getFloats(reader, field, (FieldCache.FloatParser)sf.getParser())[doc]);
+          break;
+        case SortField.DOUBLE:
+          values[i] = Double.valueOf(FieldCache.DEFAULT.getDoubles(reader, field, (FieldCache.DoubleParser)sf.getParser())[doc]);
+          break;
+        default:
+          FieldCache.StringIndex si = FieldCache.DEFAULT.getStringIndex(reader, field);
+          values[i] = si.lookup[si.order[doc]];
+      }
+    }
+    return new NYPhilCursor(sortSpec, 0, values);
+  }
+
+  /**
+   * @throws SolrException if the cursor is not a value returned by {@link #encode}
+   */
+  public static NYPhilCursor decode(String cursor) {
+    try {
+      String s = new String(Base64.base64ToByteArray(cursor), "UTF-8");
+      List<String> parts = new ArrayList<String>();
+      int start = 0;
+      for (int i=0; i<s.length(); i++) {
+        if (s.charAt(i) == SEP) {
+          parts.add(s.substring(start, i));
+          start = i+1;
+        }
+      }
+      parts.add(s.substring(start));
+
+      if (parts.size() < 3 || !VERSION.equals(parts.get(0)) || parts.get(2).length() != 1) {
+        throw invalid(cursor, null);
+      }
+      String sortSpec = parts.get(1);
+      if (parts.get(2).charAt(0) == OFFSET) {
+        if (parts.size() != 4) throw invalid(cursor, null);
+        return new NYPhilCursor(sortSpec, Integer.parseInt(parts.get(3)), null);
+      }
+
+      Object[] values = new Object[parts.size() - 3];
+      for (int i=0; i<values.length; i++) {
+        String v = parts.get(i+3);
+        if (v.length() == 0) throw invalid(cursor, null);
+        String val = v.substring(1);
+        switch (v.charAt(0)) {
+          case NULL: values[i] = null; break;
+          case STRING: values[i] = val; break;
+          case INT: values[i] = Integer.valueOf(val); break;
+          case LONG: values[i] = Long.valueOf(val); break;
+          case FLOAT: values[i] = Float.valueOf(val); break;
+          case DOUBLE: values[i] = Double.valueOf(val); break;
+          default: throw invalid(cursor, null);
+        }
+      }
+      return new NYPhilCursor(sortSpec, 0, values);
+    } catch (SolrException e) {
+      throw e;
+    } catch (Exception e) {
+      throw invalid(cursor, e);
+    }
+  }
+
+  public String encode() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(VERSION).append(SEP).append(sortSpec).append(SEP);
+    if (values == null) {
+      sb.append(OFFSET).append(SEP).append(offset);
+    } else {
+      sb.append(MARK);
+      for (Object v : values) {
+        sb.append(SEP);
+        if (v == null) sb.append(NULL);
+        else if (v instanceof String) sb.append(STRING).append(v);
+        else if (v instanceof Integer) sb.append(INT).append(v);
+        else if (v instanceof Long) sb.append(LONG).append(v);
+        else if (v instanceof Float) sb.append(FLOAT).append(v);
+        else sb.append(DOUBLE).append(v);
+      }
+    }
+    try {
+      byte[] bytes = sb.toString().getBytes("UTF-8");
+      return Base64.byteArrayToBase64(bytes, 0, bytes.length);
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static SolrException invalid(String cursor, Exception cause) {
+    return new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Invalid cursor: " + cursor, cause);
+  }
+
+  public String toString() {
+    StringBuilder sb = new StringBuilder(sortSpec);
+    if (values == null) {
+      sb.append(" @").append(offset);
+    } else {
+      sb.append(" after");
+      for (Object v : values) sb.append(' ').append(v);
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,183 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.search;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.solr.common.SolrException;
+
+import java.io.IOException;
+
+/**
+ * Passes on the documents sorting after a {@link NYPhilCursor} mark to
+ * another collector, comparing each collected document to the mark with
+ * the FieldCache values the sort itself uses.
+ * <p>
+ * Unlike the <code>{!nypcursor}</code> filter, the mark is applied while
+ * the page is collected, after the matches were counted, so it changes
+ * neither the number of matches nor the facet counts and is never cached.
+ */
+public class NYPhilCursorCollector extends Collector {
+  private final Collector delegate;
+  private final SortField[] fields;
+  private final Object[] values;
+  private SegmentComparator[] comparators;
+
+  /**
+   * @param sort the sort of the mark, see {@link #checkMark}
+   */
+  public NYPhilCursorCollector(Sort sort, NYPhilCursor cursor, Collector delegate) {
+    this.delegate = delegate;
+    this.fields = sort.getSort();
+    this.values = cursor.getValues();
+  }
+
+  /**
+   * @throws SolrException if the cursor is not a mark for the sort
+   */
+  public static void checkMark(NYPhilCursor cursor, String sortSpec, Sort sort) {
+    if (!cursor.getSortSpec().equals(sortSpec)) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+          "Cursor was created for sort '" + cursor.getSortSpec() + "' not '" + sortSpec + "'");
+    }
+    if (!cursor.isMark() || !NYPhilCursor.isMarkable(sort)
+        || sort.getSort().length != cursor.getValues().length) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Cursor is not a mark for sort '" + sortSpec + "'");
+    }
+  }
+
+  public void setScorer(Scorer scorer) throws IOException {
+    delegate.setScorer(scorer);
+  }
+
+  public void collect(int doc) throws IOException {
+    for (SegmentComparator c : comparators) {
+      int cmp = c.compareToMark(doc);
+      if (cmp < 0) return;
+      if (cmp > 0) {
+        delegate.collect(doc);
+        return;
+      }
+    }
+    // equal to the mark on every field, including the unique key: the marked doc itself
+  }
+
+  public void setNextReader(IndexReader reader, int docBase) throws IOException {
+    comparators = comparators(reader, fields, values);
+    delegate.setNextReader(reader, docBase);
+  }
+
+  public boolean acceptsDocsOutOfOrder() {
+    return delegate.acceptsDocsOutOfOrder();
+  }
+
+
+  /** compares a document of a segment to the mark, in sort order */
+  static abstract class SegmentComparator {
+    abstract int compareToMark(int doc);
+  }
+
+  static SegmentComparator[] comparators(IndexReader reader, SortField[] fields, Object[] values) throws IOException {
+    SegmentComparator[] comparators = new SegmentComparator[fields.length];
+    for (int i=0; i<fields.length; i++) {
+      comparators[i] = comparator(reader, fields[i], values[i]);
+    }
+    return comparators;
+  }
+
+  private static SegmentComparator comparator(IndexReader reader, SortField sf, Object mark) throws IOException {
+    final int reverse = sf.getReverse() ? -1 : 1;
+    String field = sf.getField();
+    switch (sf.getType()) {
+      case SortField.INT: {
+        final int[] vals = FieldCache.DEFAULT.getInts(reader, field, (FieldCache.IntParser)sf.getParser());
+        final int m = ((Integer)mark).intValue();
+        return new SegmentComparator() {
+          int compareToMark(int doc) {
+            int v = vals[doc];
+            return reverse * (v < m ? -1 : (v == m ? 0 : 1));
+          }
+        };
+      }
+      case SortField.LONG: {
+        final long[] vals = FieldCache.DEFAULT.getLongs(reader, field, (FieldCache.LongParser)sf.getParser());
+        final long m = ((Long)mark).longValue();
+        return new SegmentComparator() {
+          int compareToMark(int doc) {
+            long v = vals[doc];
+            return reverse * (v < m ? -1 : (v == m ? 0 : 1));
+          }
+        };
+      }
+      case SortField.FLOAT: {
+        final float[] vals = FieldCache.DEFAULT.getFloats(reader, field, (FieldCache.FloatParser)sf.getParser());
+        final float m = ((Float)mark).floatValue();
+        return new SegmentComparator() {
+          int compareToMark(int doc) {
+            float v = vals[doc];
+            return reverse * (v < m ? -1 : (v == m ? 0 : 1));
+          }
+        };
+      }
+      case SortField.DOUBLE: {
+        final double[] vals = FieldCache.DEFAULT.getDoubles(reader, field, (FieldCache.DoubleParser)sf.getParser());
+        final double m = ((Double)mark).doubleValue();
+        return new SegmentComparator() {
+          int compareToMark(int doc) {
+            double v = vals[doc];
+            return reverse * (v < m ? -1 : (v == m ? 0 : 1));
+          }
+        };
+      }
+      default: {
+        // strings are compared on doubled ords, so a mark that isn't a term
+        // of this segment falls between two ords
+        final FieldCache.StringIndex si = FieldCache.DEFAULT.getStringIndex(reader, field);
+        // a missing value sorts first unless the missing last comparator is used
+        final boolean missingLast = sf.getType() == SortField.CUSTOM;
+        final int m = markOrd(si.lookup, (String)mark, missingLast);
+        return new SegmentComparator() {
+          int compareToMark(int doc) {
+            int ord = si.order[doc];
+            int v = (ord == 0 && missingLast) ? Integer.MAX_VALUE : ord << 1;
+            return reverse * (v < m ? -1 : (v == m ? 0 : 1));
+          }
+        };
+      }
+    }
+  }
+
+  private static int markOrd(String[] lookup, String mark, boolean missingLast) {
+    if (mark == null) return missingLast ? Integer.MAX_VALUE : 0;
+    // lookup[0] is the null entry for missing values
+    int low = 1;
+    int high = lookup.length - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int cmp = lookup[mid].compareTo(mark);
+      if (cmp < 0) low = mid + 1;
+      else if (cmp > 0) high = mid - 1;
+      else return mid << 1;
+    }
+    return (low << 1) - 1;
+  }
+}
@@ -0,0 +1,123 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.search;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.queryParser.ParseException;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.util.OpenBitSet;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.request.SolrQueryRequest;
+
+import java.io.IOException;
+
+/**
+ * Matches the documents sorting after a {@link NYPhilCursor} mark in the
+ * sort of the request.  Used as a filter with <code>start=0</code> so a
+ * deep page costs the same as the first one.
+ *
+ * <br>Example: <code>fq={!nypcursor}AbCd...</code>
+ * <br>The sort is read from the <code>sort</code> parameter and must be the
+ * one the cursor was created for.
+ * <p>
+ * As a filter the mark changes the number of matches and the facet counts,
+ * and each mark is a new filterCache entry.  Pages that should count every
+ * match collect with a {@link NYPhilCursorCollector} instead.
+ */
+public class NYPhilCursorQParserPlugin extends QParserPlugin {
+  public static String NAME = "nypcursor";
+
+  public void init(NamedList args) {
+  }
+
+  public QParser createParser(String qstr, SolrParams localParams, SolrParams params, SolrQueryRequest req) {
+    return new QParser(qstr, localParams, params, req) {
+      public Query parse() throws ParseException {
+        NYPhilCursor cursor = NYPhilCursor.decode(getString());
+        String sortSpec = getParams().get(CommonParams.SORT);
+        Sort sort = QueryParsing.parseSort(sortSpec, getReq().getSchema());
+        NYPhilCursorCollector.checkMark(cursor, sortSpec, sort);
+        return new ConstantScoreQuery(new NYPhilCursorFilter(sort, cursor));
+      }
+    };
+  }
+}
+
+
+/**
+ * Compares every document of a segment to the mark using the FieldCache
+ * values the sort itself uses.
+ */
+class NYPhilCursorFilter extends Filter {
+  private final SortField[] fields;
+  private final NYPhilCursor cursor;
+  private final String key;
+
+  NYPhilCursorFilter(Sort sort, NYPhilCursor cursor) {
+    this.fields = sort.getSort();
+    this.cursor = cursor;
+    this.key = cursor.encode();
+  }
+
+  public DocIdSet getDocIdSet(IndexReader reader) throws IOException {
+    NYPhilCursorCollector.SegmentComparator[] comparators =
+        NYPhilCursorCollector.comparators(reader, fields, cursor.getValues());
+
+    OpenBitSet bits = new OpenBitSet(reader.maxDoc());
+    // iterates the live documents only
+    TermDocs td = reader.termDocs(null);
+    try {
+      outer: while (td.next()) {
+        int doc = td.doc();
+        for (NYPhilCursorCollector.SegmentComparator c : comparators) {
+          int cmp = c.compareToMark(doc);
+          if (cmp < 0) continue outer;
+          if (cmp > 0) {
+            bits.fastSet(doc);
+            continue outer;
+          }
+        }
+        // equal to the mark on every field, including the unique key: the marked doc itself
+      }
+    } finally {
+      td.close();
+    }
+    return bits;
+  }
+
+  public boolean equals(Object o) {
+    if (!(o instanceof NYPhilCursorFilter)) return false;
+    return key.equals(((NYPhilCursorFilter)o).key);
+  }
+
+  public int hashCode() {
+    return key.hashCode() ^ 0x43555253;
+  }
+
+  public String toString() {
+    return NYPhilCursorQParserPlugin.NAME + "(" + cursor + ")";
+  }
+}
@@ -0,0 +1,307 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.search;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryWrapperFilter;
+import org.apache.lucene.util.NumericUtils;
+import org.apache.lucene.util.OpenBitSet;
+import org.apache.lucene.util.SortedVIntList;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Segment level sets used by {@link NYPhilDateFilter}.
+ * <p>
+ * For every index segment this keeps the documents of each type, the web
+ * publishable documents, and for every trie date field the documents with a
+ * value in each calendar year (UTC).  A date range is then answered by OR-ing
+ * the year buckets that lie completely inside the range and running a narrow
+ * range query only for the (at most two) partially covered edge years, so
+ * ranges that differ by a few days are served almost entirely from cache.
+ * <p>
+ * Entries are keyed on the segment core, so unchanged segments keep their sets
+ * across commits and only new segments are built, lazily on first use.
+ * Documents deleted after a set was built are masked when the final result
+ * is produced, see {@link #clearDeleted}.
+ */
+class NYPhilDateBucketCache {
+
+  /** A single field range, min and max are inclusive and null when open. */
+  static class Range {
+    final String field;
+    final Query query;
+    final Long min;
+    final Long max;
+    final int precisionStep;
+
+    /**
+     * @param query the range as built by the field type, used when buckets can't be
+     * @param precisionStep the trie precision step of the field, or -1 if it isn't a trie date field
+     */
+    Range(String field, Query query, Long min, Long max, int precisionStep) {
+      this.field = field;
+      this.query = query;
+      this.min = min;
+      this.max = max;
+      this.precisionStep = precisionStep;
+    }
+  }
+
+  /**
+   * The documents with a value in each year, from firstYear on.  Empty years
+   * are null, most years only hold a few documents of the segment and are a
+   * {@link SortedVIntList}, the others an {@link OpenBitSet}.
+   */
+  static class YearBuckets {
+    final int firstYear;
+    final DocIdSet[] years;
+
+    YearBuckets(int firstYear, DocIdSet[] years) {
+      this.firstYear = firstYear;
+      this.years = years;
+    }
+  }
+
+  static class SegmentEntry {
+    volatile OpenBitSet[] typeSets;
+    final Map<String, YearBuckets> buckets = new ConcurrentHashMap<String, YearBuckets>();
+  }
+
+  private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+  private final Map<Object, SegmentEntry> segments =
+      Collections.synchronizedMap(new WeakHashMap<Object, SegmentEntry>());
+
+  private SegmentEntry getEntry(IndexReader reader) {
+    Object key = reader.getFieldCacheKey();
+    synchronized (segments) {
+      SegmentEntry entry = segments.get(key);
+      if (entry == null) {
+        entry = new SegmentEntry();
+        segments.put(key, entry);
+      }
+      return entry;
+    }
+  }
+
+  /**
+   * @return the documents of each term, built once per segment.  The sets must not be modified.
+   */
+  OpenBitSet[] getTermSets(IndexReader reader, Term[] terms) throws IOException {
+    SegmentEntry entry = getEntry(reader);
+    OpenBitSet[] sets = entry.typeSets;
+    if (sets != null) return sets;
+
+    // two threads may build the same sets concurrently, the last one in wins
+    sets = new OpenBitSet[terms.length];
+    for (int i=0; i<terms.length; i++) {
+      sets[i] = termBits(reader, terms[i]);
+    }
+    entry.typeSets = sets;
+    return sets;
+  }
+
+  /**
+   * @return a new set with the documents of the segment matching the range
+   */
+  OpenBitSet rangeBits(IndexReader reader, Range range) throws IOException {
+    if (range.precisionStep < 0) {
+      return queryBits(reader, range.query);
+    }
+
+    YearBuckets buckets = getBuckets(reader, range.field);
+    OpenBitSet result = new OpenBitSet(reader.maxDoc());
+    long min = range.min == null ? Long.MIN_VALUE : range.min.longValue();
+    long max = range.max == null ? Long.MAX_VALUE : range.max.longValue();
+
+    Calendar cal = Calendar.getInstance(UTC);
+    for (int i=0; i<buckets.years.length; i++) {
+      DocIdSet year = buckets.years[i];
+      if (year == null) continue;
+
+      long yearStart = yearStart(cal, buckets.firstYear + i);
+      long yearEnd = yearStart(cal, buckets.firstYear + i + 1) - 1;
+      if (yearEnd < min || yearStart > max) continue;
+
+      if (yearStart >= min && yearEnd <= max) {
+        if (year instanceof OpenBitSet) {
+          result.or((OpenBitSet)year);
+        } else {
+          or(result, year.iterator());
+        }
+      } else {
+        // edge year, only query the part of it covered by the range
+        Query edge = NumericRangeQuery.newLongRange(range.field, range.precisionStep,
+            Long.valueOf(Math.max(min, yearStart)), Long.valueOf(Math.min(max, yearEnd)), true, true);
+        or(result, new QueryWrapperFilter(edge).getDocIdSet(reader).iterator());
+      }
+    }
+    return result;
+  }
+
+  private YearBuckets getBuckets(IndexReader reader, String field) throws IOException {
+    SegmentEntry entry = getEntry(reader);
+    YearBuckets buckets = entry.buckets.get(field);
+    if (buckets == null) {
+      buckets = buildBuckets(reader, field);
+      entry.buckets.put(field, buckets);
+    }
+    return buckets;
+  }
+
+  /**
+   * Walks the full precision terms of a trie date field, they are sorted so
+   * each year is a contiguous run of terms, and come before the lower
+   * precision terms.
+   */
+  private static YearBuckets buildBuckets(IndexReader reader, String field) throws IOException {
+    List<DocIdSet> years = new ArrayList<DocIdSet>();
+    int firstYear = 0;
+    int year = 0;
+    long nextYearStart = Long.MIN_VALUE;
+    // the documents of the current year, in term order
+    int[] docs = null;
+    int count = 0;
+    Calendar cal = Calendar.getInstance(UTC);
+
+    TermEnum te = reader.terms(new Term(field, ""));
+    TermDocs td = reader.termDocs();
+    try {
+      do {
+        Term t = te.term();
+        if (t == null || !field.equals(t.field())) break;
+        String text = t.text();
+        // the lower precision terms follow the full precision ones
+        if (text.length() == 0 || text.charAt(0) != NumericUtils.SHIFT_START_LONG) break;
+
+        long millis = NumericUtils.prefixCodedToLong(text);
+        if (docs == null || millis >= nextYearStart) {
+          cal.setTimeInMillis(millis);
+          int y = cal.get(Calendar.YEAR);
+          if (docs == null) {
+            firstYear = y;
+            docs = new int[16];
+          } else {
+            years.add(toDocIdSet(docs, count, reader.maxDoc()));
+            count = 0;
+            // pad the years without any values
+            for (int gap=year+1; gap<y; gap++) years.add(null);
+          }
+          year = y;
+          nextYearStart = yearStart(cal, y + 1);
+        }
+
+        td.seek(te);
+        while (td.next()) {
+          if (count == docs.length) {
+            int[] grown = new int[docs.length * 2];
+            System.arraycopy(docs, 0, grown, 0, count);
+            docs = grown;
+          }
+          docs[count++] = td.doc();
+        }
+      } while (te.next());
+    } finally {
+      td.close();
+      te.close();
+    }
+    if (docs != null) years.add(toDocIdSet(docs, count, reader.maxDoc()));
+
+    return new YearBuckets(firstYear, years.toArray(new DocIdSet[years.size()]));
+  }
+
+  /**
+   * @return the documents of a year, a bit set only if it is smaller than the list
+   */
+  private static DocIdSet toDocIdSet(int[] docs, int count, int maxDoc) {
+    // a document with several values in the year is listed once
+    Arrays.sort(docs, 0, count);
+    int size = 0;
+    for (int i=0; i<count; i++) {
+      if (size == 0 || docs[size-1] != docs[i]) docs[size++] = docs[i];
+    }
+
+    // at most 5 bytes per document, usually 1 or 2
+    if (size * 2L > maxDoc >>> 3) {
+      OpenBitSet bits = new OpenBitSet(maxDoc);
+      for (int i=0; i<size; i++) bits.fastSet(docs[i]);
+      return bits;
+    }
+    return new SortedVIntList(docs, size);
+  }
+
+  private static long yearStart(Calendar cal, int year) {
+    cal.clear();
+    cal.set(year, Calendar.JANUARY, 1);
+    return cal.getTimeInMillis();
+  }
+
+  /**
+   * Cached sets may still contain documents deleted after they were built.
+   */
+  static void clearDeleted(IndexReader reader, OpenBitSet bits) {
+    if (!reader.hasDeletions()) return;
+    for (int doc = bits.nextSetBit(0); doc >= 0; doc = bits.nextSetBit(doc + 1)) {
+      if (reader.isDeleted(doc)) bits.fastClear(doc);
+    }
+  }
+
+  static OpenBitSet termBits(IndexReader reader, Term term) throws IOException {
+    OpenBitSet bits = new OpenBitSet(reader.maxDoc());
+    TermDocs td = reader.termDocs(term);
+    try {
+      while (td.next()) {
+        bits.fastSet(td.doc());
+      }
+    } finally {
+      td.close();
+    }
+    return bits;
+  }
+
+  static OpenBitSet queryBits(IndexReader reader, Query query) throws IOException {
+    OpenBitSet bits = new OpenBitSet(reader.maxDoc());
+    or(bits, new QueryWrapperFilter(query).getDocIdSet(reader).iterator());
+    return bits;
+  }
+
+  private static void or(OpenBitSet bits, DocIdSetIterator it) throws IOException {
+    if (it == null) return;
+    int doc;
+    while ((doc = it.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+      bits.fastSet(doc);
+    }
+  }
+}
@@ -0,0 +1,250 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.search;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryParser.ParseException;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.OpenBitSet;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.schema.DateField;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.schema.TrieDateField;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Restricts NY Phil documents to the ones whose dates overlap a date range,
+ * using the rules of each document type.  Printed music and parts have no
+ * dates and always match, business records must also be web publishable.
+ * With no range every document of a known type matches.
+ *
+ * <br>Example: <code>{!nypdate from=19420101 to=19451231}</code>
+ * <br>Other parameters: <code>from</code> and <code>to</code> use the <code>yyyyMMdd</code> format
+ * and must be specified together.
+ * <p>
+ * The per type document sets that don't depend on the range, and per year
+ * sets of each date field, are cached per index segment and shared by all
+ * queries, see {@link NYPhilDateBucketCache}.
+ */
+public class NYPhilDateQParserPlugin extends QParserPlugin {
+  public static String NAME = "nypdate";
+
+  public static final String FROM = "from";
+  public static final String TO = "to";
+
+  static final String DOCUMENT_TYPE = "nyp:DocumentType_facet";
+  static final String WEB_PUBLISHABLE = "nyp:WebPublishable";
+
+  static final String[] TYPES = {
+    "Program", "Printed Music", "Part", "Business Record", "Visual", "Audio", "Video"
+  };
+  static final int PROGRAM=0, PRINTED_MUSIC=1, PART=2, BUSINESS_RECORD=3, VISUAL=4, AUDIO=5, VIDEO=6;
+  /** slot after the types holding the web publishable documents */
+  static final int PUBLISHABLE = TYPES.length;
+
+  /** the range independent sets and the year buckets of each segment */
+  final NYPhilDateBucketCache cache = new NYPhilDateBucketCache();
+
+  public void init(NamedList args) {
+  }
+
+  public QParser createParser(String qstr, SolrParams localParams, SolrParams params, SolrQueryRequest req) {
+    return new QParser(qstr, localParams, params, req) {
+      public Query parse() throws ParseException {
+        String from = localParams.get(FROM);
+        String to = localParams.get(TO);
+        if ((from == null) != (to == null)) {
+          throw new ParseException("nypdate requires both " + FROM + " and " + TO);
+        }
+        String publishable = getReq().getSchema().getField(WEB_PUBLISHABLE).getType().toInternal("true");
+        if (from == null) {
+          return new ConstantScoreQuery(new NYPhilDateFilter(NYPhilDateQParserPlugin.this, null, null, publishable, null));
+        }
+
+        Date f = parseDate(from);
+        Date t = parseDate(to);
+
+        // ranges in the order NYPhilDateFilter expects them
+        NYPhilDateBucketCache.Range[] ranges = {
+          range("npp:Date", f, t),
+          range("npa:Date", f, t),
+          range("npx:Date", f, t),
+          // business records
+          range("npb:DateFrom", f, null),
+          range("npb:DateTo", null, t),
+          range("npb:DateFrom", null, f),
+          range("npb:DateTo", f, t),
+          range("npb:DateFrom", f, f),
+          range("npb:DateTo", t, null),
+          // visuals
+          range("npv:DateFrom", f, null),
+          range("npv:DateTo", null, t),
+          range("npv:DateFrom", null, f),
+          range("npv:DateTo", f, t),
+          range("npv:DateFrom", f, f),
+          range("npv:DateTo", t, null),
+        };
+
+        return new ConstantScoreQuery(new NYPhilDateFilter(NYPhilDateQParserPlugin.this, f, t, publishable, ranges));
+      }
+
+      private Date parseDate(String s) throws ParseException {
+        SimpleDateFormat fmt = new SimpleDateFormat("yyyyMMdd");
+        fmt.setLenient(false);
+        try {
+          return fmt.parse(s);
+        } catch (java.text.ParseException e) {
+          throw new ParseException("nypdate: invalid date '" + s + "', expected yyyyMMdd");
+        }
+      }
+
+      private NYPhilDateBucketCache.Range range(String field, Date min, Date max) {
+        IndexSchema schema = getReq().getSchema();
+        SchemaField sf = schema.getField(field);
+        DateField df = new DateField();
+        Query query = sf.getType().getRangeQuery(this, sf,
+            min == null ? null : df.toExternal(min), max == null ? null : df.toExternal(max), true, true);
+        // only trie dates can be split into year buckets
+        int precisionStep = sf.getType() instanceof TrieDateField ? ((TrieDateField)sf.getType()).getPrecisionStep() : -1;
+        return new NYPhilDateBucketCache.Range(field, query,
+            min == null ? null : Long.valueOf(min.getTime()), max == null ? null : Long.valueOf(max.getTime()), precisionStep);
+      }
+    };
+  }
+}
+
+
+/**
+ * Per segment implementation of the date overlap rules for {@link NYPhilDateQParserPlugin}.
+ */
+class NYPhilDateFilter extends Filter {
+  // offsets into the range queries
+  private static final int PROGRAM_DATE=0, AUDIO_DATE=1, VIDEO_DATE=2, BUSINESS_RECORD_DATES=3, VISUAL_DATES=9;
+
+  private final NYPhilDateQParserPlugin plugin;
+  private final Date from;
+  private final Date to;
+  private final String publishable;
+  private final NYPhilDateBucketCache.Range[] ranges;
+
+  NYPhilDateFilter(NYPhilDateQParserPlugin plugin, Date from, Date to, String publishable, NYPhilDateBucketCache.Range[] ranges) {
+    this.plugin = plugin;
+    this.from = from;
+    this.to = to;
+    this.publishable = publishable;
+    this.ranges = ranges;
+  }
+
+  public DocIdSet getDocIdSet(IndexReader reader) throws IOException {
+    OpenBitSet[] sets = getSegmentSets(reader);
+    OpenBitSet result = new OpenBitSet(reader.maxDoc());
+
+    if (from == null) {
+      // no dates, just the type restrictions
+      for (int i=0; i<NYPhilDateQParserPlugin.TYPES.length; i++) {
+        if (i == NYPhilDateQParserPlugin.BUSINESS_RECORD) {
+          OpenBitSet records = (OpenBitSet)sets[i].clone();
+          records.and(sets[NYPhilDateQParserPlugin.PUBLISHABLE]);
+          result.or(records);
+        } else {
+          result.or(sets[i]);
+        }
+      }
+    } else {
+      result.or(rangeBits(reader, PROGRAM_DATE));
+      result.or(rangeBits(reader, AUDIO_DATE));
+      result.or(rangeBits(reader, VIDEO_DATE));
+
+      // printedMusic (scores) and parts have no date range, so just or in the type
+      result.or(sets[NYPhilDateQParserPlugin.PRINTED_MUSIC]);
+      result.or(sets[NYPhilDateQParserPlugin.PART]);
+
+      OpenBitSet records = intervalBits(reader, BUSINESS_RECORD_DATES);
+      records.and(sets[NYPhilDateQParserPlugin.PUBLISHABLE]);
+      result.or(records);
+
+      result.or(intervalBits(reader, VISUAL_DATES));
+    }
+
+    NYPhilDateBucketCache.clearDeleted(reader, result);
+    return result;
+  }
+
+  /**
+   * The three from/to combinations historically used to match a record
+   * against the range: contained in the range, starting before and ending
+   * in the range, starting on the first day and ending after the range.
+   */
+  private OpenBitSet intervalBits(IndexReader reader, int offset) throws IOException {
+    OpenBitSet result = rangeBits(reader, offset);
+    result.and(rangeBits(reader, offset+1));
+
+    OpenBitSet endsInRange = rangeBits(reader, offset+2);
+    endsInRange.and(rangeBits(reader, offset+3));
+    result.or(endsInRange);
+
+    OpenBitSet startsOnFrom = rangeBits(reader, offset+4);
+    startsOnFrom.and(rangeBits(reader, offset+5));
+    result.or(startsOnFrom);
+
+    return result;
+  }
+
+  private OpenBitSet rangeBits(IndexReader reader, int offset) throws IOException {
+    return plugin.cache.rangeBits(reader, ranges[offset]);
+  }
+
+  private OpenBitSet[] getSegmentSets(IndexReader reader) throws IOException {
+    Term[] terms = new Term[NYPhilDateQParserPlugin.TYPES.length + 1];
+    for (int i=0; i<NYPhilDateQParserPlugin.TYPES.length; i++) {
+      terms[i] = new Term(NYPhilDateQParserPlugin.DOCUMENT_TYPE, NYPhilDateQParserPlugin.TYPES[i]);
+    }
+    terms[NYPhilDateQParserPlugin.PUBLISHABLE] = new Term(NYPhilDateQParserPlugin.WEB_PUBLISHABLE, publishable);
+    return plugin.cache.getTermSets(reader, terms);
+  }
+
+  public boolean equals(Object o) {
+    if (!(o instanceof NYPhilDateFilter)) return false;
+    NYPhilDateFilter other = (NYPhilDateFilter)o;
+    return (from == null ? other.from == null : from.equals(other.from))
+        && (to == null ? other.to == null : to.equals(other.to));
+  }
+
+  public int hashCode() {
+    int h = 0x4e595048;
+    if (from != null) h += from.hashCode();
+    if (to != null) h = h*31 + to.hashCode();
+    return h;
+  }
+
+  public String toString() {
+    if (from == null) return NYPhilDateQParserPlugin.NAME + "(*)";
+    DateField df = new DateField();
+    return NYPhilDateQParserPlugin.NAME + "(" + df.toExternal(from) + " TO " + df.toExternal(to) + ")";
+  }
+}
@@ -0,0 +1,80 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.search;
+
+import org.apache.lucene.queryParser.ParseException;
+import org.apache.lucene.search.Query;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.request.SolrQueryRequest;
+
+import java.util.Map;
+
+/**
+ * Returns a query a handler already built for the request, so it reaches
+ * the search components without being written out and parsed again.
+ * The handler registers the query with {@link #toParam} and uses the
+ * returned value as <code>q</code> or <code>fq</code>.
+ *
+ * <br>Example: <code>q={!nypquery id=0}+npt:assetId:123 +npt:status:Approved</code>
+ * <br>Only the <code>id</code> is used to find the query, the text after the
+ * local params is its string form, shown as the raw query in debug output.
+ */
+public class NYPhilQueryQParserPlugin extends QParserPlugin {
+  public static String NAME = "nypquery";
+  public static String ID = "id";
+
+  private static final String CONTEXT_KEY = NAME + ".";
+
+  public void init(NamedList args) {
+  }
+
+  /**
+   * Registers the query with the request.
+   * @param tag the filter tag, for exclusion by faceting, or null
+   * @return the param value that parses to the query
+   */
+  public static String toParam(SolrQueryRequest req, Query query, String tag) {
+    Map<Object,Object> context = req.getContext();
+    int id = 0;
+    while (context.containsKey(CONTEXT_KEY + id)) id++;
+    context.put(CONTEXT_KEY + id, query);
+
+    StringBuilder param = new StringBuilder("{!").append(NAME).append(' ').append(ID).append('=').append(id);
+    if (tag != null) {
+      param.append(' ').append(CommonParams.TAG).append('=').append(tag);
+    }
+    return param.append('}').append(query).toString();
+  }
+
+  public QParser createParser(String qstr, SolrParams localParams, SolrParams params, SolrQueryRequest req) {
+    return new QParser(qstr, localParams, params, req) {
+      public Query parse() throws ParseException {
+        String id = localParams == null ? null : localParams.get(ID);
+        Object query = id == null ? null : getReq().getContext().get(CONTEXT_KEY + id);
+        if (!(query instanceof Query)) {
+          // only queries registered by a handler for this request, never from the text
+          throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "No query was built for " + NAME + " id " + id);
+        }
+        return (Query)query;
+      }
+    };
+  }
+}
@@ -0,0 +1,317 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.search;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.util.NumericUtils;
+import org.apache.lucene.util.OpenBitSet;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Segment level grids of the tag geometry used by {@link NYPhilRegionFilter}.
+ * <p>
+ * The tags of each asset page of a segment are packed together: their
+ * documents, the bounding box of each tag (over its start, end and
+ * <code>p1</code>/<code>p2</code> points) and a uniform grid over the page
+ * extent listing the tags overlapping each cell.  A viewport only visits the
+ * cells it overlaps and checks the boxes listed there, so panning and zooming
+ * cost the same whatever the number of tags of the asset.
+ * <p>
+ * Entries are keyed on the segment core, so unchanged segments keep their
+ * grids across commits and only new segments are built, lazily on first use.
+ * Documents deleted after a grid was built are masked by the filter.
+ */
+class NYPhilRegionIndex {
+
+  static final String ASSET_ID = "npt:assetId";
+  static final String PAGE = "npt:page";
+  static final String IMAGE_WIDTH = "npt:imageWidth";
+  static final String IMAGE_HEIGHT = "npt:imageHeight";
+
+  /** x and y field of each point of a tag */
+  static final String[][] POINTS = {
+    {"npt:start1", "npt:start2"},
+    {"npt:end1", "npt:end2"},
+    {"npt:p1", "npt:p2"},
+  };
+
+  /** average number of tags per grid cell */
+  private static final int TAGS_PER_CELL = 4;
+  private static final int MAX_GRID_SIDE = 64;
+
+  /** The tags of one asset page of a segment. */
+  static class Page {
+    /** the documents, ascending */
+    final int[] docs;
+    /** minX, minY, maxX, maxY of each document, NaN if it has no geometry */
+    final float[] boxes;
+    /** the image size of the page, 0 if unknown */
+    final float imageWidth;
+    final float imageHeight;
+
+    float x0, y0, cellWidth, cellHeight;
+    int cols, rows;
+    /** entries of cell c are cellTags[cellStart[c]] to cellTags[cellStart[c+1]-1], indexes into docs */
+    int[] cellStart;
+    int[] cellTags;
+
+    Page(int[] docs, float[] boxes, float imageWidth, float imageHeight) {
+      this.docs = docs;
+      this.boxes = boxes;
+      this.imageWidth = imageWidth;
+      this.imageHeight = imageHeight;
+      buildGrid();
+    }
+
+    private void buildGrid() {
+      float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY;
+      float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY;
+      int count = 0;
+      for (int i=0; i<docs.length; i++) {
+        if (Float.isNaN(boxes[i*4])) continue;
+        minX = Math.min(minX, boxes[i*4]);
+        minY = Math.min(minY, boxes[i*4+1]);
+        maxX = Math.max(maxX, boxes[i*4+2]);
+        maxY = Math.max(maxY, boxes[i*4+3]);
+        count++;
+      }
+
+      int side = 1;
+      while (side < MAX_GRID_SIDE && side * side * TAGS_PER_CELL < count) side++;
+      cols = rows = side;
+      x0 = count == 0 ? 0 : minX;
+      y0 = count == 0 ? 0 : minY;
+      // a flat extent still gets a cell size, everything falls in the first cell
+      cellWidth = count == 0 || maxX == minX ? 1 : (maxX - minX) / cols;
+      cellHeight = count == 0 || maxY == minY ? 1 : (maxY - minY) / rows;
+
+      // count the entries of each cell, then fill them
+      cellStart = new int[cols * rows + 1];
+      for (int i=0; i<docs.length; i++) {
+        if (Float.isNaN(boxes[i*4])) continue;
+        for (int r=row(boxes[i*4+1]); r<=row(boxes[i*4+3]); r++) {
+          for (int c=col(boxes[i*4]); c<=col(boxes[i*4+2]); c++) {
+            cellStart[r * cols + c + 1]++;
+          }
+        }
+      }
+      for (int c=0; c<cols*rows; c++) {
+        cellStart[c+1] += cellStart[c];
+      }
+      cellTags = new int[cellStart[cols * rows]];
+      int[] fill = new int[cols * rows];
+      for (int i=0; i<docs.length; i++) {
+        if (Float.isNaN(boxes[i*4])) continue;
+        for (int r=row(boxes[i*4+1]); r<=row(boxes[i*4+3]); r++) {
+          for (int c=col(boxes[i*4]); c<=col(boxes[i*4+2]); c++) {
+            int cell = r * cols + c;
+            cellTags[cellStart[cell] + fill[cell]++] = i;
+          }
+        }
+      }
+    }
+
+    int col(float x) {
+      return Math.max(0, Math.min(cols - 1, (int)((x - x0) / cellWidth)));
+    }
+
+    int row(float y) {
+      return Math.max(0, Math.min(rows - 1, (int)((y - y0) / cellHeight)));
+    }
+
+    /**
+     * Sets the documents of the page, or only the ones overlapping the box.
+     * @param box minX, minY, maxX, maxY in the coordinates of the tags, or null for all documents
+     */
+    void collect(float[] box, OpenBitSet bits) {
+      if (box == null) {
+        for (int doc : docs) bits.fastSet(doc);
+        return;
+      }
+
+      for (int r=row(box[1]); r<=row(box[3]); r++) {
+        for (int c=col(box[0]); c<=col(box[2]); c++) {
+          int cell = r * cols + c;
+          for (int e=cellStart[cell]; e<cellStart[cell+1]; e++) {
+            int i = cellTags[e];
+            // a tag listed in several cells is just set again
+            if (boxes[i*4] <= box[2] && boxes[i*4+2] >= box[0] && boxes[i*4+1] <= box[3] && boxes[i*4+3] >= box[1]) {
+              bits.fastSet(docs[i]);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  private final Map<Object, Map<String, Page>> segments =
+      Collections.synchronizedMap(new WeakHashMap<Object, Map<String, Page>>());
+
+  /**
+   * @return the tags of the asset page in the segment, or null if it has none
+   */
+  Page getPage(IndexReader reader, String assetId, int page) throws IOException {
+    Object key = reader.getFieldCacheKey();
+    Map<String, Page> pages = segments.get(key);
+    if (pages == null) {
+      // two threads may build the same segment concurrently, the last one in wins
+      pages = build(reader);
+      segments.put(key, pages);
+    }
+    return pages.get(pageKey(assetId, page));
+  }
+
+  private static String pageKey(String assetId, int page) {
+    return assetId + '\u0000' + page;
+  }
+
+  /**
+   * Reads the asset, page and geometry of every tag from the terms of the
+   * segment, then packs the tags of each asset page together.
+   */
+  private static Map<String, Page> build(IndexReader reader) throws IOException {
+    int maxDoc = reader.maxDoc();
+    String[] assetIds = new String[maxDoc];
+    TermEnum te = reader.terms(new Term(ASSET_ID, ""));
+    TermDocs td = reader.termDocs();
+    try {
+      do {
+        Term t = te.term();
+        if (t == null || !ASSET_ID.equals(t.field())) break;
+        td.seek(te);
+        while (td.next()) {
+          assetIds[td.doc()] = t.text();
+        }
+      } while (te.next());
+    } finally {
+      td.close();
+      te.close();
+    }
+
+    float[] pages = floats(reader, PAGE, true);
+    float[] imageWidths = floats(reader, IMAGE_WIDTH, false);
+    float[] imageHeights = floats(reader, IMAGE_HEIGHT, false);
+    float[][] xs = new float[POINTS.length][];
+    float[][] ys = new float[POINTS.length][];
+    for (int p=0; p<POINTS.length; p++) {
+      xs[p] = floats(reader, POINTS[p][0], false);
+      ys[p] = floats(reader, POINTS[p][1], false);
+    }
+
+    // documents of each asset page, in doc order
+    Map<String, int[]> pageDocs = new HashMap<String, int[]>();
+    Map<String, Integer> pageSizes = new HashMap<String, Integer>();
+    for (int doc=0; doc<maxDoc; doc++) {
+      if (assetIds[doc] == null || Float.isNaN(pages[doc])) continue;
+      String key = pageKey(assetIds[doc], (int)pages[doc]);
+      int[] docs = pageDocs.get(key);
+      Integer size = pageSizes.get(key);
+      int n = size == null ? 0 : size.intValue();
+      if (docs == null) {
+        docs = new int[4];
+      } else if (n == docs.length) {
+        docs = copy(docs, n * 2);
+      }
+      docs[n] = doc;
+      pageDocs.put(key, docs);
+      pageSizes.put(key, Integer.valueOf(n + 1));
+    }
+
+    Map<String, Page> result = new HashMap<String, Page>(pageDocs.size() * 2);
+    for (Map.Entry<String, int[]> e : pageDocs.entrySet()) {
+      int n = pageSizes.get(e.getKey()).intValue();
+      int[] docs = copy(e.getValue(), n);
+      float[] boxes = new float[n * 4];
+      float imageWidth = 0, imageHeight = 0;
+      for (int i=0; i<n; i++) {
+        int doc = docs[i];
+        float minX = Float.NaN, minY = Float.NaN, maxX = Float.NaN, maxY = Float.NaN;
+        for (int p=0; p<POINTS.length; p++) {
+          float x = xs[p][doc];
+          float y = ys[p][doc];
+          // a point needs both coordinates
+          if (Float.isNaN(x) || Float.isNaN(y)) continue;
+          if (Float.isNaN(minX)) {
+            minX = maxX = x;
+            minY = maxY = y;
+          } else {
+            minX = Math.min(minX, x);
+            maxX = Math.max(maxX, x);
+            minY = Math.min(minY, y);
+            maxY = Math.max(maxY, y);
+          }
+        }
+        boxes[i*4] = minX;
+        boxes[i*4+1] = minY;
+        boxes[i*4+2] = maxX;
+        boxes[i*4+3] = maxY;
+        if (!Float.isNaN(imageWidths[doc])) imageWidth = Math.max(imageWidth, imageWidths[doc]);
+        if (!Float.isNaN(imageHeights[doc])) imageHeight = Math.max(imageHeight, imageHeights[doc]);
+      }
+      result.put(e.getKey(), new Page(docs, boxes, imageWidth, imageHeight));
+    }
+    return result;
+  }
+
+  private static int[] copy(int[] docs, int length) {
+    int[] result = new int[length];
+    System.arraycopy(docs, 0, result, 0, Math.min(length, docs.length));
+    return result;
+  }
+
+  /**
+   * Reads a single valued trie int or float field from its full precision
+   * terms, unlike the FieldCache documents without a value are told apart.
+   * @return the value of each document, NaN if it has none
+   */
+  private static float[] floats(IndexReader reader, String field, boolean isInt) throws IOException {
+    float[] values = new float[reader.maxDoc()];
+    Arrays.fill(values, Float.NaN);
+    TermEnum te = reader.terms(new Term(field, ""));
+    TermDocs td = reader.termDocs();
+    try {
+      do {
+        Term t = te.term();
+        if (t == null || !field.equals(t.field())) break;
+        String text = t.text();
+        // only full precision terms
+        if (text.length() == 0 || text.charAt(0) != NumericUtils.SHIFT_START_INT) continue;
+
+        int bits = NumericUtils.prefixCodedToInt(text);
+        float value = isInt ? bits : NumericUtils.sortableIntToFloat(bits);
+        td.seek(te);
+        while (td.next()) {
+          values[td.doc()] = value;
+        }
+      } while (te.next());
+    } finally {
+      td.close();
+      te.close();
+    }
+    return values;
+  }
+}
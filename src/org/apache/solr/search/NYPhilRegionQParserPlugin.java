@@ -0,0 +1,182 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.search;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.queryParser.ParseException;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.OpenBitSet;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.request.SolrQueryRequest;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Matches the tags of an asset page, optionally only the ones whose bounding
+ * box overlaps a region of the page, such as the viewport of the viewer.
+ *
+ * <br>Example: <code>{!nypregion assetId=123 page=12 x1=100 y1=50 x2=800 y2=600}</code>
+ * <br>Other parameters: the region is given by all of <code>x1</code>,
+ * <code>y1</code>, <code>x2</code> and <code>y2</code> or left out for the
+ * whole page.  With <code>normalized=true</code> the region is a fraction of
+ * the image size of the page (0 to 1) rather than in tag coordinates.
+ * <p>
+ * The tags of each asset page are gridded once per index segment and shared
+ * by all queries, see {@link NYPhilRegionIndex}.
+ */
+public class NYPhilRegionQParserPlugin extends QParserPlugin {
+  public static String NAME = "nypregion";
+
+  public static final String ASSET_ID = "assetId";
+  public static final String PAGE = "page";
+  public static final String X1 = "x1";
+  public static final String Y1 = "y1";
+  public static final String X2 = "x2";
+  public static final String Y2 = "y2";
+  public static final String NORMALIZED = "normalized";
+
+  /** the grids of each segment */
+  final NYPhilRegionIndex index = new NYPhilRegionIndex();
+
+  public void init(NamedList args) {
+  }
+
+  /**
+   * @param region x1, y1, x2, y2 of the region, or null for the whole page
+   * @return the query for the tags of the asset page overlapping the region
+   */
+  public Query createQuery(String assetId, int page, float[] region, boolean normalized) {
+    float[] box = null;
+    if (region != null) {
+      // corners in any order
+      box = new float[] {
+        Math.min(region[0], region[2]), Math.min(region[1], region[3]),
+        Math.max(region[0], region[2]), Math.max(region[1], region[3])
+      };
+    }
+    return new ConstantScoreQuery(new NYPhilRegionFilter(index, assetId, page, box, normalized));
+  }
+
+  public QParser createParser(String qstr, SolrParams localParams, SolrParams params, SolrQueryRequest req) {
+    return new QParser(qstr, localParams, params, req) {
+      public Query parse() throws ParseException {
+        String assetId = localParams.get(ASSET_ID);
+        String page = localParams.get(PAGE);
+        if (assetId == null || page == null) {
+          throw new ParseException("nypregion requires " + ASSET_ID + " and " + PAGE);
+        }
+
+        String[] corners = { localParams.get(X1), localParams.get(Y1), localParams.get(X2), localParams.get(Y2) };
+        float[] region = null;
+        int given = 0;
+        for (String corner : corners) {
+          if (corner != null) given++;
+        }
+        if (given == corners.length) {
+          region = new float[corners.length];
+          for (int i=0; i<corners.length; i++) {
+            region[i] = parseFloat(corners[i]);
+          }
+        } else if (given != 0) {
+          throw new ParseException("nypregion requires all of " + X1 + ", " + Y1 + ", " + X2 + " and " + Y2 + " or none");
+        }
+
+        int p;
+        try {
+          p = Integer.parseInt(page);
+        } catch (NumberFormatException e) {
+          throw new ParseException("nypregion: invalid page '" + page + "'");
+        }
+        return createQuery(assetId, p, region, localParams.getBool(NORMALIZED, false));
+      }
+
+      private float parseFloat(String s) throws ParseException {
+        try {
+          float f = Float.parseFloat(s);
+          if (!Float.isNaN(f) && !Float.isInfinite(f)) return f;
+        } catch (NumberFormatException e) {
+          // reported below
+        }
+        throw new ParseException("nypregion: invalid coordinate '" + s + "'");
+      }
+    };
+  }
+}
+
+
+/**
+ * Per segment lookup of the asset page grid for {@link NYPhilRegionQParserPlugin}.
+ */
+class NYPhilRegionFilter extends Filter {
+  private final NYPhilRegionIndex index;
+  private final String assetId;
+  private final int page;
+  private final float[] box;
+  private final boolean normalized;
+
+  NYPhilRegionFilter(NYPhilRegionIndex index, String assetId, int page, float[] box, boolean normalized) {
+    this.index = index;
+    this.assetId = assetId;
+    this.page = page;
+    this.box = box;
+    this.normalized = normalized;
+  }
+
+  public DocIdSet getDocIdSet(IndexReader reader) throws IOException {
+    OpenBitSet bits = new OpenBitSet(reader.maxDoc());
+    NYPhilRegionIndex.Page p = index.getPage(reader, assetId, page);
+    if (p == null) return bits;
+
+    float[] b = box;
+    // without a known image size the tags are taken to be normalized already
+    if (b != null && normalized && p.imageWidth > 0 && p.imageHeight > 0) {
+      b = new float[] { b[0] * p.imageWidth, b[1] * p.imageHeight, b[2] * p.imageWidth, b[3] * p.imageHeight };
+    }
+    p.collect(b, bits);
+    NYPhilDateBucketCache.clearDeleted(reader, bits);
+    return bits;
+  }
+
+  public boolean equals(Object o) {
+    if (!(o instanceof NYPhilRegionFilter)) return false;
+    NYPhilRegionFilter other = (NYPhilRegionFilter)o;
+    return assetId.equals(other.assetId) && page == other.page && normalized == other.normalized
+        && Arrays.equals(box, other.box);
+  }
+
+  public int hashCode() {
+    int h = assetId.hashCode() * 31 + page;
+    h = h * 31 + Arrays.hashCode(box);
+    return normalized ? ~h : h;
+  }
+
+  public String toString() {
+    StringBuilder sb = new StringBuilder(NYPhilRegionQParserPlugin.NAME).append('(');
+    sb.append(assetId).append(" page=").append(page);
+    if (box != null) {
+      sb.append(" [").append(box[0]).append(',').append(box[1]).append(" TO ").append(box[2]).append(',').append(box[3]).append(']');
+      if (normalized) sb.append(" normalized");
+    }
+    return sb.append(')').toString();
+  }
+}
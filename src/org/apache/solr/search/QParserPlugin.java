@@ -33,6 +33,10 @@ public abstract class QParserPlugin implements NamedListInitializedPlugin {
     BoostQParserPlugin.NAME, BoostQParserPlugin.class,
     DisMaxQParserPlugin.NAME, DisMaxQParserPlugin.class,
     ExtendedDismaxQParserPlugin.NAME, ExtendedDismaxQParserPlugin.class,
+    NYPhilDateQParserPlugin.NAME, NYPhilDateQParserPlugin.class,
+    NYPhilCursorQParserPlugin.NAME, NYPhilCursorQParserPlugin.class,
+    NYPhilQueryQParserPlugin.NAME, NYPhilQueryQParserPlugin.class,
+    NYPhilRegionQParserPlugin.NAME, NYPhilRegionQParserPlugin.class,
     FieldQParserPlugin.NAME, FieldQParserPlugin.class,
     RawQParserPlugin.NAME, RawQParserPlugin.class,
     NestedQParserPlugin.NAME, NestedQParserPlugin.class,